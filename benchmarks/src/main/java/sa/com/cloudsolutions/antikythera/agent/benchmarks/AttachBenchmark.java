@@ -0,0 +1,30 @@
+package sa.com.cloudsolutions.antikythera.agent.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import sa.com.cloudsolutions.antikythera.agent.AntikytheraAgent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of {@link AntikytheraAgent#initialize()} in a fresh JVM: self-attach, bootstrap injection, weaving
+ * {@code java.lang.reflect.Field} and retransforming already-loaded enrolled classes. Attaching can only be
+ * measured once per JVM, so every sample is taken in its own fork.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 10, jvmArgsAppend = "-XX:+EnableDynamicAgentLoading")
+public class AttachBenchmark {
+
+    @Benchmark
+    public void initialize() {
+        AntikytheraAgent.initialize();
+    }
+}
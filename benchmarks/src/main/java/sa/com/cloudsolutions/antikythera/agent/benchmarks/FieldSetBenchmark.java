@@ -0,0 +1,68 @@
+package sa.com.cloudsolutions.antikythera.agent.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sa.com.cloudsolutions.antikythera.agent.AntikytheraAgent;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link Field#set} and {@link Field#setInt} on enrolled and unenrolled classes, with and without
+ * the agent woven into {@code java.lang.reflect.Field}. On the unenrolled class the difference between the two
+ * is the cost every unrelated reflective write in the JVM pays for the agent being present; on the enrolled
+ * class it is the full cost of propagating into the evaluator.
+ *
+ * <p>Each value of {@code agent} runs in its own fork, so attaching in one trial cannot leak into the other.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-XX:+EnableDynamicAgentLoading")
+public class FieldSetBenchmark {
+
+    @Param({"false", "true"})
+    public boolean agent;
+
+    @Param({"false", "true"})
+    public boolean enrolled;
+
+    private Object target;
+    private Field intField;
+    private Field refField;
+    private Integer boxed;
+    private int counter;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        if (agent) {
+            AntikytheraAgent.initialize();
+        }
+        Class<?> type = enrolled ? Fixtures.Enrolled.class : Fixtures.Unenrolled.class;
+        target = type.getConstructor().newInstance();
+        intField = type.getField("value");
+        refField = type.getField("ref");
+        boxed = 42;
+    }
+
+    @Benchmark
+    public void set() throws IllegalAccessException {
+        refField.set(target, boxed);
+    }
+
+    @Benchmark
+    public void setInt() throws IllegalAccessException {
+        intField.setInt(target, counter++);
+    }
+}
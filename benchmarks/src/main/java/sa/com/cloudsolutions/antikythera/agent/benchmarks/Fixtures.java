@@ -0,0 +1,76 @@
+package sa.com.cloudsolutions.antikythera.agent.benchmarks;
+
+/**
+ * Minimal stand-ins for the Antikythera evaluator contract. The agent only relies on field and method names,
+ * so these avoid pulling the evaluator itself onto the benchmark classpath.
+ */
+public final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /** Symbol that simply stores the last value, as a real symbol table would. */
+    public static class Symbol {
+        public Object value;
+
+        public void setValue(Object value) {
+            this.value = value;
+        }
+    }
+
+    /** Evaluator with a single shared symbol so that propagation cost is not dominated by map lookups. */
+    public static class Evaluator {
+        public final Symbol symbol = new Symbol();
+
+        public Symbol getField(String name) {
+            return symbol;
+        }
+    }
+
+    /** Holder of the evaluator, mirroring Antikythera's MethodInterceptor. */
+    public static class Interceptor {
+        public final Evaluator evaluator = new Evaluator();
+    }
+
+    /** A class that is never enrolled. */
+    public static class Unenrolled {
+        public int value;
+        public Object ref;
+
+        public void write(int v) {
+            value = v;
+        }
+    }
+
+    /** A class enrolled directly through its own {@code instanceInterceptor}. */
+    public static class Enrolled {
+        public Interceptor instanceInterceptor = new Interceptor();
+        public int value;
+        public Object ref;
+
+        public void write(int v) {
+            value = v;
+        }
+    }
+
+    /** Root of a deep hierarchy; the marker field sits at the top so that a naive lookup walks every level. */
+    public static class Level0 {
+        public Interceptor instanceInterceptor = new Interceptor();
+    }
+
+    public static class Level1 extends Level0 { }
+
+    public static class Level2 extends Level1 { }
+
+    public static class Level3 extends Level2 { }
+
+    public static class Level4 extends Level3 { }
+
+    public static class Level5 extends Level4 { }
+
+    public static class Level6 extends Level5 { }
+
+    public static class Level7 extends Level6 {
+        public int value;
+    }
+}
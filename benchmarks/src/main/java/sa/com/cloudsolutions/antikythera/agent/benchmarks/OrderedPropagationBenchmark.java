@@ -0,0 +1,86 @@
+package sa.com.cloudsolutions.antikythera.agent.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import sa.com.cloudsolutions.antikythera.agent.OrderedPropagation;
+import sa.com.cloudsolutions.antikythera.agent.ReflectiveSetAdvice;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Propagation throughput with one writer per core, with and without {@link OrderedPropagation}, when all threads
+ * write the same field of one shared object and when each writes an object of its own.
+ *
+ * <p>{@code disjointOneWriter} runs the disjoint case on a single thread. JMH reports the throughput of all
+ * threads together, so {@code disjoint} divided by {@code disjointOneWriter} is the speed-up of disjoint writers
+ * over one core; ordered propagation should keep it close to that of unordered propagation. Timing depends on
+ * the machine, which is why the check lives here rather than in a unit test.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(Threads.MAX)
+@Fork(1)
+public class OrderedPropagationBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Propagation {
+        @Param({"false", "true"})
+        public boolean ordered;
+
+        final Fixtures.Enrolled shared = new Fixtures.Enrolled();
+        Field field;
+
+        @Setup
+        public void setUp() throws NoSuchFieldException {
+            field = Fixtures.Enrolled.class.getField("value");
+            if (ordered) {
+                OrderedPropagation.enable();
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            OrderedPropagation.disable();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        final Fixtures.Enrolled own = new Fixtures.Enrolled();
+        int value;
+    }
+
+    @Benchmark
+    public void shared(Propagation propagation, Writer writer) {
+        int value = ++writer.value;
+        propagation.shared.value = value;
+        ReflectiveSetAdvice.after(propagation.field, propagation.shared, value, null);
+    }
+
+    @Benchmark
+    public void disjoint(Propagation propagation, Writer writer) {
+        int value = ++writer.value;
+        writer.own.value = value;
+        ReflectiveSetAdvice.after(propagation.field, writer.own, value, null);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void disjointOneWriter(Propagation propagation, Writer writer) {
+        disjoint(propagation, writer);
+    }
+}
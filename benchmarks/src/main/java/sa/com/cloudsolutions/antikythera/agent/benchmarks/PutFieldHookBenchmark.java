@@ -0,0 +1,55 @@
+package sa.com.cloudsolutions.antikythera.agent.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sa.com.cloudsolutions.antikythera.agent.AntikytheraAgent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of the bytecode {@code PUTFIELD} hook: a plain field write in an enrolled class (instrumented when
+ * the agent is attached) compared with the same write in an unenrolled class, which is never instrumented.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-XX:+EnableDynamicAgentLoading")
+public class PutFieldHookBenchmark {
+
+    @Param({"false", "true"})
+    public boolean agent;
+
+    private Fixtures.Enrolled enrolled;
+    private Fixtures.Unenrolled unenrolled;
+    private int counter;
+
+    @Setup
+    public void setUp() {
+        if (agent) {
+            AntikytheraAgent.initialize();
+        }
+        enrolled = new Fixtures.Enrolled();
+        unenrolled = new Fixtures.Unenrolled();
+    }
+
+    @Benchmark
+    public void enrolledWrite() {
+        enrolled.write(counter++);
+    }
+
+    @Benchmark
+    public void unenrolledWrite() {
+        unenrolled.write(counter++);
+    }
+}
@@ -0,0 +1,51 @@
+package sa.com.cloudsolutions.antikythera.agent.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sa.com.cloudsolutions.antikythera.agent.ReflectiveSetAdvice;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link ReflectiveSetAdvice#after} itself, called directly without the agent attached, for a target
+ * whose {@code instanceInterceptor} is declared on the class itself ({@code shallow}) or eight levels up the
+ * hierarchy ({@code deep}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReflectiveSetAdviceBenchmark {
+
+    @Param({"shallow", "deep"})
+    public String hierarchy;
+
+    private Object target;
+    private Field field;
+    private Integer value;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        Class<?> type = hierarchy.equals("deep") ? Fixtures.Level7.class : Fixtures.Enrolled.class;
+        target = type.getConstructor().newInstance();
+        field = type.getField("value");
+        value = 7;
+    }
+
+    @Benchmark
+    public void after() {
+        ReflectiveSetAdvice.after(field, target, value, null);
+    }
+}
@@ -0,0 +1,127 @@
+package sa.com.cloudsolutions.antikythera.agent.benchmarks;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import sa.com.cloudsolutions.antikythera.agent.AgentConfig;
+import sa.com.cloudsolutions.antikythera.agent.FieldWriteHook;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Startup cost of the field write hook for a JVM that loads {@code classes} enrolled classes: the hook without a
+ * transform cache, with an empty cache directory (the first JVM of a run) and with a populated one (every JVM
+ * after it). Each sample instruments all classes once with a fresh hook, as a freshly started JVM would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(3)
+public class TransformCacheBenchmark {
+
+    @Param({"off", "cold", "warm"})
+    public String cache;
+
+    @Param({"500"})
+    public int classes;
+
+    private final ClassLoader loader = TransformCacheBenchmark.class.getClassLoader();
+    private byte[][] classFiles;
+    private String[] names;
+    private Path directory;
+    private FieldWriteHook hook;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        classFiles = new byte[classes][];
+        names = new String[classes];
+        for (int i = 0; i < classes; i++) {
+            names[i] = "bench/Enrolled" + i;
+            classFiles[i] = enrolledClass(names[i], 16);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void startJvm() throws IOException {
+        directory = Files.createTempDirectory("antikythera-cache");
+        if ("warm".equals(cache)) {
+            transformAll(new FieldWriteHook(AgentConfig.parse("cache=" + directory)), null);
+        }
+        hook = new FieldWriteHook("off".equals(cache) ? AgentConfig.defaults()
+                : AgentConfig.parse("cache=" + directory));
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteCache() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void instrumentAll(Blackhole blackhole) {
+        transformAll(hook, blackhole);
+    }
+
+    private void transformAll(FieldWriteHook hook, Blackhole blackhole) {
+        for (int i = 0; i < classes; i++) {
+            byte[] transformed = hook.transform(loader, names[i], null, null, classFiles[i]);
+            if (blackhole != null) {
+                blackhole.consume(transformed);
+            }
+        }
+    }
+
+    /**
+     * An enrolled class with {@code fields} int fields and a method writing each of them, about the size of a
+     * typical entity.
+     */
+    private static byte[] enrolledClass(String name, int fields) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V21, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+        writer.visitField(Opcodes.ACC_PUBLIC, "instanceInterceptor", "Ljava/lang/Object;", null, null).visitEnd();
+        for (int f = 0; f < fields; f++) {
+            writer.visitField(Opcodes.ACC_PUBLIC, "f" + f, "I", null, null).visitEnd();
+        }
+        MethodVisitor init = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+        MethodVisitor update = writer.visitMethod(Opcodes.ACC_PUBLIC, "update", "(I)V", null, null);
+        update.visitCode();
+        for (int f = 0; f < fields; f++) {
+            update.visitVarInsn(Opcodes.ALOAD, 0);
+            update.visitVarInsn(Opcodes.ILOAD, 1);
+            update.visitFieldInsn(Opcodes.PUTFIELD, name, "f" + f, "I");
+        }
+        update.visitInsn(Opcodes.RETURN);
+        update.visitMaxs(0, 0);
+        update.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+}
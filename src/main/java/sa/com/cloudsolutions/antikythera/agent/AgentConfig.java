@@ -0,0 +1,370 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agent configuration, parsed from the agent arguments with a system property and properties file fallback.
+ *
+ * <h2>Syntax</h2>
+ * <p>Agent arguments are comma separated {@code key=value} pairs; list values are separated by {@code ;}:</p>
+ * <pre>
+ * -javaagent:antikythera-agent.jar=include=com.acme.;org.shop.,exclude=com.acme.generated.,reflective=false
+ * </pre>
+ *
+ * <h2>Keys</h2>
+ * <ul>
+ *   <li>{@code include} - class name prefixes to instrument. When empty, every class not excluded is in scope.</li>
+ *   <li>{@code exclude} - class name prefixes never to instrument. The longest matching prefix decides, so an
+ *       exclude can carve a package out of an include and vice versa. A prefix that is both included and
+ *       excluded is excluded. The JDK, Byte Buddy and ASM are excluded by default; an include of one of those
+ *       prefixes, or of a package inside one, brings it back unless it is also excluded explicitly.</li>
+ *   <li>{@code includeLoaders} / {@code excludeLoaders} - prefixes of class loader class names whose classes
+ *       are (not) instrumented, e.g. {@code jdk.internal.reflect.}.</li>
+ *   <li>{@code reflective} - advise {@code java.lang.reflect.Field#set*} (default {@code true}).</li>
+ *   <li>{@code bytecode} - hook direct field writes in enrolled classes (default {@code true}).</li>
+ *   <li>{@code handles} - observe writes through method handle setters, {@code VarHandle}s and {@code Unsafe},
+ *       see {@link HandleWriteSupport} (default {@code true}).</li>
+ *   <li>{@code jmx} - register {@link AgentMetrics} with the platform MBean server (default {@code true}).</li>
+ *   <li>{@code jmx.rejected} - also count writes to classes that are not enrolled, which puts a shared counter
+ *       on the path of every reflective write in the JVM (default {@code false}).</li>
+ *   <li>{@code jfr.sampleRate}, {@code jfr.maxEventsPerSecond} - sampling and throttling of
+ *       {@link FieldWriteEvent}s, see {@link FieldWriteEvents} (defaults {@code 1} and {@code 1000}).</li>
+ *   <li>{@code journal}, {@code journal.segmentSize}, {@code journal.maxSegments} - record every write into a
+ *       {@link WriteJournal} in the given directory, with segment files of the given size in bytes, keeping at
+ *       most the given number of them (default {@code 0}, all).</li>
+ *   <li>{@code suppressUnchanged}, {@code suppressUnchanged.equality} - skip writes that do not change the
+ *       symbol, comparing references by {@code identity} (the default) or with {@code equals}, see
+ *       {@link ChangeSuppression}.</li>
+ *   <li>{@code cache} - directory in which instrumented class files, and the jar of bootstrap classes, are kept
+ *       across JVMs, see {@link TransformCache} (default: no transform cache, the jar goes to a directory
+ *       {@code antikythera-agent-<user.name>} under {@code java.io.tmpdir}).</li>
+ *   <li>{@code deinstrument.threshold} - consecutive writes of a field without a symbol after which its hook is
+ *       removed, see {@link HotFieldProfiler} (default {@code 0}, never).</li>
+ *   <li>{@code ordered} - deliver the field's current value under a per-object, per-field lock, so that
+ *       concurrent writers cannot leave a symbol stale, see {@link OrderedPropagation} (default {@code false}).</li>
+ *   <li>{@code lazy} - only mark written fields dirty and propagate them on {@link DirtyTracker#sync(Object)}
+ *       (default {@code false}).</li>
+ *   <li>{@code async}, {@code async.bufferSize}, {@code async.intervalMillis} - see {@link AsyncPropagator}.</li>
+ *   <li>{@code config} - path of a properties file with the same keys.</li>
+ * </ul>
+ *
+ * <h2>Sources</h2>
+ * <p>Settings are merged from, in increasing order of precedence: the properties file named by the
+ * {@code antikythera.agent.config} system property or the {@code config} key, the {@code antikythera.agent.args}
+ * system property (same syntax as agent arguments, useful with {@link AntikytheraAgent#initialize()}), and the
+ * agent arguments themselves. In a properties file, list values may also be separated by commas.</p>
+ *
+ * <p>The class scope is compiled into a {@link ClassScope} trie once, so deciding whether a class is in scope
+ * costs a single pass over its name while the class is being loaded.</p>
+ */
+public final class AgentConfig {
+
+    /** Prefixes that are excluded unless an include explicitly names them or something inside them. */
+    static final List<String> DEFAULT_EXCLUDES = List.of(
+            "java.", "javax.", "jdk.", "sun.", "com.sun.", "net.bytebuddy.", "org.objectweb.asm.");
+
+    private static final Set<String> KEYS = Set.of(
+            "include", "exclude", "includeLoaders", "excludeLoaders",
+            "reflective", "bytecode", "handles",
+            "cache",
+            "deinstrument.threshold",
+            "jmx", "jmx.rejected", "jfr.sampleRate", "jfr.maxEventsPerSecond",
+            "journal", "journal.segmentSize", "journal.maxSegments",
+            "suppressUnchanged", "suppressUnchanged.equality",
+            "ordered", "lazy", "async", "async.bufferSize", "async.intervalMillis",
+            "config");
+
+    private final ClassScope classes;
+    private final ClassScope loaders;
+    private final boolean reflectiveHook;
+    private final boolean bytecodeHook;
+    private final boolean handleHooks;
+    private final boolean jmx;
+    private final boolean jmxRejected;
+    private final int jfrSampleRate;
+    private final long jfrMaxEventsPerSecond;
+    private final String cacheDirectory;
+    private final int deinstrumentThreshold;
+    private final String journalDirectory;
+    private final long journalSegmentSize;
+    private final int journalMaxSegments;
+    private final boolean suppressUnchanged;
+    private final boolean suppressByEquals;
+    private final boolean ordered;
+    private final boolean lazy;
+    private final boolean async;
+    private final int asyncBufferSize;
+    private final long asyncIntervalNanos;
+
+    private AgentConfig(Map<String, String> settings) {
+        List<String> includes = list(settings.get("include"));
+        List<String> excludes = new ArrayList<>(DEFAULT_EXCLUDES);
+        // A prefix both included and excluded counts as excluded, so a default named by an include must go.
+        excludes.removeAll(includes);
+        excludes.addAll(list(settings.get("exclude")));
+        classes = ClassScope.compile(includes, excludes, true);
+        loaders = ClassScope.compile(list(settings.get("includeLoaders")), list(settings.get("excludeLoaders")), false);
+        reflectiveHook = bool(settings, "reflective", true);
+        bytecodeHook = bool(settings, "bytecode", true);
+        handleHooks = bool(settings, "handles", true);
+        jmx = bool(settings, "jmx", true);
+        jmxRejected = bool(settings, "jmx.rejected", false);
+        jfrSampleRate = (int) number(settings, "jfr.sampleRate", 1L);
+        jfrMaxEventsPerSecond = number(settings, "jfr.maxEventsPerSecond", 1000L);
+        cacheDirectory = settings.get("cache");
+        deinstrumentThreshold = (int) number(settings, "deinstrument.threshold", 0L);
+        journalDirectory = settings.get("journal");
+        journalSegmentSize = number(settings, "journal.segmentSize", WriteJournal.DEFAULT_SEGMENT_SIZE);
+        journalMaxSegments = (int) number(settings, "journal.maxSegments", 0L);
+        suppressUnchanged = bool(settings, "suppressUnchanged", false);
+        suppressByEquals = "equals".equalsIgnoreCase(settings.get("suppressUnchanged.equality"));
+        ordered = bool(settings, "ordered", false);
+        lazy = bool(settings, "lazy", false);
+        async = bool(settings, "async", false);
+        asyncBufferSize = (int) number(settings, "async.bufferSize", AsyncPropagator.DEFAULT_BUFFER_SIZE);
+        asyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(number(settings, "async.intervalMillis", 1L));
+    }
+
+    /**
+     * @return the configuration used when no arguments, system properties or files are given
+     */
+    public static AgentConfig defaults() {
+        return new AgentConfig(Collections.emptyMap());
+    }
+
+    /**
+     * Builds the configuration from the agent arguments and the fallbacks described in the class comment.
+     *
+     * @param agentArgs the arguments passed to premain/agentmain, may be {@code null}
+     * @return the merged configuration
+     */
+    public static AgentConfig parse(String agentArgs) {
+        Map<String, String> args = parseArgs(agentArgs);
+        Map<String, String> property = parseArgs(System.getProperty("antikythera.agent.args"));
+
+        Map<String, String> settings = new LinkedHashMap<>();
+        String file = args.getOrDefault("config",
+                property.getOrDefault("config", System.getProperty("antikythera.agent.config")));
+        if (file != null) {
+            settings.putAll(load(file));
+        }
+        settings.putAll(property);
+        settings.putAll(args);
+        return new AgentConfig(settings);
+    }
+
+    /**
+     * Splits {@code key=value,key=value} agent arguments. Unknown keys and pairs without a value are reported
+     * and ignored.
+     */
+    static Map<String, String> parseArgs(String agentArgs) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        if (agentArgs == null || agentArgs.isBlank()) {
+            return settings;
+        }
+        for (String pair : agentArgs.split(",")) {
+            if (pair.isBlank()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            if (eq < 0) {
+                System.out.println("Ignoring agent argument without value: " + pair.trim());
+                continue;
+            }
+            put(settings, pair.substring(0, eq).trim(), pair.substring(eq + 1).trim());
+        }
+        return settings;
+    }
+
+    private static Map<String, String> load(String file) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            properties.load(in);
+        } catch (IOException e) {
+            System.out.println("Failed to read agent configuration " + file + ": " + e.getMessage());
+            return settings;
+        }
+        for (String key : properties.stringPropertyNames()) {
+            put(settings, key.trim(), properties.getProperty(key).trim().replace(',', ';'));
+        }
+        return settings;
+    }
+
+    private static void put(Map<String, String> settings, String key, String value) {
+        if (KEYS.contains(key)) {
+            settings.put(key, value);
+        } else {
+            System.out.println("Ignoring unknown agent setting: " + key);
+        }
+    }
+
+    private static List<String> list(String value) {
+        List<String> items = new ArrayList<>();
+        if (value != null) {
+            for (String item : value.split(";")) {
+                if (!item.isBlank()) {
+                    items.add(item.trim());
+                }
+            }
+        }
+        return items;
+    }
+
+    private static boolean bool(Map<String, String> settings, String key, boolean defaultValue) {
+        String value = settings.get(key);
+        return value == null || value.isEmpty() ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    private static long number(Map<String, String> settings, String key, long defaultValue) {
+        String value = settings.get(key);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Decides whether a class is in scope for the field write hook.
+     *
+     * @param internalName the class name as received by a transformer, e.g. {@code com/acme/Foo}
+     * @return {@code true} if the class may be instrumented
+     */
+    public boolean acceptsClass(String internalName) {
+        return classes.accepts(internalName);
+    }
+
+    /**
+     * Decides whether classes defined by a loader are in scope. The bootstrap and platform loaders never are.
+     *
+     * @param loader the defining loader, {@code null} for the bootstrap loader
+     * @return {@code true} if classes of the loader may be instrumented
+     */
+    public boolean acceptsLoader(ClassLoader loader) {
+        return loader != null && loader != ClassLoader.getPlatformClassLoader()
+                && loaders.accepts(loader.getClass().getName());
+    }
+
+    /** @return {@code true} if {@code java.lang.reflect.Field#set*} is advised */
+    public boolean isReflectiveHookEnabled() {
+        return reflectiveHook;
+    }
+
+    /** @return {@code true} if direct field writes in enrolled classes are hooked */
+    public boolean isBytecodeHookEnabled() {
+        return bytecodeHook;
+    }
+
+    /** @return {@code true} if writes through method handles, var handles and {@code Unsafe} are observed */
+    public boolean isHandleHookEnabled() {
+        return handleHooks;
+    }
+
+    /** @return {@code true} if the write path metrics are registered as a platform MBean */
+    public boolean isJmxEnabled() {
+        return jmx;
+    }
+
+    /** @return {@code true} if the metrics also count writes to classes that are not enrolled */
+    public boolean isJmxRejectedCounted() {
+        return jmxRejected;
+    }
+
+    /** @return record one in this many propagated writes as a Flight Recorder event */
+    public int getJfrSampleRate() {
+        return jfrSampleRate;
+    }
+
+    /** @return the upper bound on Flight Recorder events per second, zero or negative for none */
+    public long getJfrMaxEventsPerSecond() {
+        return jfrMaxEventsPerSecond;
+    }
+
+    /** @return the directory of the transform cache, or {@code null} to instrument every class afresh */
+    public String getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * @return the directory of the jar of bootstrap classes: the cache directory if set, else a directory of the
+     *         current user under the temp dir; {@link BootstrapJar} only uses it if no one else can access it
+     */
+    public String getBootstrapJarDirectory() {
+        if (cacheDirectory != null) {
+            return cacheDirectory;
+        }
+        return Paths.get(System.getProperty("java.io.tmpdir"), "antikythera-agent-" + System.getProperty("user.name"))
+                .toString();
+    }
+
+    /** @return consecutive writes without a symbol after which a field's hook is removed, {@code 0} for never */
+    public int getDeinstrumentThreshold() {
+        return deinstrumentThreshold;
+    }
+
+    /** @return the directory to journal writes to, or {@code null} if recording is off */
+    public String getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    /** @return the size of each journal segment file in bytes */
+    public long getJournalSegmentSize() {
+        return journalSegmentSize;
+    }
+
+    /** @return the number of journal segment files to keep, or {@code 0} to keep all of them */
+    public int getJournalMaxSegments() {
+        return journalMaxSegments;
+    }
+
+    /** @return {@code true} if writes that do not change the symbol's value are not propagated */
+    public boolean isSuppressUnchanged() {
+        return suppressUnchanged;
+    }
+
+    /** @return {@code true} if unchanged references are detected with {@code equals} rather than identity */
+    public boolean isSuppressByEquals() {
+        return suppressByEquals;
+    }
+
+    /** @return {@code true} if propagations deliver the current value of the field, sequenced per field */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /** @return {@code true} if writes are only marked dirty until the evaluator syncs them */
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /** @return {@code true} if propagation should start in asynchronous mode */
+    public boolean isAsync() {
+        return async;
+    }
+
+    /** @return the per-stripe buffer size for asynchronous propagation */
+    public int getAsyncBufferSize() {
+        return asyncBufferSize;
+    }
+
+    /** @return the drain interval for asynchronous propagation, in nanoseconds */
+    public long getAsyncIntervalNanos() {
+        return asyncIntervalNanos;
+    }
+}
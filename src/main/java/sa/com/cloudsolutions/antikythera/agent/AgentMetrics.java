@@ -0,0 +1,390 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Write path metrics, exposed over JMX as {@value #OBJECT_NAME}.
+ *
+ * <p>The recording methods are called from {@link ReflectiveSetAdvice}, {@link Support} and
+ * {@link PropagationPlan} on application threads, so every counter is a {@link LongAdder}: threads increment
+ * their own cell and contention only shows up when the values are read. Reading is left to the management
+ * interface, which sums the cells on demand.</p>
+ *
+ * <h2>What is recorded</h2>
+ * <ul>
+ *   <li>Fast-path rejections, i.e. writes to classes without {@code instanceInterceptor}, but only after
+ *       {@link #setCountRejected(boolean)}. Those are most reflective writes in the JVM, so by default they
+ *       cost no more than the read of a flag.</li>
+ *   <li>Intercepted writes per field, for the top-N attributes, but only after
+ *       {@link #setCountIntercepted(boolean)}, which the agent calls when it registers the MXBean. Counts are
+ *       kept in an array indexed by {@link FieldIds field id}, so recording a write costs no name lookup and
+ *       shadowed fields stay apart. Fields with an id of {@link #MAX_TRACKED_FIELDS} or more are only counted
+ *       in total.</li>
+ *   <li>The outcome of each propagation (propagated, unresolved, suppressed as unchanged, or failed by
+ *       exception type) and, for
+ *       successful ones, the time spent in the evaluator in a log2 latency histogram.</li>
+ * </ul>
+ *
+ * <h2>Bootstrap Safety</h2>
+ * <p>Like the hooks that call it, this class lives on the bootstrap class path and avoids lambdas.</p>
+ */
+public final class AgentMetrics implements AgentMetricsMXBean {
+
+    /** Object name under which the metrics are registered with the platform MBean server. */
+    public static final String OBJECT_NAME = "sa.com.cloudsolutions.antikythera:type=AgentMetrics";
+
+    /** Upper bound on the field ids counted individually. */
+    static final int MAX_TRACKED_FIELDS = 4096;
+
+    private static final int MAX_TRACKED_FAILURE_TYPES = 256;
+    private static final String OTHER_FAILURE = "<other>";
+
+    private static final AgentMetrics INSTANCE = new AgentMetrics();
+
+    private static final LongAdder REJECTED = new LongAdder();
+    private static final LongAdder UNTRACKED = new LongAdder();
+    private static final LongAdder PROPAGATED = new LongAdder();
+    private static final LongAdder UNRESOLVED = new LongAdder();
+    private static final LongAdder SUPPRESSED = new LongAdder();
+    private static final LongAdder DEFERRED = new LongAdder();
+    private static final LongAdder FAILED = new LongAdder();
+    private static final LongAccumulator MAX_LATENCY = new LongAccumulator(new Max(), 0);
+    private static final LongAdder[] LATENCY = new LongAdder[64];
+
+    /** Write counts by field id, created on the first write to a field. */
+    private static final AtomicReferenceArray<LongAdder> WRITES = new AtomicReferenceArray<>(MAX_TRACKED_FIELDS);
+    private static final ConcurrentHashMap<String, LongAdder> FAILURES = new ConcurrentHashMap<>();
+
+    private static volatile int topN = 10;
+    private static volatile boolean countRejected;
+    private static volatile boolean countIntercepted;
+
+    static {
+        for (int i = 0; i < LATENCY.length; i++) {
+            LATENCY[i] = new LongAdder();
+        }
+    }
+
+    private AgentMetrics() {
+    }
+
+    /**
+     * @return the instance registered with the MBean server
+     */
+    public static AgentMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server unless an earlier installation already did.
+     * Public because the agent calls it from the application class loader, i.e. from another runtime package.
+     */
+    public static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(INSTANCE, name);
+            }
+        } catch (JMException | RuntimeException e) {
+            System.out.println("Failed to register agent metrics MBean: " + e.getMessage());
+        }
+    }
+
+    // ========== Recording ==========
+    // rejected() and intercepted() are public: ReflectiveSetAdvice is inlined into java.lang.reflect.Field.
+
+    /**
+     * Turns counting of intercepted writes per field on or off; it is off until turned on. Public because the
+     * agent calls it from the application class loader.
+     *
+     * @param enabled {@code true} to count writes to enrolled classes
+     */
+    public static void setCountIntercepted(boolean enabled) {
+        countIntercepted = enabled;
+    }
+
+    /**
+     * Turns counting of fast-path rejections on or off; it is off until turned on. Public because the agent
+     * calls it from the application class loader.
+     *
+     * @param enabled {@code true} to count writes to classes that are not enrolled
+     */
+    public static void setCountRejected(boolean enabled) {
+        countRejected = enabled;
+    }
+
+    /** A write was rejected because its target class is not enrolled. */
+    public static void rejected() {
+        if (countRejected) {
+            REJECTED.increment();
+        }
+    }
+
+    /** A write to an enrolled class is about to be propagated. */
+    public static void intercepted(int fieldId) {
+        if (!countIntercepted) {
+            return;
+        }
+        if (fieldId < 0 || fieldId >= MAX_TRACKED_FIELDS) {
+            UNTRACKED.increment();
+            return;
+        }
+        LongAdder count = WRITES.get(fieldId);
+        if (count == null) {
+            WRITES.compareAndSet(fieldId, null, new LongAdder());
+            count = WRITES.get(fieldId);
+        }
+        count.increment();
+    }
+
+    /** A write to an enrolled class, known by field name only, is about to be propagated. */
+    static void intercepted(Class<?> type, String fieldName) {
+        if (countIntercepted) {
+            intercepted(FieldIds.of(type, fieldName));
+        }
+    }
+
+    /** A write reached {@code Symbol.setValue}, which returned after the given time. */
+    static void propagated(long nanos) {
+        PROPAGATED.increment();
+        LATENCY[64 - Long.numberOfLeadingZeros(Math.max(0, nanos))].increment();
+        MAX_LATENCY.accumulate(nanos);
+    }
+
+    /** A write found no interceptor, evaluator or symbol to propagate to. */
+    static void unresolved() {
+        UNRESOLVED.increment();
+    }
+
+    /** A write was not propagated because the symbol already held the value, see {@link ChangeSuppression}. */
+    static void suppressed() {
+        SUPPRESSED.increment();
+    }
+
+    /** A write was only marked dirty, see {@link DirtyTracker}. */
+    static void deferred() {
+        DEFERRED.increment();
+    }
+
+    /** Propagating a write threw. */
+    static void failed(Throwable t) {
+        FAILED.increment();
+        String type = t.getClass().getName();
+        LongAdder count = FAILURES.get(type);
+        if (count == null) {
+            if (FAILURES.size() >= MAX_TRACKED_FAILURE_TYPES) {
+                type = OTHER_FAILURE;
+            }
+            count = new LongAdder();
+            LongAdder raced = FAILURES.putIfAbsent(type, count);
+            if (raced != null) {
+                count = raced;
+            }
+        }
+        count.increment();
+    }
+
+    // ========== Management Interface ==========
+
+    @Override
+    public long getRejectedWrites() {
+        return REJECTED.sum();
+    }
+
+    @Override
+    public long getInterceptedWrites() {
+        long total = UNTRACKED.sum();
+        for (int id = 0; id < WRITES.length(); id++) {
+            LongAdder count = WRITES.get(id);
+            if (count != null) {
+                total += count.sum();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long getPropagatedWrites() {
+        return PROPAGATED.sum();
+    }
+
+    @Override
+    public long getUnresolvedWrites() {
+        return UNRESOLVED.sum();
+    }
+
+    @Override
+    public long getSuppressedWrites() {
+        return SUPPRESSED.sum();
+    }
+
+    @Override
+    public long getDeferredWrites() {
+        return DEFERRED.sum();
+    }
+
+    @Override
+    public int getDeinstrumentedFields() {
+        return HotFieldProfiler.getDisabledCount();
+    }
+
+    @Override
+    public long getFailedPropagations() {
+        return FAILED.sum();
+    }
+
+    @Override
+    public Map<String, Long> getFailuresByType() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, LongAdder> entry : FAILURES.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return top(result, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Map<String, Long> getTopClasses() {
+        Map<String, Long> totals = new LinkedHashMap<>();
+        for (int id = 0; id < WRITES.length(); id++) {
+            LongAdder count = WRITES.get(id);
+            if (count != null) {
+                add(totals, FieldIds.ownerOf(id), count.sum());
+            }
+        }
+        return top(totals, topN);
+    }
+
+    @Override
+    public Map<String, Long> getTopFields() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int id = 0; id < WRITES.length(); id++) {
+            LongAdder count = WRITES.get(id);
+            if (count != null) {
+                // Keyed by declaring class, so a shadowed field is listed apart from the one it hides. Classes of
+                // the same name from different loaders add up.
+                add(counts, FieldIds.ownerOf(id) + "#" + FieldIds.nameOf(id), count.sum());
+            }
+        }
+        return top(counts, topN);
+    }
+
+    @Override
+    public long getUntrackedFieldWrites() {
+        return UNTRACKED.sum();
+    }
+
+    @Override
+    public int getTopN() {
+        return topN;
+    }
+
+    @Override
+    public void setTopN(int topN) {
+        AgentMetrics.topN = Math.max(1, topN);
+    }
+
+    @Override
+    public long[] getLatencyHistogram() {
+        long[] buckets = new long[LATENCY.length];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = LATENCY[i].sum();
+        }
+        return buckets;
+    }
+
+    @Override
+    public long getLatencyP50Nanos() {
+        return percentile(0.50);
+    }
+
+    @Override
+    public long getLatencyP99Nanos() {
+        return percentile(0.99);
+    }
+
+    @Override
+    public long getLatencyMaxNanos() {
+        return MAX_LATENCY.get();
+    }
+
+    @Override
+    public void reset() {
+        REJECTED.reset();
+        UNTRACKED.reset();
+        PROPAGATED.reset();
+        UNRESOLVED.reset();
+        SUPPRESSED.reset();
+        DEFERRED.reset();
+        FAILED.reset();
+        MAX_LATENCY.reset();
+        for (LongAdder bucket : LATENCY) {
+            bucket.reset();
+        }
+        for (int id = 0; id < WRITES.length(); id++) {
+            WRITES.set(id, null);
+        }
+        FAILURES.clear();
+    }
+
+    private long percentile(double fraction) {
+        long[] buckets = getLatencyHistogram();
+        long total = 0;
+        for (long count : buckets) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return i == 63 ? Long.MAX_VALUE : 1L << i;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static void add(Map<String, Long> counts, String key, long count) {
+        Long previous = counts.get(key);
+        counts.put(key, previous == null ? count : previous + count);
+    }
+
+    private static Map<String, Long> top(Map<String, Long> counts, int limit) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort(Collections.reverseOrder(Map.Entry.comparingByValue()));
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries) {
+            if (result.size() == limit) {
+                break;
+            }
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Accumulator function for the maximum latency, as a named class rather than a method reference.
+     */
+    private static final class Max implements LongBinaryOperator {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    }
+}
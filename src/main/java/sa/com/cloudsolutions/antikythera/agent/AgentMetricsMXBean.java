@@ -0,0 +1,74 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link AgentMetrics}, registered as {@value AgentMetrics#OBJECT_NAME}.
+ *
+ * <p>Counters are cumulative since agent start or the last {@link #reset()}. Top-N attributes are ordered by
+ * descending count when read locally; JMX clients receive them as tabular data.</p>
+ */
+public interface AgentMetricsMXBean {
+
+    /** @return writes rejected by the fast path because the target class is not enrolled, if counted at all */
+    long getRejectedWrites();
+
+    /** @return writes to enrolled classes that were handed to propagation, counted while the MXBean is registered */
+    long getInterceptedWrites();
+
+    /** @return writes that reached {@code Symbol.setValue} without throwing */
+    long getPropagatedWrites();
+
+    /** @return writes for which no interceptor, evaluator or symbol was found */
+    long getUnresolvedWrites();
+
+    /** @return writes not propagated because the symbol already held the written value */
+    long getSuppressedWrites();
+
+    /** @return writes only marked dirty in lazy mode; their propagation, if any, happens on sync */
+    long getDeferredWrites();
+
+    /** @return fields whose writes are no longer hooked because the evaluator never had a symbol for them */
+    int getDeinstrumentedFields();
+
+    /** @return propagations that threw, of any type */
+    long getFailedPropagations();
+
+    /** @return failed propagations keyed by the binary name of the exception thrown */
+    Map<String, Long> getFailuresByType();
+
+    /** @return the most written classes, as the name of the declaring class to intercepted write count */
+    Map<String, Long> getTopClasses();
+
+    /** @return the most written fields, as {@code Class#field} to intercepted write count */
+    Map<String, Long> getTopFields();
+
+    /** @return intercepted writes to fields with ids beyond the tracking limit, not in the top-N attributes */
+    long getUntrackedFieldWrites();
+
+    /** @return the number of entries reported by {@link #getTopClasses()} and {@link #getTopFields()} */
+    int getTopN();
+
+    /** @param topN the number of entries to report in the top-N attributes */
+    void setTopN(int topN);
+
+    /**
+     * Propagation latency histogram: element {@code i} counts propagations that took less than {@code 2^i}
+     * nanoseconds and at least {@code 2^(i-1)}.
+     *
+     * @return bucket counts
+     */
+    long[] getLatencyHistogram();
+
+    /** @return upper bound of the histogram bucket holding the median propagation latency, in nanoseconds */
+    long getLatencyP50Nanos();
+
+    /** @return upper bound of the histogram bucket holding the 99th percentile propagation latency, in nanoseconds */
+    long getLatencyP99Nanos();
+
+    /** @return the slowest propagation observed, in nanoseconds */
+    long getLatencyMaxNanos();
+
+    /** Clears every counter and the histogram. */
+    void reset();
+}
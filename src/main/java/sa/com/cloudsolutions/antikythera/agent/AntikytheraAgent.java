@@ -3,87 +3,363 @@ package sa.com.cloudsolutions.antikythera.agent;
 import net.bytebuddy.agent.ByteBuddyAgent;
 import net.bytebuddy.agent.builder.AgentBuilder;
 import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.matcher.ElementMatcher;
 import net.bytebuddy.matcher.ElementMatchers;
+import net.bytebuddy.pool.TypePool;
+import net.bytebuddy.utility.JavaModule;
 
+import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Paths;
+import java.security.ProtectionDomain;
 
 /**
  * Java agent that intercepts reflective field writes via java.lang.reflect.Field#set*(Object, ...)
- * and updates the corresponding Symbol in the EvaluationEngine if the target object has an
- * instanceInterceptor field.
+ * and direct PUTFIELD/PUTSTATIC writes in classes declaring an instanceInterceptor field, and updates
+ * the corresponding Symbol in the EvaluationEngine if the target object has an instanceInterceptor field.
  *
  * The agent can be installed via premain/agentmain or programmatically by calling initialize().
+ * Installation happens at most once per JVM, whichever of these entry points runs first.
  */
 public class AntikytheraAgent {
 
+    /** Advice woven into {@code MethodHandles.Lookup}, named for the same reason as the bootstrap classes. */
+    private static final String SETTER_HANDLE_ADVICE = "sa.com.cloudsolutions.antikythera.agent.SetterHandleAdvice";
+
+    /**
+     * Classes that must be visible from {@code java.lang.reflect.Field} once the advice is inlined into it.
+     * They are referenced by name so that they are not loaded by the application class loader first.
+     */
+    private static final String[] BOOTSTRAP_CLASSES = {
+            "sa.com.cloudsolutions.antikythera.agent.ReflectiveSetAdvice",
+            "sa.com.cloudsolutions.antikythera.agent.ReflectiveSetAdvice$LegacyFlag",
+            "sa.com.cloudsolutions.antikythera.agent.ReentrancyGuard",
+            "sa.com.cloudsolutions.antikythera.agent.InstallState",
+            "sa.com.cloudsolutions.antikythera.agent.PropagationPlan",
+            "sa.com.cloudsolutions.antikythera.agent.PropagationPlan$Resolver",
+            "sa.com.cloudsolutions.antikythera.agent.ChangeSuppression",
+            "sa.com.cloudsolutions.antikythera.agent.FieldIds",
+            "sa.com.cloudsolutions.antikythera.agent.FieldIds$Ids",
+            "sa.com.cloudsolutions.antikythera.agent.FieldLayout",
+            "sa.com.cloudsolutions.antikythera.agent.FieldLayout$Layouts",
+            "sa.com.cloudsolutions.antikythera.agent.DirtyTracker",
+            "sa.com.cloudsolutions.antikythera.agent.OrderedPropagation",
+            "sa.com.cloudsolutions.antikythera.agent.HotFieldProfiler",
+            "sa.com.cloudsolutions.antikythera.agent.HotFieldProfiler$Sites",
+            SETTER_HANDLE_ADVICE,
+            "sa.com.cloudsolutions.antikythera.agent.HandleWriteSupport",
+            "sa.com.cloudsolutions.antikythera.agent.HandleWriteSupport$OffsetTable",
+            "sa.com.cloudsolutions.antikythera.agent.FieldChangeListener",
+            "sa.com.cloudsolutions.antikythera.agent.Support",
+            "sa.com.cloudsolutions.antikythera.agent.AsyncPropagator",
+            "sa.com.cloudsolutions.antikythera.agent.AsyncPropagator$Batch",
+            "sa.com.cloudsolutions.antikythera.agent.AsyncPropagator$Stripe",
+            "sa.com.cloudsolutions.antikythera.agent.AsyncPropagator$WriteKey",
+            "sa.com.cloudsolutions.antikythera.agent.AsyncPropagator$Consumer",
+            "sa.com.cloudsolutions.antikythera.agent.AgentMetrics",
+            "sa.com.cloudsolutions.antikythera.agent.AgentMetrics$Max",
+            "sa.com.cloudsolutions.antikythera.agent.AgentMetricsMXBean",
+            "sa.com.cloudsolutions.antikythera.agent.FieldWriteEvent",
+            "sa.com.cloudsolutions.antikythera.agent.FieldWriteEvents",
+            "sa.com.cloudsolutions.antikythera.agent.WeakIdentityMap",
+            "sa.com.cloudsolutions.antikythera.agent.WeakIdentityMap$WeakKey",
+            "sa.com.cloudsolutions.antikythera.agent.WeakIdentityMap$Probe",
+            "sa.com.cloudsolutions.antikythera.agent.WriteJournal",
+            "sa.com.cloudsolutions.antikythera.agent.WriteJournal$ClassEntry",
+            "sa.com.cloudsolutions.antikythera.agent.WriteJournal$ClassIds",
+            "sa.com.cloudsolutions.antikythera.agent.WriteJournal$Segment"
+    };
+
+    private static volatile boolean installed;
+    private static volatile long attachNanos = -1;
+
     public static void premain(String agentArgs, Instrumentation inst) {
-        install(inst);
+        install(inst, AgentConfig.parse(agentArgs), System.nanoTime());
     }
 
     public static void agentmain(String agentArgs, Instrumentation inst) {
-        install(inst);
+        install(inst, AgentConfig.parse(agentArgs), System.nanoTime());
     }
 
     /**
      * Allows runtime installation without -javaagent by attaching a Byte Buddy agent to the current JVM
      * and then registering our transformers on the returned Instrumentation.
+     *
+     * <p>Configuration is taken from the {@code antikythera.agent.args} and {@code antikythera.agent.config}
+     * system properties, see {@link AgentConfig}. Calling this more than once, or after the agent was loaded
+     * through premain/agentmain, is a no-op.</p>
      */
     public static void initialize() {
-        Instrumentation inst = ByteBuddyAgent.install();
-        install(inst);
+        initialize(null);
     }
 
-    private static void install(Instrumentation inst) {
-        try {
-            // Manually append ReflectiveSetAdvice to bootstrap classloader
-            ClassFileLocator locator = ClassFileLocator.ForClassLoader.of(AntikytheraAgent.class.getClassLoader());
-            byte[] adviceClass = locator.locate(ReflectiveSetAdvice.class.getName()).resolve();
-
-            // Create a temporary JAR file containing the advice class
-            java.io.File tempJar = java.io.File.createTempFile("antikythera-agent-advice", ".jar");
-            tempJar.deleteOnExit();
-
-            try (java.util.jar.JarOutputStream jos = new java.util.jar.JarOutputStream(
-                    new java.io.FileOutputStream(tempJar))) {
-                java.util.jar.JarEntry entry = new java.util.jar.JarEntry(
-                        ReflectiveSetAdvice.class.getName().replace('.', '/') + ".class");
-                jos.putNextEntry(entry);
-                jos.write(adviceClass);
-                jos.closeEntry();
+    /**
+     * Same as {@link #initialize()}, with explicit settings in agent argument syntax.
+     *
+     * @param agentArgs settings as they would be passed to {@code -javaagent}, may be {@code null}
+     */
+    public static void initialize(String agentArgs) {
+        if (installed) {
+            return;
+        }
+        long start = System.nanoTime();
+        install(ByteBuddyAgent.install(), AgentConfig.parse(agentArgs), start);
+    }
+
+    /**
+     * @return {@code true} once the transformers are registered in this JVM
+     */
+    public static boolean isInstalled() {
+        return installed;
+    }
+
+    /**
+     * Time the first successful installation took, from entering premain/agentmain/initialize until all
+     * transformers were registered and already-loaded classes retransformed.
+     *
+     * @return the attach latency in nanoseconds, or {@code -1} if the agent is not installed
+     */
+    public static long getAttachNanos() {
+        return attachNanos;
+    }
+
+    private static synchronized void install(Instrumentation inst, AgentConfig config, long start) {
+        if (installed) {
+            return;
+        }
+        boolean provided = bootstrapAlreadyProvided();
+        if (provided && InstallState.isInstalled()) {
+            // Another copy of the agent (for example from a different class loader) already installed itself;
+            // weaving Field a second time would stack a second advice on every reflective write.
+            installed = true;
+            return;
+        }
+
+        ClassFileLocator locator = ClassFileLocator.ForClassLoader.of(AntikytheraAgent.class.getClassLoader());
+        if (!provided) {
+            try {
+                // Append the advice and its helpers to bootstrap classloader, reusing the jar of earlier runs
+                inst.appendToBootstrapClassLoaderSearch(BootstrapJar.of(locator, BOOTSTRAP_CLASSES,
+                        Paths.get(config.getBootstrapJarDirectory())));
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to inject ReflectiveSetAdvice into bootstrap classloader", e);
             }
+        }
+        // Otherwise an earlier attempt appended the jar and failed before it registered the transformers.
+
+        // Drop cached propagation plans whenever a class is redefined or retransformed.
+        inst.addTransformer(new PlanInvalidator(), true);
 
-            // Add to bootstrap classloader
-            inst.appendToBootstrapClassLoaderSearch(new java.util.jar.JarFile(tempJar));
+        if (config.isJmxEnabled()) {
+            AgentMetrics.register();
+            AgentMetrics.setCountRejected(config.isJmxRejectedCounted());
+            AgentMetrics.setCountIntercepted(true);
+        }
+        FieldWriteEvents.configure(config.getJfrSampleRate(), config.getJfrMaxEventsPerSecond());
+        ChangeSuppression.configure(config.isSuppressUnchanged(), config.isSuppressByEquals());
+        if (config.getJournalDirectory() != null) {
+            try {
+                WriteJournal.start(Paths.get(config.getJournalDirectory()), config.getJournalSegmentSize(),
+                        config.getJournalMaxSegments());
+            } catch (Exception e) {
+                System.out.println("Failed to start write journal: " + e.getMessage());
+            }
+        }
+        if (config.isOrdered()) {
+            OrderedPropagation.enable();
+        }
+        if (config.isLazy()) {
+            DirtyTracker.enable();
+        }
+        if (config.isAsync()) {
+            AsyncPropagator.enable(config.getAsyncBufferSize(), config.getAsyncIntervalNanos());
+        }
+        if (config.isReflectiveHookEnabled()) {
+            installReflectiveHook(inst, locator);
+        }
+        if (config.isHandleHookEnabled()) {
+            // Wrap method handle setters as they are looked up, and hook VarHandle/Unsafe call sites, including
+            // those of classes already loaded.
+            installAdvice(inst, locator, MethodHandles.Lookup.class, SETTER_HANDLE_ADVICE,
+                    ElementMatchers.named("findSetter").or(ElementMatchers.named("unreflectSetter")));
+            inst.addTransformer(new HandleWriteHook(config), true);
+            retransformHandleWriters(inst, config);
+        }
+        if (config.isBytecodeHookEnabled()) {
+            // Hook direct PUTFIELD/PUTSTATIC writes in enrolled classes, including those already loaded.
+            FieldWriteHook hook = new FieldWriteHook(config);
+            inst.addTransformer(hook, true);
+            retransformEnrolledClasses(inst, config, hook);
+            if (config.getDeinstrumentThreshold() > 0) {
+                HotFieldProfiler.setRetransformer(new Deinstrumenter(inst, config));
+                HotFieldProfiler.configure(config.getDeinstrumentThreshold());
+            }
+            if (Boolean.getBoolean("antikythera.agent.verbose")) {
+                System.out.println("Antikythera transform cache: " + hook.getCache().getHits() + " hits, "
+                        + hook.getCache().getMisses() + " misses");
+            }
+        }
 
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to inject ReflectiveSetAdvice into bootstrap classloader", e);
+        InstallState.markInstalled();
+        installed = true;
+        attachNanos = System.nanoTime() - start;
+        if (Boolean.getBoolean("antikythera.agent.verbose")) {
+            System.out.println("Antikythera agent attached in " + attachNanos / 1_000_000 + " ms");
         }
+    }
+
+    /**
+     * Weaves {@link ReflectiveSetAdvice} into the {@code set*} methods of {@code java.lang.reflect.Field}.
+     */
+    private static void installReflectiveHook(Instrumentation inst, ClassFileLocator locator) {
+        installAdvice(inst, locator, java.lang.reflect.Field.class, BOOTSTRAP_CLASSES[0],
+                ElementMatchers.named("set")
+                        .or(ElementMatchers.named("setBoolean"))
+                        .or(ElementMatchers.named("setByte"))
+                        .or(ElementMatchers.named("setChar"))
+                        .or(ElementMatchers.named("setShort"))
+                        .or(ElementMatchers.named("setInt"))
+                        .or(ElementMatchers.named("setLong"))
+                        .or(ElementMatchers.named("setFloat"))
+                        .or(ElementMatchers.named("setDouble")));
+    }
+
+    /**
+     * Weaves a bootstrap advice class into the given methods of an already loaded JDK class.
+     */
+    private static void installAdvice(Instrumentation inst, ClassFileLocator locator, Class<?> target,
+                                      String adviceClass, ElementMatcher<? super MethodDescription> methods) {
+        // Describe the advice from its class file rather than from a class literal: the literal now resolves
+        // to the bootstrap copy, from which the Byte Buddy annotations are not visible.
+        Advice advice = Advice.to(TypePool.Default.of(locator).describe(adviceClass).resolve(), locator);
 
         new AgentBuilder.Default()
                 .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+                // Retransform exactly the target instead of running the matchers against every loaded class.
+                .with(new AgentBuilder.RedefinitionStrategy.DiscoveryStrategy.Explicit(target))
                 .with(AgentBuilder.InitializationStrategy.NoOp.INSTANCE)
                 .with(AgentBuilder.TypeStrategy.Default.REDEFINE)
-                .ignore(ElementMatchers.none())
-                // Only instrument java.lang.reflect.Field for reflective field sets
-                .type(ElementMatchers.named("java.lang.reflect.Field"))
+                .with(new AgentBuilder.Listener.Adapter() {
+                    @Override
+                    public void onError(String typeName, ClassLoader classLoader, JavaModule module,
+                                        boolean loaded, Throwable throwable) {
+                        System.out.println("Failed to retransform " + typeName + ": " + throwable.getMessage());
+                    }
+                })
+                // Classes loaded later are rejected by name before any other matcher runs.
+                .ignore(ElementMatchers.not(ElementMatchers.named(target.getName())))
+                .type(ElementMatchers.named(target.getName()))
                 .transform((builder, typeDescription, classLoader, module, protectionDomain) ->
-                        builder.visit(Advice.to(ReflectiveSetAdvice.class).on(
-                                ElementMatchers.named("set")
-                                        .or(ElementMatchers.named("setBoolean"))
-                                        .or(ElementMatchers.named("setByte"))
-                                        .or(ElementMatchers.named("setChar"))
-                                        .or(ElementMatchers.named("setShort"))
-                                        .or(ElementMatchers.named("setInt"))
-                                        .or(ElementMatchers.named("setLong"))
-                                        .or(ElementMatchers.named("setFloat"))
-                                        .or(ElementMatchers.named("setDouble"))
-                        )))
+                        builder.visit(advice.on(methods)))
                 .installOn(inst);
+    }
+
+    /**
+     * Tells whether the bootstrap class path already serves the advice, i.e. an agent was installed before.
+     */
+    private static boolean bootstrapAlreadyProvided() {
         try {
-            inst.retransformClasses(java.lang.reflect.Field.class);
-        } catch (Exception e) {
-            System.out.println("Failed to retransform Field: " + e.getMessage());
+            Class.forName(BOOTSTRAP_CLASSES[0], false, null);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Retransforms application classes that were loaded before the agent and declare {@code instanceInterceptor},
+     * so that the field write hook also applies to them. Classes outside the configured scope, arrays and hidden
+     * classes are skipped without reflecting on them, and all matches are retransformed in one batch after the
+     * hook has instrumented them in parallel.
+     */
+    private static void retransformEnrolledClasses(Instrumentation inst, AgentConfig config, FieldWriteHook hook) {
+        java.util.List<Class<?>> enrolled = new java.util.ArrayList<>();
+        for (Class<?> type : inst.getAllLoadedClasses()) {
+            if (!isRetransformable(inst, config, type)) {
+                continue;
+            }
+            try {
+                for (java.lang.reflect.Field field : type.getDeclaredFields()) {
+                    if (field.getName().equals(PropagationPlan.INTERCEPTOR_FIELD)) {
+                        enrolled.add(type);
+                        break;
+                    }
+                }
+            } catch (Throwable e) {
+                // Unresolvable field types and the like: such a class cannot be enrolled anyway.
+            }
+        }
+        if (enrolled.isEmpty()) {
+            return;
+        }
+        hook.prepare(enrolled);
+        try {
+            retransform(inst, enrolled);
+        } finally {
+            hook.release();
+        }
+    }
+
+    /**
+     * Retransforms application classes that were loaded before the agent and call {@code VarHandle} or
+     * {@code Unsafe}, so that {@link HandleWriteHook} also applies to them. The constant pool is read from the
+     * class file the defining loader serves, so classes without such calls are never retransformed.
+     */
+    private static void retransformHandleWriters(Instrumentation inst, AgentConfig config) {
+        java.util.List<Class<?>> writers = new java.util.ArrayList<>();
+        for (Class<?> type : inst.getAllLoadedClasses()) {
+            if (isRetransformable(inst, config, type) && HandleWriteHook.referencesHandles(type)) {
+                writers.add(type);
+            }
+        }
+        if (!writers.isEmpty()) {
+            retransform(inst, writers);
+        }
+    }
+
+    /**
+     * @return {@code true} for loaded classes in the configured scope that can be retransformed; arrays and
+     *         hidden classes are skipped without reflecting on them
+     */
+    private static boolean isRetransformable(Instrumentation inst, AgentConfig config, Class<?> type) {
+        return !type.isArray() && !type.isHidden() && config.acceptsLoader(type.getClassLoader())
+                && config.acceptsClass(type.getName().replace('.', '/')) && inst.isModifiableClass(type);
+    }
+
+    /**
+     * Retransforms the classes in one batch, falling back to one class at a time so that a single bad class does
+     * not cost the whole batch.
+     */
+    private static void retransform(Instrumentation inst, java.util.List<Class<?>> classes) {
+        try {
+            inst.retransformClasses(classes.toArray(new Class<?>[0]));
+        } catch (Throwable batchFailure) {
+            for (Class<?> type : classes) {
+                try {
+                    inst.retransformClasses(type);
+                } catch (Throwable e) {
+                    System.out.println("Failed to retransform " + type.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Transformer that never changes bytecode; it only evicts the {@link PropagationPlan} of classes that
+     * are being redefined or retransformed so that the next write resolves them against the new definition.
+     */
+    private static class PlanInvalidator implements ClassFileTransformer {
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+            if (classBeingRedefined != null) {
+                PropagationPlan.invalidate(classBeingRedefined);
+            }
+            return null;
         }
     }
 }
@@ -0,0 +1,364 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Optional propagation mode that takes the evaluator off the writer's thread.
+ *
+ * <p>When enabled, {@link PropagationPlan#propagate(Object, String, Object)} only appends the write to a
+ * bounded buffer and returns. A background daemon thread drains the buffers in batches and pushes the values
+ * into the evaluator. Within a batch, repeated writes to the same (instance, field) pair are coalesced so that
+ * only the last value reaches {@code Symbol.setValue}; a field overwritten many times in a tight loop costs a
+ * single propagation.</p>
+ *
+ * <h2>Buffers</h2>
+ * <p>Buffers are striped by the identity of the object and the name of the field, like the locks of
+ * {@link OrderedPropagation}, rather than kept per thread: every write to one (instance, field) pair lands in
+ * the same buffer, in the order in which the writers reached it, whichever thread made them. Per-thread buffers
+ * would leave the order of two threads writing the same field to whichever buffer happened to be drained
+ * last.</p>
+ *
+ * <p>A writer holds its stripe's lock only to append the write. A writer that fills the batch of its stripe
+ * seals it, queues it on the stripe, wakes the consumer and starts a new batch, without running the evaluator.
+ * A stripe queues at most {@link #MAX_QUEUED_BATCHES} sealed batches. A writer that seals one more applies the
+ * queue itself, after the consumer has finished with the stripe, so an evaluator that falls behind slows the
+ * writers down instead of letting the buffers, and the objects they reference, grow without limit.</p>
+ *
+ * <h2>Flushing</h2>
+ * <p>{@link #flush()} is the barrier the evaluator calls before reading symbols: every write that
+ * happened-before the call has been propagated when it returns. The consumer and flushing threads drain a
+ * stripe under a second, per-stripe apply lock: they take its queued batches while holding it and apply them
+ * before releasing it, so the batches of a stripe reach the evaluator in order and an older value can never
+ * overwrite a newer one. Writers only take the apply lock when their stripe's queue is full, and different
+ * stripes are drained independently. Both locks are {@link ReentrantLock}s, because the evaluator runs while
+ * the apply lock is held and a monitor would pin a virtual thread.</p>
+ *
+ * <p>The mode is controlled with {@link #enable(int, long)} / {@link #disable()}; the agent calls them for the
+ * {@code async} settings of {@link AgentConfig}.</p>
+ */
+public final class AsyncPropagator {
+
+    /** Default number of writes a single stripe batches before handing them to the consumer. */
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /** Number of sealed batches a stripe queues for the consumer before its writers apply them themselves. */
+    static final int MAX_QUEUED_BATCHES = 4;
+
+    /** Default interval at which the consumer drains the buffers. */
+    public static final long DEFAULT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final Stripe[] STRIPES = createStripes();
+
+    /**
+     * Checked on every propagation; plain volatile read so that the synchronous path stays cheap.
+     */
+    static volatile boolean enabled;
+
+    private static volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+    private static volatile long intervalNanos = DEFAULT_INTERVAL_NANOS;
+    private static volatile Consumer consumer;
+
+    private AsyncPropagator() {
+    }
+
+    /**
+     * Switches to asynchronous propagation with default buffer size and drain interval.
+     */
+    public static void enable() {
+        enable(DEFAULT_BUFFER_SIZE, DEFAULT_INTERVAL_NANOS);
+    }
+
+    /**
+     * Switches to asynchronous propagation.
+     *
+     * @param size the number of writes a stripe batches before waking the consumer
+     * @param interval the time in nanoseconds the consumer waits between drains
+     */
+    public static synchronized void enable(int size, long interval) {
+        bufferSize = Math.max(1, size);
+        intervalNanos = Math.max(1, interval);
+        if (consumer == null) {
+            consumer = new Consumer();
+            consumer.start();
+        } else {
+            LockSupport.unpark(consumer);
+        }
+        enabled = true;
+    }
+
+    /**
+     * Returns to synchronous propagation after propagating everything that is still buffered. A writer that
+     * reaches its stripe after the flush has passed it sees the mode switched off and propagates synchronously,
+     * so no write is left behind in a buffer.
+     */
+    public static synchronized void disable() {
+        enabled = false;
+        if (consumer != null) {
+            consumer.interrupt();
+            consumer = null;
+        }
+        flush();
+    }
+
+    /**
+     * @return {@code true} if writes are currently buffered instead of being propagated synchronously
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Propagates every buffered write. When this method returns, all writes that happened-before the call
+     * are reflected in the evaluator's symbols.
+     */
+    public static void flush() {
+        for (Stripe stripe : STRIPES) {
+            drain(stripe);
+        }
+    }
+
+    /**
+     * Buffers a write for later propagation. Called on the writer's thread by {@link PropagationPlan}.
+     *
+     * @return {@code false} if the mode was switched off before the write reached its stripe; the caller then
+     *         propagates it synchronously
+     */
+    static boolean submit(Object target, int fieldId, String fieldName, Object value) {
+        Stripe stripe = STRIPES[stripe(target, fieldName)];
+        int queued;
+        stripe.lock.lock();
+        try {
+            if (!enabled) {
+                return false;
+            }
+            queued = stripe.add(target, fieldId, fieldName, value, bufferSize);
+        } finally {
+            stripe.lock.unlock();
+        }
+        if (queued > MAX_QUEUED_BATCHES) {
+            drain(stripe);
+        } else if (queued > 0) {
+            Consumer waiting = consumer;
+            if (waiting != null) LockSupport.unpark(waiting);
+        }
+        return true;
+    }
+
+    /**
+     * Applies the batches queued on a stripe. Taking them under the apply lock orders them after every batch
+     * an earlier drain took, even one still being applied on another thread.
+     */
+    private static void drain(Stripe stripe) {
+        stripe.applying.lock();
+        try {
+            Batch batch;
+            stripe.lock.lock();
+            try {
+                batch = stripe.take();
+            } finally {
+                stripe.lock.unlock();
+            }
+            for (; batch != null; batch = batch.next) {
+                apply(batch);
+            }
+        } finally {
+            stripe.applying.unlock();
+        }
+    }
+
+    /**
+     * Coalesces a batch and pushes the surviving writes into the evaluator. Must hold the stripe's apply lock.
+     */
+    private static void apply(Batch batch) {
+        if (batch.size == 0) return;
+
+        // Keep only the last write of each (instance, field) pair, preserving the order of the survivors.
+        Map<WriteKey, Integer> last = new HashMap<>(batch.size * 2);
+        for (int i = 0; i < batch.size; i++) {
+            last.put(new WriteKey(batch.targets[i], batch.ids[i], batch.fields[i]), i);
+        }
+
+        // A flush called from inside the evaluator is already inside the guard; exit(REENTRANT) leaves it there.
+        int token = ReentrancyGuard.enter();
+        try {
+            for (int i = 0; i < batch.size; i++) {
+                if (last.get(new WriteKey(batch.targets[i], batch.ids[i], batch.fields[i])) != i) continue;
+                try {
+                    PropagationPlan.apply(batch.targets[i], batch.ids[i], batch.fields[i], batch.values[i]);
+                } catch (Throwable ignore) {
+                    // One failing symbol must not prevent the rest of the batch from being applied.
+                }
+            }
+        } finally {
+            ReentrancyGuard.exit(token);
+        }
+    }
+
+    /**
+     * @return the number of sealed batches currently queued on all stripes
+     */
+    static int queuedBatches() {
+        int queued = 0;
+        for (Stripe stripe : STRIPES) {
+            stripe.lock.lock();
+            try {
+                queued += stripe.queued;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return queued;
+    }
+
+    private static Stripe[] createStripes() {
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() * 4) {
+            n <<= 1;
+        }
+        Stripe[] stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe();
+        }
+        return stripes;
+    }
+
+    /**
+     * Keyed by name rather than id, so that a field reported sometimes by id and sometimes by name alone stays
+     * in one stripe.
+     */
+    private static int stripe(Object target, String fieldName) {
+        int h = System.identityHashCode(target) ^ (fieldName.hashCode() * 0x9e3779b9);
+        return (h ^ (h >>> 16)) & (STRIPES.length - 1);
+    }
+
+    /**
+     * A snapshot of buffered writes, kept as parallel arrays to avoid one allocation per write. Sealed batches
+     * of a stripe are chained through {@link #next} in the order they were filled.
+     */
+    static final class Batch {
+        final Object[] targets;
+        final int[] ids;
+        final String[] fields;
+        final Object[] values;
+        int size;
+        Batch next;
+
+        Batch(int capacity) {
+            targets = new Object[capacity];
+            ids = new int[capacity];
+            fields = new String[capacity];
+            values = new Object[capacity];
+        }
+    }
+
+    /**
+     * One buffer shared by the (instance, field) pairs that hash to it. The batches are only used while holding
+     * {@link #lock}; {@link #applying} is held by whoever takes and applies them.
+     */
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final ReentrantLock applying = new ReentrantLock();
+        private Batch sealed;
+        private Batch last;
+        private Batch current;
+        private int queued;
+
+        /**
+         * @return the number of sealed batches queued on the stripe if the write filled the current batch, which
+         *         is now one of them, else {@code 0}
+         */
+        int add(Object target, int fieldId, String fieldName, Object value, int capacity) {
+            Batch batch = current;
+            if (batch == null) {
+                batch = current = new Batch(capacity);
+            }
+            int i = batch.size++;
+            batch.targets[i] = target;
+            batch.ids[i] = fieldId;
+            batch.fields[i] = fieldName;
+            batch.values[i] = value;
+            if (batch.size < batch.targets.length) {
+                return 0;
+            }
+            current = null;
+            if (last == null) {
+                sealed = batch;
+            } else {
+                last.next = batch;
+            }
+            last = batch;
+            return ++queued;
+        }
+
+        /**
+         * @return the queued batches followed by the current one, oldest first, or {@code null} if there are none
+         */
+        Batch take() {
+            Batch head = sealed;
+            if (current != null) {
+                if (last == null) {
+                    head = current;
+                } else {
+                    last.next = current;
+                }
+            }
+            sealed = last = current = null;
+            queued = 0;
+            return head;
+        }
+    }
+
+    /**
+     * Identity-based key for coalescing: two writes collapse only if they hit the same object and field. The id
+     * keeps apart shadowed fields that share a name.
+     */
+    private static final class WriteKey {
+        private final Object target;
+        private final int id;
+        private final String field;
+
+        WriteKey(Object target, int id, String field) {
+            this.target = target;
+            this.id = id;
+            this.field = field;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof WriteKey)) return false;
+            WriteKey other = (WriteKey) o;
+            return target == other.target && id == other.id && field.equals(other.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(target) * 31 + field.hashCode();
+        }
+    }
+
+    /**
+     * Background thread that drains all stripes at the configured interval, or as soon as a writer fills a batch.
+     */
+    private static final class Consumer extends Thread {
+        Consumer() {
+            super("antikythera-async-propagator");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            // A consumer replaced by disable() and enable() may wake up after its successor started; it leaves
+            // the stripes to that one.
+            while (!isInterrupted() && consumer == this) {
+                LockSupport.parkNanos(this, intervalNanos);
+                if (enabled && consumer == this) {
+                    flush();
+                }
+            }
+        }
+    }
+}
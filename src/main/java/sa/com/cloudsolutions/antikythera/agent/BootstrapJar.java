@@ -0,0 +1,218 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import net.bytebuddy.dynamic.ClassFileLocator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Packages the bootstrap-side classes of the agent into a jar that can be appended to the bootstrap class path.
+ *
+ * <p>The jar is content addressed: its file name carries a hash of the packaged class files, so every JVM that
+ * runs the same agent build reuses the same file instead of writing a fresh temporary jar on each attach. The
+ * file is written under a temporary name and atomically moved into place, which makes concurrent forks racing
+ * to create it harmless. It is deliberately not deleted on exit.</p>
+ *
+ * <p>Whatever is on the bootstrap class path runs as trusted code, and the file name is predictable, so a jar
+ * found under that name is only reused if it belongs to the current user, cannot be written by anyone else and
+ * holds exactly the expected class files. The directory itself must be a real directory, not a link, that only
+ * the current user can enter, or anyone else could swap the jar between the check and the JVM opening it again.
+ * Otherwise a private jar is written for this JVM alone. A directory created here is only accessible to the
+ * current user.</p>
+ *
+ * <p>The directory is {@link AgentConfig#getBootstrapJarDirectory()}. Jars of older agent builds are not
+ * deleted.</p>
+ */
+class BootstrapJar {
+
+    private static final Set<PosixFilePermission> FOREIGN_WRITE =
+            Set.of(PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE);
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+    private BootstrapJar() {
+    }
+
+    /**
+     * Returns the cached jar holding the given classes, creating it if this agent build has not written it yet.
+     *
+     * @param locator locator for the agent's own class files
+     * @param classNames binary names of the classes to package
+     * @param dir the directory to keep the jar in
+     * @return the jar, ready to be passed to {@code Instrumentation#appendToBootstrapClassLoaderSearch}
+     * @throws IOException if the class files cannot be read or the jar cannot be written
+     */
+    static JarFile of(ClassFileLocator locator, String[] classNames, Path dir) throws IOException {
+        byte[][] classes = new byte[classNames.length][];
+        MessageDigest digest = sha256();
+        for (int i = 0; i < classNames.length; i++) {
+            classes[i] = locator.locate(classNames[i]).resolve();
+            digest.update(classNames[i].getBytes(StandardCharsets.UTF_8));
+            digest.update(classes[i]);
+        }
+        byte[] expected = digest.digest();
+
+        createDirectory(dir);
+        if (!isPrivateDirectory(dir)) {
+            return privateJar(classNames, classes);
+        }
+        Path jar = dir.resolve("antikythera-agent-bootstrap-" + hex(expected, 16) + ".jar");
+        if (Files.exists(jar, LinkOption.NOFOLLOW_LINKS)) {
+            if (Files.isRegularFile(jar, LinkOption.NOFOLLOW_LINKS) && isPrivate(jar)
+                    && Arrays.equals(expected, digest(jar, classNames))) {
+                return new JarFile(jar.toFile());
+            }
+            return privateJar(classNames, classes);
+        }
+
+        Path partial = Files.createTempFile(dir, "antikythera-agent-bootstrap", ".tmp");
+        try {
+            write(partial, classNames, classes);
+            Files.move(partial, jar, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+        return new JarFile(jar.toFile());
+    }
+
+    /**
+     * Writes a jar that only this JVM uses, for when the shared one cannot be trusted.
+     */
+    private static JarFile privateJar(String[] classNames, byte[][] classes) throws IOException {
+        Path jar = Files.createTempFile("antikythera-agent-bootstrap", ".jar");
+        jar.toFile().deleteOnExit();
+        write(jar, classNames, classes);
+        return new JarFile(jar.toFile());
+    }
+
+    /**
+     * Creates the directory, accessible only to the current user where the file system supports POSIX permissions.
+     */
+    private static void createDirectory(Path dir) throws IOException {
+        if (Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        } else {
+            Files.createDirectories(dir);
+        }
+    }
+
+    /**
+     * @return {@code true} if the path is a directory, not a link to one, that belongs to the current user and that
+     *         no one else may read, write or enter; file systems without POSIX attributes only need a directory
+     */
+    static boolean isPrivateDirectory(Path dir) {
+        if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        PosixFileAttributeView view = Files.getFileAttributeView(dir, PosixFileAttributeView.class,
+                LinkOption.NOFOLLOW_LINKS);
+        if (view == null) {
+            return true;
+        }
+        try {
+            PosixFileAttributes attributes = view.readAttributes();
+            return attributes.owner().equals(currentUser(dir)) && OWNER_ONLY.containsAll(attributes.permissions());
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return {@code true} if the file belongs to the current user and no one else may write it; file systems
+     *         without POSIX attributes are left to the content check
+     */
+    static boolean isPrivate(Path file) {
+        PosixFileAttributeView view = Files.getFileAttributeView(file, PosixFileAttributeView.class,
+                LinkOption.NOFOLLOW_LINKS);
+        if (view == null) {
+            return true;
+        }
+        try {
+            PosixFileAttributes attributes = view.readAttributes();
+            return attributes.owner().equals(currentUser(file))
+                    && attributes.permissions().stream().noneMatch(FOREIGN_WRITE::contains);
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static UserPrincipal currentUser(Path path) throws IOException {
+        return path.getFileSystem().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+    }
+
+    /**
+     * Hashes the entries of an existing jar the same way as the class files it is expected to hold.
+     *
+     * @return the digest, or {@code null} if the jar has other entries or cannot be read
+     */
+    static byte[] digest(Path jar, String[] classNames) {
+        try (JarFile file = new JarFile(jar.toFile())) {
+            if (file.size() != classNames.length) {
+                return null;
+            }
+            MessageDigest digest = sha256();
+            for (String className : classNames) {
+                JarEntry entry = file.getJarEntry(className.replace('.', '/') + ".class");
+                if (entry == null) {
+                    return null;
+                }
+                try (InputStream in = file.getInputStream(entry)) {
+                    digest.update(className.getBytes(StandardCharsets.UTF_8));
+                    digest.update(in.readAllBytes());
+                }
+            }
+            return digest.digest();
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+
+    private static void write(Path path, String[] classNames, byte[][] classes) throws IOException {
+        try (OutputStream out = Files.newOutputStream(path); JarOutputStream jos = new JarOutputStream(out)) {
+            for (int i = 0; i < classNames.length; i++) {
+                JarEntry entry = new JarEntry(classNames[i].replace('.', '/') + ".class");
+                entry.setTime(0);
+                jos.putNextEntry(entry);
+                jos.write(classes[i]);
+                jos.closeEntry();
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by every Java platform", e);
+        }
+    }
+
+    private static String hex(byte[] bytes, int length) {
+        StringBuilder sb = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16)).append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,106 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+/**
+ * Skips propagation of writes that do not change the value a symbol already holds.
+ *
+ * <p>Data binding and entity hydration routinely set fields to the value they already have. With suppression
+ * enabled, {@link PropagationPlan} reads the symbol's current value through its {@code getValue()} before
+ * calling {@code setValue}, and stops if the two are the same. Suppressed writes are counted by
+ * {@link AgentMetrics}; the others are reported, with their previous value, to the registered
+ * {@link FieldChangeListener}.</p>
+ *
+ * <h2>Comparison</h2>
+ * <ul>
+ *   <li>Boxed primitives are compared by their primitive value, without calling {@code equals}. Floating
+ *       point values are compared by their raw bits, as the field stores them, so {@code NaN} equals
+ *       {@code NaN} and {@code -0.0} differs from {@code 0.0}.</li>
+ *   <li>Other references are compared by identity, or with {@code equals} when configured. {@code equals}
+ *       runs application code on the write path, so it is opt-in; an {@code equals} that throws counts as a
+ *       change.</li>
+ * </ul>
+ * <p>A symbol without {@code getValue()} cannot be compared, so writes to it are always propagated. Their
+ * previous value is unknown, so they are not reported to the listener either.</p>
+ *
+ * <h2>Bootstrap Safety</h2>
+ * <p>Called from {@link PropagationPlan}, so this class lives on the bootstrap class path. The agent configures
+ * it from the application class loader, hence the public methods.</p>
+ */
+public final class ChangeSuppression {
+
+    static volatile boolean enabled;
+    private static volatile boolean byEquality;
+    private static volatile FieldChangeListener listener;
+
+    private ChangeSuppression() {
+    }
+
+    /**
+     * @param suppress whether unchanged writes are suppressed
+     * @param useEquals whether references other than boxed primitives are compared with {@code equals}
+     *                  rather than by identity
+     */
+    public static void configure(boolean suppress, boolean useEquals) {
+        byEquality = useEquals;
+        enabled = suppress;
+    }
+
+    /**
+     * @return {@code true} if unchanged writes are suppressed
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Registers the listener told about writes that changed a symbol, replacing any previous one.
+     *
+     * @param changes the listener, or {@code null} to remove it
+     */
+    public static void setListener(FieldChangeListener changes) {
+        listener = changes;
+    }
+
+    /**
+     * @param current the symbol's value before the write
+     * @param value the value written
+     * @return {@code true} if propagating {@code value} would not change the symbol
+     */
+    static boolean unchanged(Object current, Object value) {
+        if (current == value) return true;
+        if (current == null || value == null) return false;
+
+        Class<?> type = value.getClass();
+        if (type != current.getClass()) return false;
+        if (type == Integer.class) return ((Integer) current).intValue() == ((Integer) value).intValue();
+        if (type == Long.class) return ((Long) current).longValue() == ((Long) value).longValue();
+        if (type == Boolean.class) return ((Boolean) current).booleanValue() == ((Boolean) value).booleanValue();
+        if (type == Double.class) {
+            return Double.doubleToRawLongBits((Double) current) == Double.doubleToRawLongBits((Double) value);
+        }
+        if (type == Float.class) {
+            return Float.floatToRawIntBits((Float) current) == Float.floatToRawIntBits((Float) value);
+        }
+        if (type == Character.class) return ((Character) current).charValue() == ((Character) value).charValue();
+        if (type == Short.class) return ((Short) current).shortValue() == ((Short) value).shortValue();
+        if (type == Byte.class) return ((Byte) current).byteValue() == ((Byte) value).byteValue();
+        if (!byEquality) return false;
+        try {
+            return current.equals(value);
+        } catch (Throwable ignore) {
+            return false;
+        }
+    }
+
+    /**
+     * Tells the listener, if any, that a write changed a symbol.
+     */
+    static void changed(Object target, String fieldName, Object oldValue, Object newValue) {
+        FieldChangeListener changes = listener;
+        if (changes == null) return;
+        try {
+            changes.changed(target, fieldName, oldValue, newValue);
+        } catch (Throwable ignore) {
+            // A failing listener must not turn a successful propagation into a failed one.
+        }
+    }
+}
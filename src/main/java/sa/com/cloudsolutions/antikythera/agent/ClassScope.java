@@ -0,0 +1,130 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Include/exclude name prefixes compiled into a character trie.
+ *
+ * <p>A name is decided by the longest configured prefix it starts with, so {@code com.acme.} can be included
+ * while {@code com.acme.generated.} is excluded again. A prefix that is both included and excluded counts as
+ * excluded. Names that match no prefix are accepted only if no include prefix was configured at all.</p>
+ *
+ * <p>Matching walks the name once, one trie node per character, and stops at the first character that leaves
+ * the trie; the cost is bounded by the length of the longest prefix rather than by the number of prefixes. The
+ * trie is flattened into arrays after construction and never changes, so it can be queried from any thread,
+ * including from inside a {@code ClassFileTransformer} while classes are being loaded.</p>
+ *
+ * <p>Prefixes are given in binary-name form ({@code com.acme.}) and matched against either binary names or the
+ * internal names ({@code com/acme/}) that transformers receive, as chosen when the scope is compiled.</p>
+ */
+final class ClassScope {
+
+    private static final byte NONE = 0;
+    private static final byte INCLUDE = 1;
+    private static final byte EXCLUDE = 2;
+
+    /** Sorted outgoing characters of each node. */
+    private final char[][] labels;
+    /** Child node index for each entry of {@link #labels}. */
+    private final int[][] children;
+    /** Verdict of the prefix ending at each node, {@link #NONE} if no prefix ends there. */
+    private final byte[] verdicts;
+    private final boolean acceptUnmatched;
+
+    private ClassScope(char[][] labels, int[][] children, byte[] verdicts, boolean acceptUnmatched) {
+        this.labels = labels;
+        this.children = children;
+        this.verdicts = verdicts;
+        this.acceptUnmatched = acceptUnmatched;
+    }
+
+    /**
+     * Compiles a scope.
+     *
+     * @param includes prefixes to include; when empty, every name not excluded is accepted
+     * @param excludes prefixes to exclude
+     * @param internalNames {@code true} to match names of the form {@code com/acme/Foo}
+     * @return the compiled scope
+     */
+    static ClassScope compile(List<String> includes, List<String> excludes, boolean internalNames) {
+        List<Node> nodes = new ArrayList<>();
+        nodes.add(new Node());
+        for (String prefix : includes) {
+            insert(nodes, prefix, internalNames, INCLUDE);
+        }
+        for (String prefix : excludes) {
+            insert(nodes, prefix, internalNames, EXCLUDE);
+        }
+
+        int n = nodes.size();
+        char[][] labels = new char[n][];
+        int[][] children = new int[n][];
+        byte[] verdicts = new byte[n];
+        for (int i = 0; i < n; i++) {
+            Node node = nodes.get(i);
+            labels[i] = new char[node.next.size()];
+            children[i] = new int[node.next.size()];
+            int j = 0;
+            for (var edge : node.next.entrySet()) {
+                labels[i][j] = edge.getKey();
+                children[i][j++] = edge.getValue();
+            }
+            verdicts[i] = node.verdict;
+        }
+        return new ClassScope(labels, children, verdicts, includes.isEmpty());
+    }
+
+    private static void insert(List<Node> nodes, String prefix, boolean internalNames, byte verdict) {
+        String key = internalNames ? prefix.replace('.', '/') : prefix;
+        int node = 0;
+        for (int i = 0; i < key.length(); i++) {
+            Node current = nodes.get(node);
+            Integer next = current.next.get(key.charAt(i));
+            if (next == null) {
+                next = nodes.size();
+                nodes.add(new Node());
+                current.next.put(key.charAt(i), next);
+            }
+            node = next;
+        }
+        Node last = nodes.get(node);
+        if (last.verdict != EXCLUDE) {
+            last.verdict = verdict;
+        }
+    }
+
+    /**
+     * @param name a class name in the form chosen at compile time
+     * @return {@code true} if the name is in scope
+     */
+    boolean accepts(String name) {
+        byte verdict = verdicts[0];
+        int node = 0;
+        for (int i = 0, length = name.length(); i < length; i++) {
+            char[] out = labels[node];
+            if (out.length == 0) {
+                break;
+            }
+            int edge = Arrays.binarySearch(out, name.charAt(i));
+            if (edge < 0) {
+                break;
+            }
+            node = children[node][edge];
+            if (verdicts[node] != NONE) {
+                verdict = verdicts[node];
+            }
+        }
+        return verdict == NONE ? acceptUnmatched : verdict == INCLUDE;
+    }
+
+    /**
+     * Mutable trie node used only while compiling.
+     */
+    private static final class Node {
+        final TreeMap<Character, Integer> next = new TreeMap<>();
+        byte verdict = NONE;
+    }
+}
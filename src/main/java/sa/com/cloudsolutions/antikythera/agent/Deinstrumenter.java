@@ -0,0 +1,68 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.lang.instrument.Instrumentation;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Retransformer registered with {@link HotFieldProfiler}: retransforms a class whose hook for a field is being
+ * removed or restored, so that {@link FieldWriteHook} runs again against the current set of disabled fields.
+ *
+ * <p>The profiler passes the classes the hook has run in, which are the classes executing the write rather than
+ * those of the objects written to. Classes that cannot be retransformed, or that are out of scope, are left
+ * alone.</p>
+ *
+ * <p>Requests arrive on the writing thread, in the middle of a propagation; they are handed to a single daemon
+ * thread so that the writer never waits for a retransformation, and a class already waiting is not queued
+ * twice.</p>
+ */
+final class Deinstrumenter implements Consumer<Class<?>> {
+
+    private final Instrumentation inst;
+    private final AgentConfig config;
+    private final Set<Class<?>> pending = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "antikythera-deinstrumenter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    Deinstrumenter(Instrumentation inst, AgentConfig config) {
+        this.inst = inst;
+        this.config = config;
+    }
+
+    @Override
+    public void accept(Class<?> type) {
+        if (pending.add(type)) {
+            executor.execute(() -> {
+                pending.remove(type);
+                retransform(type);
+            });
+        }
+    }
+
+    private void retransform(Class<?> type) {
+        if (!inst.isModifiableClass(type) || !config.acceptsLoader(type.getClassLoader())
+                || !config.acceptsClass(type.getName().replace('.', '/')) || !declaresInterceptor(type)) {
+            return;
+        }
+        try {
+            inst.retransformClasses(type);
+        } catch (Throwable e) {
+            System.out.println("Failed to retransform " + type.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private static boolean declaresInterceptor(Class<?> type) {
+        try {
+            type.getDeclaredField(PropagationPlan.INTERCEPTOR_FIELD);
+            return true;
+        } catch (NoSuchFieldException | RuntimeException e) {
+            return false;
+        }
+    }
+}
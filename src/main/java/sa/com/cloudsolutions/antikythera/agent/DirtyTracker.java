@@ -0,0 +1,194 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Optional propagation mode that defers every write until the evaluator asks for it.
+ *
+ * <p>When enabled, {@link PropagationPlan#propagate(Object, int, Object)} does not call into the evaluator at all.
+ * It only sets the bit of the written field in a small bitset attached to the target instance. The evaluator
+ * calls {@link #sync(Object)} (or {@link #sync(Object, String)}, {@link #syncAll()}) before it reads symbols; the
+ * current values of the dirty fields are then read from the instance and propagated, and the bits are cleared.
+ * A field written many times between two syncs costs one propagation, and a field never read back by the
+ * evaluator costs none.</p>
+ *
+ * <h2>Layout</h2>
+ * <p>The bit of a field is its index in the {@link FieldLayout} of the class. Bitsets are held in a
+ * {@link WeakIdentityMap}, so they neither call the application's {@code equals}/{@code hashCode} nor keep
+ * instances alive. Fields the agent cannot read (for example in a module that is not open) are propagated
+ * eagerly as before.</p>
+ *
+ * <h2>Semantics</h2>
+ * <p>Values are read at sync time, so the evaluator sees the latest value of each field rather than every
+ * intermediate one, and writes on other threads become visible on the next sync like any racy read.
+ * {@link WriteJournal} recording is unaffected: it still records every write as it happens.</p>
+ *
+ * <h2>Bootstrap Safety</h2>
+ * <p>Called from {@link PropagationPlan} and from evaluators in any class loader, so this class lives on the
+ * bootstrap class path, is public, and avoids lambdas.</p>
+ */
+public final class DirtyTracker {
+
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private static final WeakIdentityMap<long[]> DIRTY = new WeakIdentityMap<>();
+
+    /**
+     * Checked on every propagation; plain volatile read so that the eager path stays cheap.
+     */
+    static volatile boolean enabled;
+
+    private DirtyTracker() {
+    }
+
+    /**
+     * Switches to lazy propagation: from now on writes are only marked dirty.
+     */
+    public static void enable() {
+        enabled = true;
+    }
+
+    /**
+     * Returns to eager propagation after syncing every instance that still has dirty fields.
+     */
+    public static void disable() {
+        enabled = false;
+        syncAll();
+    }
+
+    /**
+     * @return {@code true} if writes are marked dirty instead of being propagated
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Marks a field of {@code target} dirty. Called on the writer's thread by {@link PropagationPlan}.
+     *
+     * @return {@code false} if the field has no place in the layout of the target class and must be propagated
+     *         eagerly
+     */
+    static boolean mark(Object target, int fieldId, String fieldName) {
+        FieldLayout layout = FieldLayout.of(target.getClass());
+        int index = layout.indexOf(fieldId, fieldName);
+        if (index < 0) {
+            return false;
+        }
+        long[] words = DIRTY.get(target);
+        if (words == null) {
+            words = new long[(layout.size() + 63) >>> 6];
+            long[] raced = DIRTY.putIfAbsent(target, words);
+            if (raced != null) {
+                words = raced;
+            }
+        }
+        long mask = 1L << index;
+        // Repeated writes of a dirty field only read the word; the atomic update is paid once per sync.
+        if (((long) WORDS.getOpaque(words, index >>> 6) & mask) == 0) {
+            WORDS.getAndBitwiseOr(words, index >>> 6, mask);
+        }
+        AgentMetrics.deferred();
+        return true;
+    }
+
+    /**
+     * Tells whether a field was written since the last sync of its instance.
+     *
+     * @param target the instance
+     * @param fieldName the name of the field, resolved like {@code getField(String)}: the most derived declaration
+     * @return {@code true} if a sync would propagate the field
+     */
+    public static boolean isDirty(Object target, String fieldName) {
+        long[] words = DIRTY.get(target);
+        if (words == null) {
+            return false;
+        }
+        int index = FieldLayout.of(target.getClass()).indexOf(FieldIds.UNKNOWN, fieldName);
+        return index >= 0 && ((long) WORDS.getVolatile(words, index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * Propagates the current value of every dirty field of {@code target} and clears them.
+     *
+     * @param target the instance whose symbols are about to be read
+     * @return the number of fields propagated
+     */
+    public static int sync(Object target) {
+        long[] words = DIRTY.get(target);
+        if (words == null) {
+            return 0;
+        }
+        FieldLayout layout = FieldLayout.of(target.getClass());
+        int synced = 0;
+        int token = ReentrancyGuard.enter();
+        try {
+            for (int w = 0; w < words.length; w++) {
+                long bits = (long) WORDS.getAndSet(words, w, 0L);
+                while (bits != 0) {
+                    int index = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    synced += apply(target, layout, index);
+                }
+            }
+        } finally {
+            ReentrancyGuard.exit(token);
+        }
+        return synced;
+    }
+
+    /**
+     * Propagates the current value of one field of {@code target} if it is dirty.
+     *
+     * @param target the instance
+     * @param fieldName the name of the field whose symbol is about to be read
+     * @return {@code 1} if the field was dirty and propagated, {@code 0} otherwise
+     */
+    public static int sync(Object target, String fieldName) {
+        long[] words = DIRTY.get(target);
+        if (words == null) {
+            return 0;
+        }
+        FieldLayout layout = FieldLayout.of(target.getClass());
+        int index = layout.indexOf(FieldIds.UNKNOWN, fieldName);
+        if (index < 0) {
+            return 0;
+        }
+        long mask = 1L << index;
+        if (((long) WORDS.getAndBitwiseAnd(words, index >>> 6, ~mask) & mask) == 0) {
+            return 0;
+        }
+        int token = ReentrancyGuard.enter();
+        try {
+            return apply(target, layout, index);
+        } finally {
+            ReentrancyGuard.exit(token);
+        }
+    }
+
+    /**
+     * Syncs every instance with dirty fields.
+     *
+     * @return the number of fields propagated
+     */
+    public static int syncAll() {
+        int synced = 0;
+        for (Object target : DIRTY.keys()) {
+            synced += sync(target);
+        }
+        return synced;
+    }
+
+    /**
+     * Reads one field and propagates it; a failure is recorded by {@link PropagationPlan} and suppressed.
+     */
+    private static int apply(Object target, FieldLayout layout, int index) {
+        try {
+            PropagationPlan.apply(target, layout.id(index), layout.name(index), layout.read(target, index));
+            return 1;
+        } catch (Throwable ignore) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+/**
+ * Receives the writes that actually changed a symbol's value while {@link ChangeSuppression} is enabled.
+ *
+ * <p>The listener is called on the propagating thread (the writer's, or the {@link AsyncPropagator}'s) after
+ * {@code setValue} returned, inside the agent's recursion guard: field writes it performs are not propagated.
+ * Exceptions it throws are suppressed.</p>
+ */
+public interface FieldChangeListener {
+
+    /**
+     * @param target the object whose field was written
+     * @param fieldName the name of the field
+     * @param oldValue the symbol's value before the write
+     * @param newValue the value written
+     */
+    void changed(Object target, String fieldName, Object oldValue, Object newValue);
+}
@@ -0,0 +1,191 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of integer ids for fields, keyed by the class that declares the field and the field name.
+ *
+ * <p>Ids are small, dense and assigned on first sight: when an instrumented write is first linked (see
+ * {@link #fieldId}), by {@link ReflectiveSetAdvice} on the first reflective write, or by an evaluator calling
+ * {@link #of(Class, String)} while it builds its symbol table. An id never changes for the lifetime of the JVM,
+ * so an evaluator can keep its symbols in an array indexed by id and answer {@code getField(int)} without
+ * hashing a name.</p>
+ *
+ * <p>Ids are keyed by {@link Class}, through a {@link ClassValue}, rather than by class name: two classes of
+ * the same name defined by different class loaders have different fields and get different ids. Because the
+ * declaring class is part of the key, a field that shadows a field of the same name in a superclass gets its
+ * own id.</p>
+ *
+ * <h2>Declaring Classes</h2>
+ * <p>Bytecode names a field through the class it was accessed through, which is not always the class that
+ * declares it: {@code sub.x = 1} compiles to {@code PUTFIELD Sub.x} even when {@code x} is declared in
+ * {@code Base}. {@link #of(Class, String)} therefore walks up from the class it is given to the one declaring
+ * the field, the way the JVM resolves the instruction, and remembers the answer under both classes. Every path
+ * that reports a write ends up with the same id for the same field.</p>
+ *
+ * <h2>Bootstrap Safety</h2>
+ * <p>Used by the callbacks and by evaluators in any class loader, so this class lives on the bootstrap class
+ * path, is public, and avoids lambdas.</p>
+ */
+public final class FieldIds {
+
+    /** Id passed along writes whose field is only known by name. */
+    public static final int UNKNOWN = -1;
+
+    private static final Ids IDS = new Ids();
+    private static final Object LOCK = new Object();
+
+    /** Declaring class and field names by id; replaced by larger copies as ids are added, under {@link #LOCK}. */
+    private static volatile String[] owners = new String[256];
+    private static volatile String[] names = new String[256];
+    private static int count;
+
+    private FieldIds() {
+    }
+
+    /**
+     * Returns the id of a field, assigning the next free id if the field has none yet.
+     *
+     * @param type the class declaring the field, or a subclass the field is accessed through
+     * @param fieldName the name of the field
+     * @return the id, keyed by the class declaring the field; never negative
+     */
+    public static int of(Class<?> type, String fieldName) {
+        Integer id = IDS.get(type).get(fieldName);
+        return id != null ? id : assign(type, fieldName);
+    }
+
+    /**
+     * @param field a field
+     * @return the id of the field, keyed by its declaring class
+     */
+    public static int of(Field field) {
+        return of(field.getDeclaringClass(), field.getName());
+    }
+
+    /**
+     * Bootstrap method of the dynamic constants {@link FieldWriteHook} loads in place of field ids. Ids differ
+     * from one JVM to the next, so instrumented class files name the field and let the JVM resolve the id once,
+     * when the write is first executed; the result is a constant from then on.
+     *
+     * @param lookup the lookup of the instrumented class, whose loader resolves {@code className}
+     * @param fieldName the name of the constant, which is the name of the field
+     * @param type {@code int.class}
+     * @param className the binary name of the class the write accesses the field through
+     * @return the id of the field
+     */
+    public static int fieldId(MethodHandles.Lookup lookup, String fieldName, Class<?> type, String className) {
+        Class<?> writer = lookup.lookupClass();
+        Class<?> owner;
+        try {
+            owner = Class.forName(className, false, writer.getClassLoader());
+        } catch (ClassNotFoundException | LinkageError e) {
+            // The write itself resolves the class through the same loader and would fail just the same.
+            owner = writer;
+        }
+        int id = of(owner, fieldName);
+        if (HotFieldProfiler.enabled) {
+            HotFieldProfiler.hooked(id, writer, className, fieldName);
+        }
+        return id;
+    }
+
+    /**
+     * Looks up the id of a field without assigning one.
+     *
+     * @param type the class declaring the field, or a subclass the field is accessed through
+     * @param fieldName the name of the field
+     * @return the id, or {@link #UNKNOWN} if the field has none yet
+     */
+    static int find(Class<?> type, String fieldName) {
+        Integer id = IDS.get(type).get(fieldName);
+        if (id == null) {
+            id = IDS.get(declaring(type, fieldName)).get(fieldName);
+        }
+        return id == null ? UNKNOWN : id;
+    }
+
+    /**
+     * @param id a field id
+     * @return the name of the field
+     */
+    public static String nameOf(int id) {
+        return names[id];
+    }
+
+    /**
+     * @param id a field id
+     * @return the binary name of the class declaring the field
+     */
+    public static String ownerOf(int id) {
+        return owners[id];
+    }
+
+    /**
+     * @return the number of ids assigned so far; every id is below this bound
+     */
+    public static int count() {
+        synchronized (LOCK) {
+            return count;
+        }
+    }
+
+    private static int assign(Class<?> type, String fieldName) {
+        Class<?> declaring = declaring(type, fieldName);
+        synchronized (LOCK) {
+            ConcurrentHashMap<String, Integer> fields = IDS.get(declaring);
+            Integer id = fields.get(fieldName);
+            if (id == null) {
+                int next = count;
+                if (next == names.length) {
+                    owners = Arrays.copyOf(owners, next * 2);
+                    names = Arrays.copyOf(names, next * 2);
+                }
+                owners[next] = declaring.getName();
+                names[next] = fieldName;
+                count = next + 1;
+                id = next;
+                // The map is what makes the id visible; its put happens-after the writes above.
+                fields.put(fieldName, id);
+            }
+            if (declaring != type) {
+                IDS.get(type).put(fieldName, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Walks up from {@code type} to the class declaring {@code fieldName}.
+     *
+     * @return the declaring class, or {@code type} itself when the field cannot be found from it
+     */
+    private static Class<?> declaring(Class<?> type, String fieldName) {
+        try {
+            for (Class<?> t = type; t != null; t = t.getSuperclass()) {
+                for (Field field : t.getDeclaredFields()) {
+                    if (field.getName().equals(fieldName)) {
+                        return t;
+                    }
+                }
+            }
+        } catch (RuntimeException | LinkageError ignore) {
+            // A class whose fields cannot be listed keeps the fields it is asked about.
+        }
+        return type;
+    }
+
+    /**
+     * Ids of the fields known under a class, by name. Named class rather than a lambda, as elsewhere on the
+     * bootstrap path.
+     */
+    private static final class Ids extends ClassValue<ConcurrentHashMap<String, Integer>> {
+        @Override
+        protected ConcurrentHashMap<String, Integer> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    }
+}
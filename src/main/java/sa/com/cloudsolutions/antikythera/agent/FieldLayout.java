@@ -0,0 +1,110 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The instance fields of a class and its superclasses, each with its {@link FieldIds id} and a getter, so that
+ * the agent can read a field back from the object it was written to.
+ *
+ * <p>Fields are listed from the class itself up to its root, so that a lookup by name finds the most derived
+ * declaration first, like {@code getField(String)} on the evaluator side. {@code instanceInterceptor}, static
+ * fields and fields the agent cannot make accessible are left out. Layouts are computed once per class and held
+ * in a {@link ClassValue}.</p>
+ *
+ * <p>Used by {@link DirtyTracker} and {@link OrderedPropagation}; lives on the bootstrap class path and avoids
+ * lambdas.</p>
+ */
+@SuppressWarnings("java:S3011")
+final class FieldLayout {
+
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final Layouts LAYOUTS = new Layouts();
+
+    private final int[] ids;
+    private final String[] names;
+    private final MethodHandle[] getters;
+
+    private FieldLayout(int[] ids, String[] names, MethodHandle[] getters) {
+        this.ids = ids;
+        this.names = names;
+        this.getters = getters;
+    }
+
+    /**
+     * @return the layout of {@code type}
+     */
+    static FieldLayout of(Class<?> type) {
+        return LAYOUTS.get(type);
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return the index of the field, or {@code -1}; by id when known, otherwise by name
+     */
+    int indexOf(int fieldId, String fieldName) {
+        if (fieldId != FieldIds.UNKNOWN) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == fieldId) return i;
+            }
+            return -1;
+        }
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(fieldName)) return i;
+        }
+        return -1;
+    }
+
+    int id(int index) {
+        return ids[index];
+    }
+
+    String name(int index) {
+        return names[index];
+    }
+
+    /**
+     * @return the current value of the field, boxed if primitive
+     */
+    Object read(Object target, int index) throws Throwable {
+        return (Object) getters[index].invokeExact(target);
+    }
+
+    private static final class Layouts extends ClassValue<FieldLayout> {
+        @Override
+        protected FieldLayout computeValue(Class<?> type) {
+            List<Field> fields = new ArrayList<>();
+            List<MethodHandle> getters = new ArrayList<>();
+            for (Class<?> t = type; t != null && t != Object.class; t = t.getSuperclass()) {
+                for (Field field : t.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())
+                            || field.getName().equals(PropagationPlan.INTERCEPTOR_FIELD)) {
+                        continue;
+                    }
+                    try {
+                        field.setAccessible(true);
+                        getters.add(MethodHandles.lookup().unreflectGetter(field).asType(GETTER));
+                        fields.add(field);
+                    } catch (ReflectiveOperationException | RuntimeException e) {
+                        // Unreadable fields are left out; callers fall back to the written value.
+                    }
+                }
+            }
+            int[] ids = new int[fields.size()];
+            String[] names = new String[fields.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = FieldIds.of(fields.get(i));
+                names[i] = fields.get(i).getName();
+            }
+            return new FieldLayout(ids, names, getters.toArray(new MethodHandle[0]));
+        }
+    }
+}
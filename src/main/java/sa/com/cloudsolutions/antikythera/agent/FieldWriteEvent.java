@@ -0,0 +1,47 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event describing one propagated field write. The event duration is the time spent
+ * propagating the value into the evaluator.
+ *
+ * <p>Instances are only created through {@link FieldWriteEvents}, which applies sampling and throttling.</p>
+ */
+@Name(FieldWriteEvent.NAME)
+@Label("Field Write")
+@Category({"Antikythera", "Agent"})
+@Description("A field write propagated by the Antikythera agent")
+@StackTrace(false)
+public final class FieldWriteEvent extends Event {
+
+    /** Event type name to enable in recording settings, e.g. {@code jfr configure} or {@code Recording#enable}. */
+    public static final String NAME = "sa.com.cloudsolutions.antikythera.FieldWrite";
+
+    @Label("Target Class")
+    Class<?> targetClass;
+
+    @Label("Field Name")
+    String fieldName;
+
+    @Label("Value Type")
+    @Description("Runtime class of the written value, or of its box for primitive fields; null for null values")
+    Class<?> valueType;
+
+    @Label("Symbol Found")
+    @Description("Whether an interceptor, evaluator and symbol were found to receive the value")
+    boolean symbolFound;
+
+    @Label("Failed")
+    @Description("Whether the evaluator or symbol threw while receiving the value")
+    boolean failed;
+
+    @Label("Suppressed")
+    @Description("Whether propagation was skipped because the symbol already held the value")
+    boolean suppressed;
+}
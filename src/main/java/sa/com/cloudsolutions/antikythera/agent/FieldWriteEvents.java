@@ -0,0 +1,115 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import jdk.jfr.EventType;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emits {@link FieldWriteEvent}s for {@link PropagationPlan} with sampling and throttling.
+ *
+ * <h2>Cost</h2>
+ * <p>When no recording has the event enabled, {@link #begin()} is a single {@link EventType#isEnabled()}
+ * check and no event object is created. When it is enabled, two filters keep millions of writes per second
+ * from flooding the recording:</p>
+ * <ul>
+ *   <li><b>Sampling</b> - only one write in {@code sampleRate}, picked with {@link ThreadLocalRandom}, is
+ *       considered.</li>
+ *   <li><b>Throttling</b> - at most {@code maxEventsPerSecond} sampled writes are recorded per window of
+ *       about one second (2<sup>30</sup> ns), counted with a single CAS on a packed window/count word.</li>
+ * </ul>
+ *
+ * <p>Both default to every write, at most 1000 events per second, and are set with
+ * {@link #configure(int, long)} or the {@code jfr.sampleRate} / {@code jfr.maxEventsPerSecond} agent settings.</p>
+ *
+ * <h2>Bootstrap Safety</h2>
+ * <p>Lives on the bootstrap class path next to {@link PropagationPlan}. If the runtime was linked without the
+ * {@code jdk.jfr} module, events are never emitted.</p>
+ */
+public final class FieldWriteEvents {
+
+    private static final long WINDOW_SHIFT = 30;
+    private static final int COUNT_BITS = 24;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private static final EventType TYPE = ModuleLayer.boot().findModule("jdk.jfr").isPresent()
+            ? EventType.getEventType(FieldWriteEvent.class) : null;
+
+    /** Current window in the high bits, events recorded in it in the low {@link #COUNT_BITS} bits. */
+    private static final AtomicLong WINDOW = new AtomicLong();
+
+    private static volatile int sampleRate = 1;
+    private static volatile long maxEventsPerSecond = 1000;
+
+    private FieldWriteEvents() {
+    }
+
+    /**
+     * Sets the sampling and throttling parameters.
+     *
+     * @param rate record one in {@code rate} writes; values below 2 consider every write
+     * @param maxPerSecond upper bound on events per second; zero or negative for no limit
+     */
+    public static void configure(int rate, long maxPerSecond) {
+        sampleRate = Math.max(1, rate);
+        maxEventsPerSecond = maxPerSecond <= 0 ? COUNT_MASK : Math.min(maxPerSecond, COUNT_MASK);
+    }
+
+    /**
+     * Starts timing a propagation if it is to be recorded.
+     *
+     * @return the started event, or {@code null} if this write is not recorded
+     */
+    static FieldWriteEvent begin() {
+        if (TYPE == null || !TYPE.isEnabled()) {
+            return null;
+        }
+        int rate = sampleRate;
+        if (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0) {
+            return null;
+        }
+        if (!acquire()) {
+            return null;
+        }
+        FieldWriteEvent event = new FieldWriteEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Completes and commits an event returned by {@link #begin()}.
+     */
+    static void commit(FieldWriteEvent event, Object target, String fieldName, Object value,
+                       boolean symbolFound, boolean failed, boolean suppressed) {
+        event.end();
+        event.targetClass = target.getClass();
+        event.fieldName = fieldName;
+        event.valueType = value == null ? null : value.getClass();
+        event.symbolFound = symbolFound;
+        event.failed = failed;
+        event.suppressed = suppressed;
+        event.commit();
+    }
+
+    /**
+     * Takes one event from the budget of the current window.
+     */
+    private static boolean acquire() {
+        long window = System.nanoTime() >>> WINDOW_SHIFT;
+        long max = maxEventsPerSecond;
+        while (true) {
+            long state = WINDOW.get();
+            long next;
+            if (state >>> COUNT_BITS != window) {
+                next = (window << COUNT_BITS) | 1;
+            } else if ((state & COUNT_MASK) >= max) {
+                return false;
+            } else {
+                next = state + 1;
+            }
+            if (WINDOW.compareAndSet(state, next)) {
+                return true;
+            }
+        }
+    }
+}
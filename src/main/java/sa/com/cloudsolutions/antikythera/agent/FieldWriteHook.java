@@ -0,0 +1,377 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+import org.objectweb.asm.commons.Method;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.invoke.MethodHandles;
+import java.security.ProtectionDomain;
+import java.util.List;
+
+/**
+ * Bytecode field write hook for classes that declare an {@code instanceInterceptor} field.
+ *
+ * <p>After every {@code PUTFIELD} or {@code PUTSTATIC} executed inside an instance method (or inside a
+ * constructor once the super constructor has returned) a call to one of the typed {@link Support} callbacks
+ * is injected. The callback receives the object that owns the field, the {@link FieldIds id} of the field and
+ * the value that was just written:</p>
+ * <ul>
+ *   <li>{@code PUTFIELD} reports the actual owner of the field, which may be an object other than {@code this}.</li>
+ *   <li>{@code PUTSTATIC} reports {@code this}, as there is no owning instance.</li>
+ *   <li>Primitive values go to the matching {@code Support.afterSetXxx} entry point so that they are never
+ *       boxed in the instrumented code; references go to {@link Support#afterSet(Object, int, Object)}.</li>
+ *   <li>The id is loaded as a dynamic constant resolved by {@link FieldIds#fieldId} the first time the write
+ *       runs, so the callback neither loads nor hashes a field name. Class files older than Java 11 cannot
+ *       hold dynamic constants, and an id assigned during the transformation could not tell apart classes of
+ *       the same name in different loaders; they report the field by name instead.</li>
+ * </ul>
+ *
+ * <p>Writes to {@code instanceInterceptor} itself are not reported, mirroring {@link ReflectiveSetAdvice}, and
+ * neither are writes to fields that {@link HotFieldProfiler} has disabled, once a class that has run their hook
+ * is retransformed.</p>
+ *
+ * <p>The hook is written against plain ASM rather than Byte Buddy's relocated copy because it relies on
+ * {@link AdviceAdapter} to tell when {@code this} has been initialized inside a constructor.</p>
+ */
+public class FieldWriteHook implements ClassFileTransformer {
+
+    private static final Type SUPPORT = Type.getType(Support.class);
+
+    private static final Handle FIELD_ID = new Handle(Opcodes.H_INVOKESTATIC, Type.getInternalName(FieldIds.class),
+            "fieldId", Type.getMethodDescriptor(Type.INT_TYPE, Type.getType(MethodHandles.Lookup.class),
+            Type.getType(String.class), Type.getType(Class.class), Type.getType(String.class)), false);
+
+    /** Major version of Java 11 class files, the first to support dynamic constants. */
+    private static final int CONDY_VERSION = 55;
+
+    private final AgentConfig config;
+    private final TransformCache cache;
+
+    /**
+     * Creates a hook that considers every class outside the JDK and the agent's dependencies.
+     */
+    public FieldWriteHook() {
+        this(AgentConfig.defaults());
+    }
+
+    /**
+     * Creates a hook restricted to the classes and class loaders in scope of the given configuration.
+     *
+     * @param config the agent configuration
+     */
+    public FieldWriteHook(AgentConfig config) {
+        this(config, TransformCache.create(config));
+    }
+
+    FieldWriteHook(AgentConfig config, TransformCache cache) {
+        this.config = config;
+        this.cache = cache;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        // Out-of-scope classes are rejected by name before their class file is parsed; JDK classes never carry
+        // the marker field and the bootstrap loader is reported as null.
+        if (className == null || !config.acceptsLoader(loader) || !config.acceptsClass(className)) {
+            return null;
+        }
+        try {
+            ClassReader reader = new ClassReader(classfileBuffer);
+            if (!declaresInterceptor(reader)) {
+                return null;
+            }
+            // Cached class files hook every field, so they cannot stand in when a class that has run the hook of
+            // a disabled field is retransformed.
+            boolean complete = classBeingRedefined == null || HotFieldProfiler.getDisabledCount() == 0;
+            String key = cache.isActive() && isCacheable(reader) && complete ? cache.key(classfileBuffer) : null;
+            if (key != null) {
+                byte[] cached = cache.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            byte[] transformed = instrument(reader, classBeingRedefined);
+            if (key != null) {
+                cache.put(key, transformed);
+            }
+            return transformed;
+        } catch (RuntimeException e) {
+            // Never fail class loading because of the agent; the class simply stays uninstrumented.
+            return null;
+        }
+    }
+
+    /**
+     * Instruments the class files of already loaded classes in parallel, ahead of their retransformation.
+     * {@link java.lang.instrument.Instrumentation#retransformClasses} runs transformers one class at a time on
+     * the calling thread; with the results held by the cache until {@link #release()}, it only serves hits.
+     *
+     * <p>Class files are read from the defining loader. A class whose bytes differ from its resource, for
+     * example because another agent changed it, simply misses and is instrumented during retransformation.</p>
+     *
+     * @param classes enrolled classes about to be retransformed
+     */
+    void prepare(List<Class<?>> classes) {
+        cache.retain();
+        classes.parallelStream().forEach(type -> {
+            byte[] original = classFile(type);
+            if (original == null) {
+                return;
+            }
+            try {
+                ClassReader reader = new ClassReader(original);
+                if (!isCacheable(reader)) {
+                    return;
+                }
+                String key = cache.key(original);
+                if (cache.get(key) == null) {
+                    cache.put(key, instrument(reader, null));
+                }
+            } catch (RuntimeException e) {
+                // Left to the retransformation, which is just as fail-safe.
+            }
+        });
+    }
+
+    /**
+     * Drops the classes held in memory by {@link #prepare(List)}; entries on disk are kept.
+     */
+    void release() {
+        cache.release();
+    }
+
+    /**
+     * @return the cache consulted before instrumenting a class
+     */
+    TransformCache getCache() {
+        return cache;
+    }
+
+    private static byte[] instrument(ClassReader reader, Class<?> hooked) {
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(createFieldWriteHook(writer, hooked), ClassReader.EXPAND_FRAMES);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Only class files that load ids as dynamic constants are independent of the JVM that instrumented them.
+     */
+    private static boolean isCacheable(ClassReader reader) {
+        return reader.readUnsignedShort(6) >= CONDY_VERSION;
+    }
+
+    /**
+     * @return the class file of a loaded class as its defining loader serves it, or {@code null} if it has none
+     */
+    static byte[] classFile(Class<?> type) {
+        ClassLoader loader = type.getClassLoader();
+        if (loader == null) {
+            return null;
+        }
+        try (InputStream in = loader.getResourceAsStream(type.getName().replace('.', '/') + ".class")) {
+            return in == null ? null : in.readAllBytes();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates the class visitor that injects the write callbacks into every instance method and constructor.
+     * The class reader feeding it must use {@link ClassReader#EXPAND_FRAMES}.
+     *
+     * @param cv the visitor that receives the instrumented class
+     * @return a visitor applying the field write hook
+     */
+    public static ClassVisitor createFieldWriteHook(ClassVisitor cv) {
+        return createFieldWriteHook(cv, null);
+    }
+
+    /**
+     * Creates the class visitor for a class being retransformed, which leaves out the writes to fields that
+     * {@link HotFieldProfiler} has disabled for it.
+     *
+     * @param cv the visitor that receives the instrumented class
+     * @param hooked the loaded class being retransformed, or {@code null} to hook every write
+     * @return a visitor applying the field write hook
+     */
+    static ClassVisitor createFieldWriteHook(ClassVisitor cv, Class<?> hooked) {
+        return new ClassVisitor(Opcodes.ASM9, cv) {
+            private boolean condy;
+
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName,
+                              String[] interfaces) {
+                condy = (version & 0xffff) >= CONDY_VERSION;
+                super.visit(version, access, name, signature, superName, interfaces);
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor,
+                                             String signature, String[] exceptions) {
+                MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+                if (mv == null || (access & (Opcodes.ACC_STATIC | Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+                    return mv;
+                }
+                return new WriteCallbackInjector(mv, access, name, descriptor, condy, hooked);
+            }
+        };
+    }
+
+    /**
+     * Scans only the field table to decide whether the class is enrolled.
+     */
+    static boolean declaresInterceptor(ClassReader reader) {
+        boolean[] found = new boolean[1];
+        reader.accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+                if (PropagationPlan.INTERCEPTOR_FIELD.equals(name)) {
+                    found[0] = true;
+                }
+                return null;
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return found[0];
+    }
+
+    /**
+     * Returns the {@link Support} callback matching the type of the written field.
+     *
+     * @param keyType {@code int} for the callbacks taking a field id, {@code String} for those taking a name
+     */
+    static Method callbackFor(Type fieldType, Type keyType) {
+        String name;
+        Type valueType = fieldType;
+        switch (fieldType.getSort()) {
+            case Type.BOOLEAN: name = "afterSetBoolean"; break;
+            case Type.BYTE: name = "afterSetByte"; break;
+            case Type.CHAR: name = "afterSetChar"; break;
+            case Type.SHORT: name = "afterSetShort"; break;
+            case Type.INT: name = "afterSetInt"; break;
+            case Type.LONG: name = "afterSetLong"; break;
+            case Type.FLOAT: name = "afterSetFloat"; break;
+            case Type.DOUBLE: name = "afterSetDouble"; break;
+            default:
+                name = "afterSet";
+                valueType = Type.getType(Object.class);
+        }
+        return new Method(name, Type.VOID_TYPE, new Type[]{Type.getType(Object.class), keyType, valueType});
+    }
+
+    /**
+     * Injects the callback after each field write. {@link AdviceAdapter#onMethodEnter()} fires at the start
+     * of ordinary methods and right after the super constructor call in constructors, which is exactly the
+     * point from which {@code this} may be passed to another method.
+     */
+    private static class WriteCallbackInjector extends AdviceAdapter {
+        private final boolean condy;
+        private final Class<?> hooked;
+        private boolean initialized;
+        private int longLocal = -1;
+        private int doubleLocal = -1;
+
+        WriteCallbackInjector(MethodVisitor mv, int access, String name, String descriptor, boolean condy,
+                              Class<?> hooked) {
+            super(Opcodes.ASM9, mv, access, name, descriptor);
+            this.condy = condy;
+            this.hooked = hooked;
+        }
+
+        @Override
+        protected void onMethodEnter() {
+            initialized = true;
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+            boolean write = opcode == PUTFIELD || opcode == PUTSTATIC;
+            if (!initialized || !write || PropagationPlan.INTERCEPTOR_FIELD.equals(name)
+                    || HotFieldProfiler.isDisabled(hooked, Type.getObjectType(owner).getClassName(), name)) {
+                super.visitFieldInsn(opcode, owner, name, descriptor);
+                return;
+            }
+
+            Type type = Type.getType(descriptor);
+            Method callback = callbackFor(type, condy ? Type.INT_TYPE : Type.getType(String.class));
+            if (opcode == PUTFIELD) {
+                if (type.getSize() == 1) {
+                    // [obj, value] -> [obj, value, obj, value] -> put -> [obj, value] -> [obj, id, value]
+                    dup2();
+                    super.visitFieldInsn(opcode, owner, name, descriptor);
+                    pushId(owner, name);
+                    swap();
+                } else {
+                    // Wide values cannot be shuffled under the owner cheaply, so park them in a local.
+                    int value = wideLocal(type);
+                    storeLocal(value, type);
+                    dup();
+                    loadLocal(value, type);
+                    super.visitFieldInsn(opcode, owner, name, descriptor);
+                    pushId(owner, name);
+                    loadLocal(value, type);
+                }
+            } else {
+                if (type.getSize() == 1) {
+                    // [value] -> [value, value] -> put -> [value] -> [this, value] -> [this, id, value]
+                    dup();
+                    super.visitFieldInsn(opcode, owner, name, descriptor);
+                    loadThis();
+                    swap();
+                    pushId(owner, name);
+                    swap();
+                } else {
+                    int value = wideLocal(type);
+                    storeLocal(value, type);
+                    loadLocal(value, type);
+                    super.visitFieldInsn(opcode, owner, name, descriptor);
+                    loadThis();
+                    pushId(owner, name);
+                    loadLocal(value, type);
+                }
+            }
+            invokeStatic(SUPPORT, callback);
+        }
+
+        private void pushId(String owner, String name) {
+            if (condy) {
+                mv.visitLdcInsn(new ConstantDynamic(name, "I", FIELD_ID, Type.getObjectType(owner).getClassName()));
+            } else {
+                push(name);
+            }
+        }
+
+        /**
+         * The scratch locals never hold a value across a branch, so every frame of the original code, including
+         * those at merge points that a hooked write only reaches on some paths, declares them unset.
+         */
+        @Override
+        protected void updateNewLocals(Object[] newLocals) {
+            if (longLocal >= 0) newLocals[longLocal] = Opcodes.TOP;
+            if (doubleLocal >= 0) newLocals[doubleLocal] = Opcodes.TOP;
+        }
+
+        /**
+         * One scratch local per wide type is enough: it is only live between the store and the callback.
+         */
+        private int wideLocal(Type type) {
+            if (type.getSort() == Type.LONG) {
+                if (longLocal < 0) longLocal = newLocal(type);
+                return longLocal;
+            }
+            if (doubleLocal < 0) doubleLocal = newLocal(type);
+            return doubleLocal;
+        }
+    }
+}
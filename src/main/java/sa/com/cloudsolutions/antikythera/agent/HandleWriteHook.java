@@ -0,0 +1,211 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Call site hook for field writes through {@code VarHandle} and {@code Unsafe}.
+ *
+ * <p>Unlike {@link FieldWriteHook}, which instruments the enrolled classes themselves, this hook instruments
+ * the classes that do the writing: serializers, mappers and other libraries in scope. Every call to
+ * {@code VarHandle.set}, {@code setVolatile}, {@code setRelease} or {@code setOpaque} with a receiver and a
+ * value, and every {@code Unsafe.put*(Object, long, value)} of {@code sun.misc.Unsafe} or
+ * {@code jdk.internal.misc.Unsafe}, is followed by the matching {@link HandleWriteSupport} callback:</p>
+ * <ul>
+ *   <li>The original call is kept as it is, including its exact signature-polymorphic descriptor, so the JIT
+ *       still sees a constant var handle or an intrinsic {@code Unsafe} call.</li>
+ *   <li>The value (and the offset) are parked in scratch locals so the receiver can be duplicated under them.</li>
+ *   <li>Static field and array element accesses have a different shape and are left alone.</li>
+ * </ul>
+ *
+ * <p>Classes whose constant pool mentions neither type are rejected without visiting their code. Classes that
+ * were loaded before the agent and do mention one are retransformed when the hook is installed.</p>
+ */
+public class HandleWriteHook implements ClassFileTransformer {
+
+    private static final String VAR_HANDLE = "java/lang/invoke/VarHandle";
+    private static final Set<String> UNSAFE = Set.of("sun/misc/Unsafe", "jdk/internal/misc/Unsafe");
+    private static final Set<String> VAR_HANDLE_SETTERS = Set.of("set", "setVolatile", "setRelease", "setOpaque");
+
+    private static final Type CALLBACKS = Type.getType(HandleWriteSupport.class);
+    private static final Type OBJECT = Type.getType(Object.class);
+
+    private final AgentConfig config;
+
+    /**
+     * @param config the agent configuration, whose class and loader scope applies to the writing classes
+     */
+    public HandleWriteHook(AgentConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (className == null || !config.acceptsLoader(loader) || !config.acceptsClass(className)) {
+            return null;
+        }
+        try {
+            ClassReader reader = new ClassReader(classfileBuffer);
+            if (!referencesHandles(reader)) {
+                return null;
+            }
+            ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+            reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor,
+                                                 String signature, String[] exceptions) {
+                    MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+                    if (mv == null || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+                        return mv;
+                    }
+                    return new CallSiteInjector(mv, access, name, descriptor);
+                }
+            }, ClassReader.EXPAND_FRAMES);
+            return writer.toByteArray();
+        } catch (RuntimeException e) {
+            // Never fail class loading because of the agent; the class simply stays uninstrumented.
+            return null;
+        }
+    }
+
+    /**
+     * Scans the constant pool for a class reference to {@code VarHandle} or {@code Unsafe}.
+     */
+    static boolean referencesHandles(ClassReader reader) {
+        char[] buffer = new char[reader.getMaxStringLength()];
+        for (int i = 1; i < reader.getItemCount(); i++) {
+            int offset = reader.getItem(i);
+            // The second slot of a long or double constant has no offset.
+            if (offset == 0 || reader.readByte(offset - 1) != 7) {
+                continue;
+            }
+            String name = reader.readUTF8(offset, buffer);
+            if (VAR_HANDLE.equals(name) || UNSAFE.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether an already loaded class may write through var handles or {@code Unsafe}, judging by the class
+     * file its defining loader serves.
+     */
+    static boolean referencesHandles(Class<?> type) {
+        byte[] classFile = FieldWriteHook.classFile(type);
+        try {
+            return classFile != null && referencesHandles(new ClassReader(classFile));
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the callback type for a written value: primitives as they are, everything else as {@code Object}.
+     */
+    private static Type callbackType(Type valueType) {
+        int sort = valueType.getSort();
+        return sort == Type.OBJECT || sort == Type.ARRAY ? OBJECT : valueType;
+    }
+
+    /**
+     * Injects the callback after each matching call. One scratch local per value type, plus one for the offset,
+     * is enough: they are only live between the store and the callback.
+     */
+    private static class CallSiteInjector extends GeneratorAdapter {
+        private final int[] scratch = new int[Type.METHOD];
+        private int offsetLocal = -1;
+
+        CallSiteInjector(MethodVisitor mv, int access, String name, String descriptor) {
+            super(Opcodes.ASM9, mv, access, name, descriptor);
+            Arrays.fill(scratch, -1);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            if (opcode == Opcodes.INVOKEVIRTUAL && isVarHandleSet(owner, name, descriptor)) {
+                Type value = Type.getArgumentTypes(descriptor)[1];
+                int local = scratch(value);
+                // [vh, obj, value] -> [vh, obj] -> [vh, obj, vh, obj, value] -> set -> [vh, obj, value]
+                storeLocal(local, value);
+                dup2();
+                loadLocal(local, value);
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                loadLocal(local, value);
+                invokeStatic(CALLBACKS, new Method("afterVarHandleSet", Type.VOID_TYPE,
+                        new Type[]{Type.getObjectType(VAR_HANDLE), OBJECT, callbackType(value)}));
+                return;
+            }
+            if (opcode == Opcodes.INVOKEVIRTUAL && isUnsafePut(owner, name, descriptor)) {
+                Type value = Type.getArgumentTypes(descriptor)[2];
+                int valueLocal = scratch(value);
+                int offset = offsetLocal();
+                // [u, obj, offset, value] -> [u, obj] -> [u, obj, u, obj, offset, value] -> put -> [obj, offset, value]
+                storeLocal(valueLocal, value);
+                storeLocal(offset, Type.LONG_TYPE);
+                dup2();
+                loadLocal(offset, Type.LONG_TYPE);
+                loadLocal(valueLocal, value);
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                swap();
+                pop();
+                loadLocal(offset, Type.LONG_TYPE);
+                loadLocal(valueLocal, value);
+                invokeStatic(CALLBACKS, new Method("afterUnsafePut", Type.VOID_TYPE,
+                        new Type[]{OBJECT, Type.LONG_TYPE, callbackType(value)}));
+                return;
+            }
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+
+        /**
+         * No scratch local holds a value across a branch, so the frames of the original code declare them unset;
+         * otherwise a rewritten call inside a branch would make the merge point fail verification.
+         */
+        @Override
+        protected void updateNewLocals(Object[] newLocals) {
+            for (int local : scratch) {
+                if (local >= 0) newLocals[local] = Opcodes.TOP;
+            }
+            if (offsetLocal >= 0) newLocals[offsetLocal] = Opcodes.TOP;
+        }
+
+        private int scratch(Type type) {
+            Type localType = callbackType(type);
+            int sort = localType.getSort();
+            if (scratch[sort] < 0) scratch[sort] = newLocal(localType);
+            return scratch[sort];
+        }
+
+        private int offsetLocal() {
+            if (offsetLocal < 0) offsetLocal = newLocal(Type.LONG_TYPE);
+            return offsetLocal;
+        }
+
+        private static boolean isVarHandleSet(String owner, String name, String descriptor) {
+            if (!VAR_HANDLE.equals(owner) || !VAR_HANDLE_SETTERS.contains(name)) return false;
+            Type[] arguments = Type.getArgumentTypes(descriptor);
+            return arguments.length == 2 && arguments[0].getSort() == Type.OBJECT
+                    && Type.getReturnType(descriptor) == Type.VOID_TYPE;
+        }
+
+        private static boolean isUnsafePut(String owner, String name, String descriptor) {
+            if (!UNSAFE.contains(owner) || !name.startsWith("put")) return false;
+            Type[] arguments = Type.getArgumentTypes(descriptor);
+            return arguments.length == 3 && arguments[0].equals(OBJECT) && arguments[1] == Type.LONG_TYPE
+                    && Type.getReturnType(descriptor) == Type.VOID_TYPE;
+        }
+    }
+}
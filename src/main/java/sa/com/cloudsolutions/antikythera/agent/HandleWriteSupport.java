@@ -0,0 +1,331 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.lang.constant.ClassDesc;
+import java.lang.constant.ConstantDesc;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Callbacks for field writes that bypass {@code java.lang.reflect.Field}: method handle setters,
+ * {@link VarHandle}s and {@code Unsafe}.
+ *
+ * <p>Each channel identifies the written field differently, so each callback first maps what it has to a
+ * {@link FieldIds field id} and then hands the write to {@code Support.afterHandleSet}, which applies the same
+ * enrollment check, recursion guard and propagation as every other write. Values are boxed before the
+ * enrollment check, and a missing symbol is not reported to {@link HotFieldProfiler}: these writes carry no
+ * bytecode hook that removing could save.</p>
+ * <ul>
+ *   <li><b>Method handles:</b> {@link SetterHandleAdvice} passes every setter returned by
+ *       {@code Lookup.findSetter} and {@code Lookup.unreflectSetter} through {@link #observeSetter}, which folds
+ *       a call to {@code Support.afterHandleSet} into the handle. The id is bound into the handle, so
+ *       invoking it costs no lookup.</li>
+ *   <li><b>Var handles:</b> {@link HandleWriteHook} follows {@code VarHandle.set} (and its volatile, release and
+ *       opaque variants) with {@code afterVarHandleSet}. The field of a var handle is read once from its
+ *       {@link VarHandle#describeConstable() nominal descriptor} and cached by identity.</li>
+ *   <li><b>Unsafe:</b> {@link HandleWriteHook} follows {@code Unsafe.put*(Object, long, value)} with
+ *       {@code afterUnsafePut}. The offset is matched against the instance field offsets of the target class,
+ *       computed once per class.</li>
+ * </ul>
+ *
+ * <h2>Bootstrap Safety</h2>
+ * <p>Called from instrumented classes in any loader and from advice inlined into {@code MethodHandles.Lookup},
+ * so this class lives on the bootstrap class path, is public, and avoids lambdas.</p>
+ */
+@SuppressWarnings("java:S3011")
+public final class HandleWriteSupport {
+
+    private static final WeakIdentityMap<Integer> VAR_HANDLE_IDS = new WeakIdentityMap<>();
+    private static final OffsetTable OFFSETS = new OffsetTable();
+
+    /** {@code Support.afterHandleSet(Object, int, Object)}. */
+    private static final MethodHandle CALLBACK;
+
+    static {
+        try {
+            CALLBACK = MethodHandles.lookup().findStatic(Support.class, "afterHandleSet",
+                    MethodType.methodType(void.class, Object.class, int.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private HandleWriteSupport() {
+    }
+
+    // ========== Method Handles ==========
+
+    /**
+     * Returns a setter that also reports its writes, or {@code setter} itself if the field cannot be enrolled.
+     *
+     * @param setter a handle of type {@code (Owner, T)void} from {@code Lookup.findSetter}
+     * @param owner the class the setter was looked up in
+     * @param fieldName the name of the field
+     * @return the observing setter
+     */
+    public static MethodHandle observeSetter(MethodHandle setter, Class<?> owner, String fieldName) {
+        if (setter == null || !observable(owner) || PropagationPlan.INTERCEPTOR_FIELD.equals(fieldName)) {
+            return setter;
+        }
+        MethodType type = setter.type();
+        if (type.parameterCount() != 2) {
+            return setter;
+        }
+        MethodHandle callback = MethodHandles.insertArguments(CALLBACK, 1, FieldIds.of(owner, fieldName));
+        // The setter runs first; its void result adds nothing, so the callback receives the same arguments.
+        return MethodHandles.foldArguments(callback.asType(type), setter);
+    }
+
+    /**
+     * Returns a setter that also reports its writes; see {@link #observeSetter(MethodHandle, Class, String)}.
+     *
+     * @param setter a handle from {@code Lookup.unreflectSetter}
+     * @param field the field the setter writes
+     * @return the observing setter
+     */
+    public static MethodHandle observeSetter(MethodHandle setter, Field field) {
+        if (Modifier.isStatic(field.getModifiers())) {
+            return setter;
+        }
+        return observeSetter(setter, field.getDeclaringClass(), field.getName());
+    }
+
+    // ========== Var Handles ==========
+
+    /** Callback injected after {@code VarHandle.set*(instance, value)} for reference fields. */
+    public static void afterVarHandleSet(VarHandle handle, Object instance, Object value) {
+        int id = varHandleId(handle, instance);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code VarHandle.set*} for {@code boolean} fields. */
+    public static void afterVarHandleSet(VarHandle handle, Object instance, boolean value) {
+        int id = varHandleId(handle, instance);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code VarHandle.set*} for {@code byte} fields. */
+    public static void afterVarHandleSet(VarHandle handle, Object instance, byte value) {
+        int id = varHandleId(handle, instance);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code VarHandle.set*} for {@code char} fields. */
+    public static void afterVarHandleSet(VarHandle handle, Object instance, char value) {
+        int id = varHandleId(handle, instance);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code VarHandle.set*} for {@code short} fields. */
+    public static void afterVarHandleSet(VarHandle handle, Object instance, short value) {
+        int id = varHandleId(handle, instance);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code VarHandle.set*} for {@code int} fields. */
+    public static void afterVarHandleSet(VarHandle handle, Object instance, int value) {
+        int id = varHandleId(handle, instance);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code VarHandle.set*} for {@code long} fields. */
+    public static void afterVarHandleSet(VarHandle handle, Object instance, long value) {
+        int id = varHandleId(handle, instance);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code VarHandle.set*} for {@code float} fields. */
+    public static void afterVarHandleSet(VarHandle handle, Object instance, float value) {
+        int id = varHandleId(handle, instance);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code VarHandle.set*} for {@code double} fields. */
+    public static void afterVarHandleSet(VarHandle handle, Object instance, double value) {
+        int id = varHandleId(handle, instance);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    // ========== Unsafe ==========
+
+    /** Callback injected after {@code Unsafe.put*(instance, offset, value)} for references. */
+    public static void afterUnsafePut(Object instance, long offset, Object value) {
+        int id = unsafeId(instance, offset);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code Unsafe.put*} of a {@code boolean}. */
+    public static void afterUnsafePut(Object instance, long offset, boolean value) {
+        int id = unsafeId(instance, offset);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code Unsafe.put*} of a {@code byte}. */
+    public static void afterUnsafePut(Object instance, long offset, byte value) {
+        int id = unsafeId(instance, offset);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code Unsafe.put*} of a {@code char}. */
+    public static void afterUnsafePut(Object instance, long offset, char value) {
+        int id = unsafeId(instance, offset);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code Unsafe.put*} of a {@code short}. */
+    public static void afterUnsafePut(Object instance, long offset, short value) {
+        int id = unsafeId(instance, offset);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code Unsafe.put*} of an {@code int}. */
+    public static void afterUnsafePut(Object instance, long offset, int value) {
+        int id = unsafeId(instance, offset);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code Unsafe.put*} of a {@code long}. */
+    public static void afterUnsafePut(Object instance, long offset, long value) {
+        int id = unsafeId(instance, offset);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code Unsafe.put*} of a {@code float}. */
+    public static void afterUnsafePut(Object instance, long offset, float value) {
+        int id = unsafeId(instance, offset);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    /** Callback injected after {@code Unsafe.put*} of a {@code double}. */
+    public static void afterUnsafePut(Object instance, long offset, double value) {
+        int id = unsafeId(instance, offset);
+        if (id != FieldIds.UNKNOWN) Support.afterHandleSet(instance, id, value);
+    }
+
+    // ========== Field Resolution ==========
+
+    /**
+     * Setters of JDK classes are never wrapped: they cannot be enrolled and the JDK uses them internally.
+     */
+    private static boolean observable(Class<?> owner) {
+        ClassLoader loader = owner.getClassLoader();
+        return loader != null && loader != ClassLoader.getPlatformClassLoader();
+    }
+
+    /**
+     * @return the id of the field written through {@code handle}, or {@link FieldIds#UNKNOWN} if the write is
+     *         not to be propagated; unenrolled targets are counted as rejected before the handle is examined
+     */
+    private static int varHandleId(VarHandle handle, Object instance) {
+        if (instance == null || handle == null) return FieldIds.UNKNOWN;
+        if (!PropagationPlan.isEnrolled(instance.getClass())) {
+            AgentMetrics.rejected();
+            return FieldIds.UNKNOWN;
+        }
+        Integer id = VAR_HANDLE_IDS.get(handle);
+        if (id == null) {
+            id = resolve(handle);
+            Integer raced = VAR_HANDLE_IDS.putIfAbsent(handle, id);
+            if (raced != null) id = raced;
+        }
+        return id;
+    }
+
+    /**
+     * Reads the name of an instance field var handle from its nominal descriptor,
+     * {@code VarHandleDesc[declaringClass, fieldType]} named after the field; the class is the handle's only
+     * coordinate, which unlike the descriptor also identifies its loader.
+     */
+    private static int resolve(VarHandle handle) {
+        try {
+            if (handle.coordinateTypes().size() != 1) return FieldIds.UNKNOWN;
+            Optional<VarHandle.VarHandleDesc> nominal = handle.describeConstable();
+            if (!nominal.isPresent()) return FieldIds.UNKNOWN;
+            VarHandle.VarHandleDesc desc = nominal.get();
+            ConstantDesc[] args = desc.bootstrapArgs();
+            if (args.length == 0 || !(args[0] instanceof ClassDesc)) return FieldIds.UNKNOWN;
+            String name = desc.constantName();
+            if (PropagationPlan.INTERCEPTOR_FIELD.equals(name)) return FieldIds.UNKNOWN;
+            return FieldIds.of(handle.coordinateTypes().get(0), name);
+        } catch (RuntimeException e) {
+            return FieldIds.UNKNOWN;
+        }
+    }
+
+    private static int unsafeId(Object instance, long offset) {
+        if (instance == null) return FieldIds.UNKNOWN;
+        if (!PropagationPlan.isEnrolled(instance.getClass())) {
+            AgentMetrics.rejected();
+            return FieldIds.UNKNOWN;
+        }
+        for (long entry : OFFSETS.get(instance.getClass())) {
+            if (entry >>> 32 == offset) return (int) entry;
+        }
+        return FieldIds.UNKNOWN;
+    }
+
+    /**
+     * Instance field offsets of a class and its superclasses, each packed with the field id as
+     * {@code offset << 32 | id}. Named class rather than a lambda, as elsewhere on the bootstrap path.
+     *
+     * <p>{@code Unsafe.objectFieldOffset} is reached through a method handle looked up by name, so this class does
+     * not compile against the proprietary {@code sun.misc} API; neither var handles nor lookups expose offsets.</p>
+     */
+    private static final class OffsetTable extends ClassValue<long[]> {
+        private static final MethodHandle FIELD_OFFSET = fieldOffset();
+
+        @Override
+        protected long[] computeValue(Class<?> type) {
+            List<Long> entries = new ArrayList<>();
+            for (Class<?> t = type; t != null && t != Object.class; t = t.getSuperclass()) {
+                for (Field field : t.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())
+                            || field.getName().equals(PropagationPlan.INTERCEPTOR_FIELD)) {
+                        continue;
+                    }
+                    try {
+                        entries.add(offset(field) << 32 | FieldIds.of(field));
+                    } catch (RuntimeException e) {
+                        // Records and hidden classes have no stable offsets; their fields cannot be put anyway.
+                    }
+                }
+            }
+            long[] table = new long[entries.size()];
+            for (int i = 0; i < table.length; i++) {
+                table[i] = entries.get(i);
+            }
+            return table;
+        }
+
+        private static long offset(Field field) {
+            try {
+                return (long) FIELD_OFFSET.invokeExact(field);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return {@code objectFieldOffset(Field)long} bound to {@code sun.misc.Unsafe.theUnsafe}
+         */
+        private static MethodHandle fieldOffset() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                return MethodHandles.lookup().findVirtual(unsafeClass, "objectFieldOffset",
+                        MethodType.methodType(long.class, Field.class)).bindTo(field.get(null));
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+    }
+}
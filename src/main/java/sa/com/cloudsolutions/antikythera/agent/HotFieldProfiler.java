@@ -0,0 +1,323 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Finds fields that are written over and over without the evaluator ever having a symbol for them, so that the
+ * agent can stop hooking their writes.
+ *
+ * <p>Counters, buffers and caches are typically written far more often than any other field, and an evaluator
+ * that does not model them answers {@code getField} with {@code null} every time. The write hook still costs a
+ * callback, an enrollment check and a symbol lookup per write. The profiler therefore counts what the lookups
+ * of hooked writes find:</p>
+ * <ul>
+ *   <li>A miss (the evaluator returned no symbol) reported by the bytecode hook increments the field's count
+ *       of consecutive misses. Writes through reflection, handles and {@code Unsafe} have no hook to remove,
+ *       so their misses are not counted.</li>
+ *   <li>A hit, from any path, resets the count to zero.</li>
+ *   <li>Writes to objects without an interceptor or evaluator say nothing about the field and are not counted,
+ *       and neither are writes deferred by lazy or asynchronous propagation.</li>
+ * </ul>
+ * <p>When a count reaches the threshold the field is disabled, and every class whose hook for the field has
+ * run is handed once to the retransformer registered by the agent. These are the classes executing the
+ * {@code PUTFIELD}, which may be a superclass, a helper or a nestmate rather than the class of the object
+ * written to. {@link FieldWriteHook} leaves their writes to disabled fields uninstrumented, so once they are
+ * retransformed the writes cost nothing. Misses arriving while that happens are ignored. Like the JIT's
+ * profiling counters the counts are updated without synchronization; a lost increment only delays the
+ * decision.</p>
+ *
+ * <h2>Write Sites</h2>
+ * <p>A hook identifies its field with a dynamic constant resolved by {@link FieldIds#fieldId} the first time it
+ * runs, which reports the writing class through {@link #hooked}. A class that starts writing a field after it
+ * was disabled is retransformed as soon as its hook first runs. Class files older than Java 11 carry no field
+ * ids and are never profiled.</p>
+ *
+ * <h2>Re-instrumentation</h2>
+ * <p>Writes the hook no longer sees can still arrive through reflection, handles, or classes loaded in
+ * another loader. If one of them finds a symbol, the field is enabled again and its writing classes
+ * retransformed with the hook. An evaluator that starts modelling a field can also say so with
+ * {@link #observe(Class, String)}.</p>
+ *
+ * <h2>Bootstrap Safety</h2>
+ * <p>Called from {@link Support}, {@link FieldIds} and from evaluators in any class loader, so this class lives
+ * on the bootstrap class path, is public, and avoids lambdas.</p>
+ */
+public final class HotFieldProfiler {
+
+    private static final Object LOCK = new Object();
+
+    /** Consecutive misses by field id. */
+    private static volatile int[] misses = new int[256];
+
+    /** Disabled flags by field id; replaced by larger copies under {@link #LOCK}. */
+    private static volatile boolean[] disabled = new boolean[256];
+
+    /** Classes whose hook for a field has run, by field id; guarded by {@link #LOCK}. */
+    private static List<?>[] writers = new List<?>[256];
+
+    /** Field ids by {@code "owner.field"}, by writing class. */
+    private static volatile Sites sites = new Sites();
+
+    private static volatile int disabledCount;
+    private static volatile int threshold;
+    private static volatile Consumer<Class<?>> retransformer;
+
+    /**
+     * Checked on every propagation; plain volatile read so that profiling costs nothing when it is off.
+     */
+    static volatile boolean enabled;
+
+    private HotFieldProfiler() {
+    }
+
+    /**
+     * @param missThreshold consecutive writes without a symbol after which a field stops being hooked;
+     *                      {@code 0} turns profiling off
+     */
+    public static void configure(int missThreshold) {
+        threshold = missThreshold;
+        enabled = missThreshold > 0;
+    }
+
+    /**
+     * Registers what to call when the hook of a field should be removed from, or restored to, a class.
+     * The agent passes a retransformer that does the work on a thread of its own.
+     *
+     * @param consumer receives a class whose hooks are to be brought up to date; called on the writing thread
+     */
+    public static void setRetransformer(Consumer<Class<?>> consumer) {
+        retransformer = consumer;
+    }
+
+    /**
+     * Registers the class a hook for a field runs in.
+     *
+     * @param fieldId the id of the field
+     * @param writer the class executing the write
+     * @param className the binary name of the class the write accesses the field through
+     * @param fieldName the name of the field
+     */
+    static void hooked(int fieldId, Class<?> writer, String className, String fieldName) {
+        Map<String, Integer> ids = sites.get(writer);
+        if (ids.putIfAbsent(className + '.' + fieldName, fieldId) != null) {
+            return;
+        }
+        boolean retransform;
+        synchronized (LOCK) {
+            if (fieldId >= disabled.length) {
+                grow(fieldId);
+            }
+            @SuppressWarnings("unchecked")
+            List<WeakReference<Class<?>>> classes = (List<WeakReference<Class<?>>>) writers[fieldId];
+            if (classes == null) {
+                classes = new ArrayList<>(2);
+                writers[fieldId] = classes;
+            }
+            boolean known = false;
+            for (WeakReference<Class<?>> ref : classes) {
+                known |= ref.get() == writer;
+            }
+            if (!known) {
+                classes.add(new WeakReference<Class<?>>(writer));
+            }
+            // A new site of a disabled field: the last retransformation of the writer did not know it.
+            retransform = disabled[fieldId];
+        }
+        if (retransform) {
+            retransform(writer);
+        }
+    }
+
+    /**
+     * Records that the bytecode hook of a field found no symbol.
+     *
+     * @param fieldId the id of the field
+     */
+    static void missed(int fieldId) {
+        int[] counts = misses;
+        if (fieldId >= counts.length) {
+            counts = grow(fieldId);
+        }
+        if (disabled[fieldId]) {
+            // Still hooked until the writers are retransformed; they already are, or are about to be.
+            return;
+        }
+        int count = counts[fieldId] + 1;
+        counts[fieldId] = count;
+        if (count >= threshold) {
+            counts[fieldId] = 0;
+            disable(fieldId);
+        }
+    }
+
+    /**
+     * Records that the evaluator had a symbol for a field, however the write arrived.
+     *
+     * @param fieldId the id of the field
+     */
+    static void observed(int fieldId) {
+        int[] counts = misses;
+        if (fieldId >= counts.length) {
+            return;
+        }
+        if (counts[fieldId] != 0) {
+            counts[fieldId] = 0;
+        }
+        if (disabled[fieldId]) {
+            enable(fieldId);
+        }
+    }
+
+    /**
+     * Tells an evaluator's interest in a field: if its hook was removed, it is restored.
+     *
+     * @param type the class declaring the field, or a subclass
+     * @param fieldName the name of the field
+     */
+    public static void observe(Class<?> type, String fieldName) {
+        int id = FieldIds.find(type, fieldName);
+        if (id != FieldIds.UNKNOWN && isDisabled(id)) {
+            enable(id);
+        }
+    }
+
+    /**
+     * @param fieldId a field id, as registered under the class declaring the field
+     * @return {@code true} if writes to the field are no longer hooked
+     */
+    public static boolean isDisabled(int fieldId) {
+        boolean[] flags = disabled;
+        return fieldId >= 0 && fieldId < flags.length && flags[fieldId];
+    }
+
+    /**
+     * Decides whether {@link FieldWriteHook} instruments a write instruction.
+     *
+     * @param writer the class being retransformed, or {@code null} if it is being loaded
+     * @param className the binary name of the class the instruction accesses the field through
+     * @param fieldName the name of the field
+     * @return {@code true} if the hook of that instruction has run in {@code writer} and its field is disabled
+     */
+    public static boolean isDisabled(Class<?> writer, String className, String fieldName) {
+        if (disabledCount == 0 || writer == null) {
+            return false;
+        }
+        Integer id = sites.get(writer).get(className + '.' + fieldName);
+        return id != null && isDisabled(id);
+    }
+
+    /**
+     * @return the number of fields whose writes are currently not hooked
+     */
+    public static int getDisabledCount() {
+        return disabledCount;
+    }
+
+    /**
+     * Enables every field again and forgets all counts and writers, without retransforming anything.
+     */
+    static void reset() {
+        synchronized (LOCK) {
+            misses = new int[misses.length];
+            disabled = new boolean[disabled.length];
+            writers = new List<?>[writers.length];
+            sites = new Sites();
+            disabledCount = 0;
+        }
+    }
+
+    private static void disable(int fieldId) {
+        Class<?>[] classes;
+        synchronized (LOCK) {
+            if (disabled[fieldId]) {
+                return;
+            }
+            disabled[fieldId] = true;
+            disabledCount++;
+            classes = writersOf(fieldId);
+        }
+        for (Class<?> type : classes) {
+            retransform(type);
+        }
+    }
+
+    private static void enable(int fieldId) {
+        Class<?>[] classes;
+        synchronized (LOCK) {
+            if (!disabled[fieldId]) {
+                return;
+            }
+            disabled[fieldId] = false;
+            disabledCount--;
+            misses[fieldId] = 0;
+            classes = writersOf(fieldId);
+        }
+        for (Class<?> type : classes) {
+            retransform(type);
+        }
+    }
+
+    /**
+     * Must hold {@link #LOCK}; also forgets writers that have been unloaded.
+     */
+    private static Class<?>[] writersOf(int fieldId) {
+        @SuppressWarnings("unchecked")
+        List<WeakReference<Class<?>>> classes = (List<WeakReference<Class<?>>>) writers[fieldId];
+        if (classes == null) {
+            return new Class<?>[0];
+        }
+        List<Class<?>> live = new ArrayList<>(classes.size());
+        for (int i = classes.size() - 1; i >= 0; i--) {
+            Class<?> type = classes.get(i).get();
+            if (type == null) {
+                classes.remove(i);
+            } else {
+                live.add(type);
+            }
+        }
+        return live.toArray(new Class<?>[0]);
+    }
+
+    private static void retransform(Class<?> type) {
+        Consumer<Class<?>> consumer = retransformer;
+        if (consumer != null) {
+            try {
+                consumer.accept(type);
+            } catch (Throwable ignore) {
+                // The class keeps the hook it has; disabled fields only cost what they did before.
+            }
+        }
+    }
+
+    private static int[] grow(int fieldId) {
+        synchronized (LOCK) {
+            int length = misses.length;
+            if (fieldId >= length) {
+                while (fieldId >= length) {
+                    length *= 2;
+                }
+                writers = Arrays.copyOf(writers, length);
+                disabled = Arrays.copyOf(disabled, length);
+                misses = Arrays.copyOf(misses, length);
+            }
+            return misses;
+        }
+    }
+
+    /**
+     * The field ids of the hooks that have run in a class, keyed by {@code "owner.field"} as the instruction
+     * names them.
+     */
+    private static final class Sites extends ClassValue<Map<String, Integer>> {
+        @Override
+        protected Map<String, Integer> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>(4);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+/**
+ * Records that a copy of the agent finished installing its transformers in this JVM.
+ *
+ * <p>Finding the bootstrap jar on the class path is not enough to tell: an attempt that failed after appending
+ * it leaves the classes behind without any transformer registered. The flag is only set once installation has
+ * completed, so a retry, or a second copy of the agent in another class loader, installs again in that case.</p>
+ *
+ * <h2>Bootstrap Safety</h2>
+ * <p>Lives on the bootstrap class path, so that every copy of the agent sees the same flag. The agent reads and
+ * sets it from the application class loader, hence the public methods.</p>
+ */
+public final class InstallState {
+
+    private static volatile boolean installed;
+
+    private InstallState() {
+    }
+
+    /**
+     * @return {@code true} once some copy of the agent has registered all its transformers
+     */
+    public static boolean isInstalled() {
+        return installed;
+    }
+
+    /**
+     * Called by the agent after it has registered all its transformers.
+     */
+    public static void markInstalled() {
+        installed = true;
+    }
+}
@@ -0,0 +1,98 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+/**
+ * One field write read back from a {@link WriteJournal} by {@link JournalReader}.
+ */
+public final class JournalEntry {
+
+    private final String className;
+    private final String fieldName;
+    private final long objectId;
+    private final long epochNanos;
+    private final Object value;
+
+    JournalEntry(String className, String fieldName, long objectId, long epochNanos, Object value) {
+        this.className = className;
+        this.fieldName = fieldName;
+        this.objectId = objectId;
+        this.epochNanos = epochNanos;
+        this.value = value;
+    }
+
+    /**
+     * @return the name of the runtime class of the object whose field was written, or {@code null} if its
+     *         definition was in a deleted segment
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /** @return the name of the field that was written, or {@code null} if its definition was in a deleted segment */
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    /** @return the journal-wide identity of the object whose field was written */
+    public long getObjectId() {
+        return objectId;
+    }
+
+    /** @return when the write happened, in nanoseconds since the epoch */
+    public long getEpochNanos() {
+        return epochNanos;
+    }
+
+    /**
+     * The written value: {@code null}, a boxed primitive, the content of a {@link String} (truncated if it
+     * was very long) or a {@link Reference} to any other object.
+     *
+     * @return the decoded value
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return className + "@" + objectId + "." + fieldName + " = " + value;
+    }
+
+    /**
+     * Identity of an object that was written as a field value. Objects keep their id for the whole journal,
+     * so references can be matched against {@link JournalEntry#getObjectId()} of later writes.
+     */
+    public static final class Reference {
+        private final long id;
+        private final String className;
+
+        Reference(long id, String className) {
+            this.id = id;
+            this.className = className;
+        }
+
+        /** @return the journal-wide identity of the object */
+        public long getId() {
+            return id;
+        }
+
+        /** @return the name of the runtime class of the object */
+        public String getClassName() {
+            return className;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Reference && ((Reference) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(id);
+        }
+
+        @Override
+        public String toString() {
+            return className + "@" + id;
+        }
+    }
+}
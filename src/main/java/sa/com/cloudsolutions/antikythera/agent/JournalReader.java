@@ -0,0 +1,216 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Streams the writes recorded by a {@link WriteJournal}, in journal order.
+ *
+ * <p>Segments are mapped one at a time and records are decoded as they are read, so a journal larger than
+ * the heap can be processed. Only the dictionaries (class and field names, object classes and string
+ * contents) are kept in memory.</p>
+ *
+ * <pre>{@code
+ * try (JournalReader reader = JournalReader.open(dir)) {
+ *     for (JournalEntry entry; (entry = reader.next()) != null; ) {
+ *         ...
+ *     }
+ * }
+ * }</pre>
+ *
+ * <p>{@link #replay(Function)} pushes the recorded writes into evaluators, the way the agent would have
+ * done it live.</p>
+ *
+ * <p>Segments deleted by the journal's retention limit are skipped. A write whose class or field definition
+ * was in one of them is read with a {@code null} name, and is not replayed.</p>
+ */
+public final class JournalReader implements Closeable {
+
+    private final Path directory;
+    private final Map<Integer, String> classes = new HashMap<>();
+    private final Map<Integer, String> fieldNames = new HashMap<>();
+    private final Map<Long, Object> objects = new HashMap<>();
+
+    private long epochNanosAtStart;
+    private long nanoTimeAtStart;
+    private final int[] segmentIndices;
+    private int segmentIndex = -1;
+    private ByteBuffer segment;
+
+    private JournalReader(Path directory, int[] segmentIndices) {
+        this.directory = directory;
+        this.segmentIndices = segmentIndices;
+    }
+
+    /**
+     * Opens the journal written to {@code directory}.
+     *
+     * @param directory the directory given to {@link WriteJournal#start(Path, long)}
+     * @return a reader positioned before the first write
+     * @throws IOException if the first segment cannot be read
+     */
+    public static JournalReader open(Path directory) throws IOException {
+        JournalReader reader = new JournalReader(directory, segmentIndices(directory));
+        if (!reader.nextSegment()) {
+            throw new IOException("No journal in " + directory);
+        }
+        return reader;
+    }
+
+    /**
+     * Reads the next write, consuming any definitions in front of it.
+     *
+     * @return the next write, or {@code null} at the end of the journal
+     * @throws IOException if a segment cannot be read
+     */
+    public JournalEntry next() throws IOException {
+        while (true) {
+            if (segment.remaining() < WriteJournal.HEADER_SIZE || segment.getInt(segment.position()) == 0) {
+                if (!nextSegment()) {
+                    return null;
+                }
+                continue;
+            }
+            int start = segment.position();
+            int length = segment.getInt(start);
+            int header = segment.getInt(start + 4);
+            segment.position(start + length);
+
+            switch (header & 0xffff) {
+                case WriteJournal.START:
+                    epochNanosAtStart = segment.getLong(start + 8) * 1_000_000L;
+                    nanoTimeAtStart = segment.getLong(start + 16);
+                    break;
+                case WriteJournal.CLASS:
+                    classes.put(segment.getInt(start + 8), string(start + 20, segment.getInt(start + 16)));
+                    break;
+                case WriteJournal.FIELD:
+                    fieldNames.put(segment.getInt(start + 8), string(start + 20, segment.getInt(start + 16)));
+                    break;
+                case WriteJournal.OBJECT:
+                    long id = segment.getLong(start + 8);
+                    int contentLength = segment.getInt(start + 20);
+                    objects.put(id, contentLength >= 0 ? string(start + 24, contentLength)
+                            : new JournalEntry.Reference(id, classes.get(segment.getInt(start + 16))));
+                    break;
+                case WriteJournal.WRITE:
+                    return write(start, header >>> 16);
+                default:
+                    // PADDING, or a record type from a newer agent: skip it.
+            }
+        }
+    }
+
+    /**
+     * Replays every remaining write into an evaluator: {@code evaluator.getField(fieldName).setValue(value)}.
+     *
+     * @param evaluatorFor picks the evaluator for a write, typically by {@link JournalEntry#getObjectId()};
+     *                     returning {@code null} skips the write
+     * @return the number of writes that reached a symbol without it throwing
+     * @throws IOException if a segment cannot be read
+     */
+    public long replay(Function<JournalEntry, Object> evaluatorFor) throws IOException {
+        long delivered = 0;
+        for (JournalEntry entry; (entry = next()) != null; ) {
+            Object evaluator = evaluatorFor.apply(entry);
+            try {
+                if (evaluator != null && entry.getFieldName() != null
+                        && PropagationPlan.deliver(evaluator, entry.getFieldName(), entry.getValue())) {
+                    delivered++;
+                }
+            } catch (Throwable ignore) {
+                // As in live propagation, a failing symbol does not stop the replay.
+            }
+        }
+        return delivered;
+    }
+
+    @Override
+    public void close() {
+        segment = null;
+    }
+
+    private JournalEntry write(int start, int tag) {
+        int fieldId = segment.getInt(start + 12);
+        long objectId = segment.getLong(start + 16);
+        long nanos = segment.getLong(start + 24);
+        long bits = segment.getLong(start + 32);
+
+        Object value;
+        switch (tag) {
+            case WriteJournal.BOOLEAN: value = bits != 0; break;
+            case WriteJournal.BYTE: value = (byte) bits; break;
+            case WriteJournal.CHAR: value = (char) bits; break;
+            case WriteJournal.SHORT: value = (short) bits; break;
+            case WriteJournal.INT: value = (int) bits; break;
+            case WriteJournal.LONG: value = bits; break;
+            case WriteJournal.FLOAT: value = Float.intBitsToFloat((int) bits); break;
+            case WriteJournal.DOUBLE: value = Double.longBitsToDouble(bits); break;
+            case WriteJournal.REFERENCE: value = objects.get(bits); break;
+            default: value = null;
+        }
+        Object target = objects.get(objectId);
+        String className = target instanceof JournalEntry.Reference
+                ? ((JournalEntry.Reference) target).getClassName()
+                : classes.get(segment.getInt(start + 8));
+        return new JournalEntry(className, fieldNames.get(fieldId), objectId,
+                epochNanosAtStart + (nanos - nanoTimeAtStart), value);
+    }
+
+    private String string(int offset, int length) {
+        byte[] bytes = new byte[length];
+        segment.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean nextSegment() throws IOException {
+        if (segmentIndex + 1 >= segmentIndices.length) {
+            return false;
+        }
+        segmentIndex++;
+        Path file = directory.resolve(WriteJournal.segmentName(segmentIndices[segmentIndex]));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return true;
+    }
+
+    /**
+     * @return the indices of the segment files present, in order
+     */
+    private static int[] segmentIndices(Path directory) throws IOException {
+        List<Integer> indices = new ArrayList<>();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "journal-*.seg")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    try {
+                        indices.add(Integer.parseInt(name.substring("journal-".length(), name.length() - 4)));
+                    } catch (NumberFormatException ignore) {
+                        // Not a segment written by the journal.
+                    }
+                }
+            }
+        }
+        Collections.sort(indices);
+        int[] sorted = new int[indices.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = indices.get(i);
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,103 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Optional propagation mode in which a symbol always ends up holding the last value written to its field, even
+ * when several threads write the field concurrently.
+ *
+ * <p>Every hook runs after the write it reports has returned, so two threads writing the same field can call
+ * {@code setValue} in the opposite order of their writes, leaving the symbol with a stale value. In ordered
+ * mode a propagation takes a lock, reads the field's current value back from the object and delivers that
+ * instead of the value the hook saw. The last propagation to take the lock runs after the last write, so it
+ * delivers the final value; an earlier, overtaken propagation merely delivers a value that is at least as new
+ * as its own.</p>
+ *
+ * <h2>Striping</h2>
+ * <p>Locks are striped by the identity of the object and the field, so writers of different objects or of
+ * different fields of one object almost never meet, and no global lock serializes propagation. The locks are
+ * {@link ReentrantLock}s rather than monitors so that virtual threads waiting for one are not pinned. The
+ * evaluator's {@code setValue} runs while the stripe is held; it must not wait for another application thread
+ * that may be writing an enrolled field.</p>
+ *
+ * <p>Fields missing from the {@link FieldLayout} of the object (static fields, or fields the agent cannot read)
+ * are still delivered under the lock, with the value the hook saw.</p>
+ *
+ * <h2>Bootstrap Safety</h2>
+ * <p>Called from {@link PropagationPlan}, so this class lives on the bootstrap class path, is public, and
+ * avoids lambdas.</p>
+ */
+public final class OrderedPropagation {
+
+    private static final ReentrantLock[] STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+    private static final int MASK = STRIPES.length - 1;
+
+    /**
+     * Checked on every propagation; plain volatile read so that the unordered path stays cheap.
+     */
+    static volatile boolean enabled;
+
+    private OrderedPropagation() {
+    }
+
+    /**
+     * Switches to ordered propagation.
+     */
+    public static void enable() {
+        enabled = true;
+    }
+
+    /**
+     * Returns to propagating the value each hook saw, without locking.
+     */
+    public static void disable() {
+        enabled = false;
+    }
+
+    /**
+     * @return {@code true} if propagations are sequenced per object and field
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Delivers the current value of the field under its stripe.
+     */
+    static int apply(Object target, int fieldId, String fieldName, Object value) throws Throwable {
+        FieldLayout layout = FieldLayout.of(target.getClass());
+        int index = layout.indexOf(fieldId, fieldName);
+        ReentrantLock lock = STRIPES[stripe(target, index < 0 ? fieldName.hashCode() : index)];
+        lock.lock();
+        try {
+            Object current = value;
+            if (index >= 0) {
+                try {
+                    current = layout.read(target, index);
+                } catch (Throwable ignore) {
+                    // Deliver what the hook saw.
+                }
+            }
+            return PropagationPlan.applyUnordered(target, fieldId, fieldName, current);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int stripe(Object target, int field) {
+        int h = System.identityHashCode(target) ^ (field * 0x9e3779b9);
+        return (h ^ (h >>> 16)) & MASK;
+    }
+
+    /**
+     * Sixteen stripes per core, and at least 64, rounded up to a power of two.
+     */
+    private static ReentrantLock[] stripes(int cores) {
+        int count = Integer.highestOneBit(Math.max(64, cores * 16) - 1) << 1;
+        ReentrantLock[] locks = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+}
@@ -0,0 +1,391 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Per-class cache of the reflective steps needed to propagate a field write into the evaluator.
+ *
+ * <p>Propagating a single write touches four classes: the target (which owns {@code instanceInterceptor}),
+ * the interceptor (which owns {@code evaluator}), the evaluator (which exposes {@code getField(String)})
+ * and the symbol (which exposes {@code setValue(Object)}). Each of these is resolved once per class into a
+ * {@link MethodHandle} and kept in a {@link ClassValue}, so subsequent writes skip the hierarchy walks and
+ * the {@code getMethod}/{@code getDeclaredMethod} lookups entirely.</p>
+ *
+ * <h2>Field Ids</h2>
+ * <p>Writes reported by {@link FieldWriteHook} and {@link ReflectiveSetAdvice} carry the {@link FieldIds id} of
+ * the field. If the evaluator declares {@code getField(int)} the symbol is looked up by that id, which lets the
+ * evaluator index an array instead of hashing the name and tells apart fields of the same name declared at
+ * different levels of a hierarchy. Evaluators with only {@code getField(String)} keep receiving the name.</p>
+ *
+ * <h2>Bootstrap Safety</h2>
+ * <p>This class is appended to the bootstrap class path together with {@link ReflectiveSetAdvice} because
+ * the advice is inlined into {@code java.lang.reflect.Field}. It therefore avoids lambdas, using a named
+ * {@link ClassValue} subclass instead, and depends on {@code java.base} except for the Flight Recorder events
+ * of {@link FieldWriteEvents}. Those need {@code jdk.jfr}, which {@link FieldWriteEvents} checks for before
+ * touching an event type, so a runtime linked without it propagates writes without recording them.</p>
+ *
+ * <h2>Invalidation</h2>
+ * <p>{@link ClassValue} associates plans weakly with their class, so a plan is discarded together with the
+ * class when its loader is unloaded. Redefinition and retransformation can neither add nor remove fields and
+ * methods, so cached handles remain valid after a redefinition; nevertheless {@link #invalidate(Class)} is
+ * called by the agent whenever a class is redefined so that the plan is rebuilt from the current class shape.</p>
+ *
+ * <h2>Change Suppression</h2>
+ * <p>When {@link ChangeSuppression} is enabled the symbol's {@code getValue()} is resolved as a fifth role and
+ * read before {@code setValue}, so that writes of the value the symbol already holds stop there.</p>
+ */
+@SuppressWarnings("java:S3011")
+public final class PropagationPlan {
+
+    /** Name of the marker field whose presence enrolls a class for propagation. */
+    public static final String INTERCEPTOR_FIELD = "instanceInterceptor";
+
+    private static final int TARGET = 0;
+    private static final int INTERCEPTOR = 1;
+    private static final int EVALUATOR = 2;
+    private static final int SYMBOL = 3;
+    private static final int VALUE = 4;
+    private static final int EVALUATOR_BY_ID = 5;
+
+    static final int UNRESOLVED = 0;
+    static final int DELIVERED = 1;
+    static final int SUPPRESSED = 2;
+    /** Unresolved because the evaluator has no symbol for the field; see {@link HotFieldProfiler}. */
+    static final int MISSING = 3;
+    /** Marked dirty or buffered; the outcome is only known once the write is applied. */
+    static final int DEFERRED = 4;
+
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType LOOKUP = MethodType.methodType(Object.class, Object.class, String.class);
+    private static final MethodType LOOKUP_BY_ID = MethodType.methodType(Object.class, Object.class, int.class);
+    private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private static final Resolver TARGETS = new Resolver(TARGET);
+    private static final Resolver INTERCEPTORS = new Resolver(INTERCEPTOR);
+    private static final Resolver EVALUATORS = new Resolver(EVALUATOR);
+    private static final Resolver SYMBOLS = new Resolver(SYMBOL);
+    private static final Resolver VALUES = new Resolver(VALUE);
+    private static final Resolver EVALUATORS_BY_ID = new Resolver(EVALUATOR_BY_ID);
+
+    /**
+     * The resolved handle for this plan's role, or {@code null} when the class does not take part in it
+     * (for example a target class without an {@code instanceInterceptor} field).
+     */
+    final MethodHandle handle;
+
+    private PropagationPlan(MethodHandle handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Propagates a field write on {@code target} to the symbol that mirrors the field in the evaluator.
+     *
+     * <p>This performs exactly the steps previously done with core reflection by
+     * {@link ReflectiveSetAdvice#after}: read {@code instanceInterceptor} from the target, read
+     * {@code evaluator} from the interceptor, call {@code evaluator.getField(fieldName)} and finally
+     * {@code symbol.setValue(value)}. Any missing link in the chain ends propagation silently.</p>
+     *
+     * <p>While a {@link WriteJournal} is recording, the write is appended to it first.
+     * When {@link DirtyTracker} is enabled the field is only marked dirty, to be propagated on the next sync.
+     * When {@link AsyncPropagator} is enabled the write is only buffered here and applied later on the
+     * propagator's thread; otherwise it is applied immediately on the caller's thread.</p>
+     *
+     * @param target the object whose field was written; must not be {@code null}
+     * @param fieldName the name of the field that was written
+     * @param value the value that was written
+     * @throws Throwable whatever the evaluator or symbol throws; callers are expected to suppress it
+     */
+    public static void propagate(Object target, String fieldName, Object value) throws Throwable {
+        propagate(target, FieldIds.UNKNOWN, fieldName, value);
+    }
+
+    /**
+     * Propagates a field write identified by its {@link FieldIds id}; see {@link #propagate(Object, String, Object)}.
+     *
+     * @param target the object whose field was written; must not be {@code null}
+     * @param fieldId the id of the field, keyed by its declaring class
+     * @param value the value that was written
+     * @throws Throwable whatever the evaluator or symbol throws; callers are expected to suppress it
+     */
+    public static void propagate(Object target, int fieldId, Object value) throws Throwable {
+        propagate(target, fieldId, FieldIds.nameOf(fieldId), value);
+    }
+
+    /**
+     * Same as {@link #propagate(Object, int, Object)}, for the bytecode hook, which reports misses to
+     * {@link HotFieldProfiler}.
+     *
+     * @return {@link #DELIVERED}, {@link #SUPPRESSED}, {@link #MISSING}, {@link #UNRESOLVED} or
+     *         {@link #DEFERRED}
+     */
+    static int propagateWithOutcome(Object target, int fieldId, Object value) throws Throwable {
+        return propagate(target, fieldId, FieldIds.nameOf(fieldId), value);
+    }
+
+    private static int propagate(Object target, int fieldId, String fieldName, Object value) throws Throwable {
+        WriteJournal journal = WriteJournal.active;
+        if (journal != null) {
+            try {
+                journal.append(target, fieldName, value);
+            } catch (Exception ignore) {
+                // A full disk or a failed mapping must not stop the write from being propagated.
+            }
+        }
+        if (DirtyTracker.enabled && DirtyTracker.mark(target, fieldId, fieldName)) {
+            return DEFERRED;
+        }
+        if (AsyncPropagator.enabled && AsyncPropagator.submit(target, fieldId, fieldName, value)) {
+            return DEFERRED;
+        }
+        return apply(target, fieldId, fieldName, value);
+    }
+
+    /**
+     * Pushes a write into the evaluator synchronously, on the calling thread, and records the outcome in
+     * {@link AgentMetrics} and, when sampled, as a {@link FieldWriteEvent}. Writes that would not change the
+     * symbol are dropped here when {@link ChangeSuppression} is enabled. With {@link OrderedPropagation}
+     * enabled, the field's current value is delivered instead of {@code value}.
+     *
+     * @param fieldId the id of the field, or {@link FieldIds#UNKNOWN} if only its name is known
+     * @return the outcome, see {@link #propagateWithOutcome}
+     * @see #propagate(Object, String, Object)
+     */
+    static int apply(Object target, int fieldId, String fieldName, Object value) throws Throwable {
+        if (OrderedPropagation.enabled) {
+            return OrderedPropagation.apply(target, fieldId, fieldName, value);
+        }
+        return applyUnordered(target, fieldId, fieldName, value);
+    }
+
+    /**
+     * Same as {@link #apply}, delivering exactly {@code value}; {@link OrderedPropagation} calls it under its
+     * lock with the value read back from the field.
+     */
+    static int applyUnordered(Object target, int fieldId, String fieldName, Object value) throws Throwable {
+        FieldWriteEvent event = FieldWriteEvents.begin();
+        long start = System.nanoTime();
+        int outcome;
+        try {
+            outcome = invoke(target, fieldId, fieldName, value);
+        } catch (Throwable t) {
+            AgentMetrics.failed(t);
+            if (event != null) {
+                FieldWriteEvents.commit(event, target, fieldName, value, true, true, false);
+            }
+            throw t;
+        }
+        if (outcome == DELIVERED) {
+            AgentMetrics.propagated(System.nanoTime() - start);
+        } else if (outcome == SUPPRESSED) {
+            AgentMetrics.suppressed();
+        } else {
+            AgentMetrics.unresolved();
+        }
+        boolean found = outcome == DELIVERED || outcome == SUPPRESSED;
+        if (HotFieldProfiler.enabled && fieldId != FieldIds.UNKNOWN && found) {
+            HotFieldProfiler.observed(fieldId);
+        }
+        if (event != null) {
+            FieldWriteEvents.commit(event, target, fieldName, value, found, false, outcome == SUPPRESSED);
+        }
+        return outcome;
+    }
+
+    /**
+     * Walks the chain of cached handles.
+     *
+     * @return {@link #DELIVERED} if the value reached {@code setValue}, {@link #SUPPRESSED} if it equals the
+     *         symbol's current value, {@link #MISSING} if the evaluator has no symbol for the field,
+     *         {@link #UNRESOLVED} if another link was missing
+     */
+    private static int invoke(Object target, int fieldId, String fieldName, Object value) throws Throwable {
+        MethodHandle interceptorGetter = TARGETS.get(target.getClass()).handle;
+        if (interceptorGetter == null) return UNRESOLVED;
+
+        Object interceptor = (Object) interceptorGetter.invokeExact(target);
+        if (interceptor == null) return UNRESOLVED;
+
+        MethodHandle evaluatorGetter = INTERCEPTORS.get(interceptor.getClass()).handle;
+        if (evaluatorGetter == null) return UNRESOLVED;
+
+        Object evaluator = (Object) evaluatorGetter.invokeExact(interceptor);
+        if (evaluator == null) return UNRESOLVED;
+
+        Object symbol = symbol(evaluator, fieldId, fieldName);
+        if (symbol == null) return MISSING;
+
+        MethodHandle setValue = SYMBOLS.get(symbol.getClass()).handle;
+        if (setValue == null) return UNRESOLVED;
+
+        if (!ChangeSuppression.enabled) {
+            setValue.invokeExact(symbol, value);
+            return DELIVERED;
+        }
+
+        MethodHandle getValue = VALUES.get(symbol.getClass()).handle;
+        if (getValue == null) {
+            // The previous value is unknown, so whether the write changed anything is unknown as well.
+            setValue.invokeExact(symbol, value);
+            return DELIVERED;
+        }
+
+        Object current = (Object) getValue.invokeExact(symbol);
+        if (ChangeSuppression.unchanged(current, value)) return SUPPRESSED;
+
+        setValue.invokeExact(symbol, value);
+        ChangeSuppression.changed(target, fieldName, current, value);
+        return DELIVERED;
+    }
+
+    /**
+     * Delivers a value straight to an evaluator, {@code evaluator.getField(fieldName).setValue(value)}, using the
+     * same cached handles as live propagation. Used to replay recorded writes.
+     *
+     * @param evaluator an object exposing {@code getField(String)}
+     * @param fieldName the name of the field
+     * @param value the value to set
+     * @return {@code true} if a symbol received the value
+     * @throws Throwable whatever the evaluator or symbol throws
+     */
+    public static boolean deliver(Object evaluator, String fieldName, Object value) throws Throwable {
+        Object symbol = symbol(evaluator, FieldIds.UNKNOWN, fieldName);
+        if (symbol == null) return false;
+
+        MethodHandle setValue = SYMBOLS.get(symbol.getClass()).handle;
+        if (setValue == null) return false;
+
+        setValue.invokeExact(symbol, value);
+        return true;
+    }
+
+    /**
+     * Looks up the symbol of a field, by id through {@code getField(int)} when both the id and the method are
+     * available, and by name through {@code getField(String)} otherwise.
+     *
+     * @return the symbol, or {@code null} if the evaluator has no lookup method or no symbol for the field
+     */
+    private static Object symbol(Object evaluator, int fieldId, String fieldName) throws Throwable {
+        if (fieldId != FieldIds.UNKNOWN) {
+            MethodHandle getFieldById = EVALUATORS_BY_ID.get(evaluator.getClass()).handle;
+            if (getFieldById != null) {
+                return (Object) getFieldById.invokeExact(evaluator, fieldId);
+            }
+        }
+        MethodHandle getField = EVALUATORS.get(evaluator.getClass()).handle;
+        if (getField == null) return null;
+        return (Object) getField.invokeExact(evaluator, fieldName);
+    }
+
+    /**
+     * Tells whether instances of the given class carry an {@code instanceInterceptor} field.
+     *
+     * <p>The answer is computed on first sight of a class and then served from the {@link ClassValue},
+     * so writes to unrelated types (Jackson, Hibernate, Spring binding and so on) are rejected with a
+     * single lookup that neither allocates nor throws.</p>
+     *
+     * @param type the runtime class of a write target
+     * @return {@code true} if writes to instances of {@code type} may need to be propagated
+     */
+    public static boolean isEnrolled(Class<?> type) {
+        return TARGETS.get(type).handle != null;
+    }
+
+    /**
+     * Discards every cached plan for the given class so that it is resolved again on next use.
+     *
+     * @param type the class that was redefined or retransformed
+     */
+    public static void invalidate(Class<?> type) {
+        TARGETS.remove(type);
+        INTERCEPTORS.remove(type);
+        EVALUATORS.remove(type);
+        SYMBOLS.remove(type);
+        VALUES.remove(type);
+        EVALUATORS_BY_ID.remove(type);
+    }
+
+    /**
+     * Returns the plan that reads {@code instanceInterceptor} from instances of the given class.
+     * Exposed for tests; the returned instance is identical for as long as the plan stays cached.
+     */
+    static PropagationPlan forTarget(Class<?> type) {
+        return TARGETS.get(type);
+    }
+
+    private static MethodHandle resolve(Class<?> type, int role) {
+        try {
+            switch (role) {
+                case TARGET:
+                    return fieldGetter(type, INTERCEPTOR_FIELD);
+                case INTERCEPTOR:
+                    return fieldGetter(type, "evaluator");
+                case EVALUATOR:
+                    return method(type, "getField", LOOKUP, String.class);
+                case EVALUATOR_BY_ID:
+                    return method(type, "getField", LOOKUP_BY_ID, int.class);
+                case SYMBOL:
+                    return method(type, "setValue", SETTER, Object.class);
+                default:
+                    return method(type, "getValue", GETTER);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Missing members, inaccessible modules and the like all mean "not part of the chain".
+            return null;
+        }
+    }
+
+    /**
+     * Searches up the class hierarchy for a declared field, mirroring the original
+     * {@code getDeclaredField} loop of the advice. The declared fields are scanned rather than looked up
+     * by name so that classes without the field are rejected without throwing {@link NoSuchFieldException}
+     * (and filling in its stack trace) once per superclass.
+     */
+    private static MethodHandle fieldGetter(Class<?> type, String name) throws IllegalAccessException {
+        for (Class<?> t = type; t != null && t != Object.class; t = t.getSuperclass()) {
+            for (Field field : t.getDeclaredFields()) {
+                if (field.getName().equals(name)) {
+                    field.setAccessible(true);
+                    return MethodHandles.lookup().unreflectGetter(field).asType(GETTER);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Resolves an instance method, trying public methods (including inherited ones) first and
+     * falling back to a method declared directly on the class.
+     */
+    private static MethodHandle method(Class<?> type, String name, MethodType shape, Class<?>... parameters)
+            throws NoSuchMethodException, IllegalAccessException {
+        Method method;
+        try {
+            method = type.getMethod(name, parameters);
+        } catch (NoSuchMethodException e) {
+            method = type.getDeclaredMethod(name, parameters);
+        }
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method).asType(shape);
+    }
+
+    /**
+     * Lazily resolves one role of the propagation chain per class.
+     * A named class rather than a lambda keeps the bootstrap-side footprint predictable.
+     */
+    private static final class Resolver extends ClassValue<PropagationPlan> {
+        private final int role;
+
+        Resolver(int role) {
+            this.role = role;
+        }
+
+        @Override
+        protected PropagationPlan computeValue(Class<?> type) {
+            return new PropagationPlan(resolve(type, role));
+        }
+    }
+}
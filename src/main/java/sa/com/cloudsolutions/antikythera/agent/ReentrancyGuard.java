@@ -0,0 +1,153 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Marks the threads that are currently propagating a write, so that writes performed by the evaluator itself
+ * are not intercepted again.
+ *
+ * <p>This replaces a {@code ThreadLocal<Boolean>}. With hundreds of thousands of virtual threads, a thread
+ * local materializes one map entry (and the map itself) in every thread that ever reaches the hook, and
+ * each write paid a get/set/set sequence on it. The guard instead keeps the ids of the threads that are
+ * <em>currently inside</em> the agent in a fixed table shared by all threads:</p>
+ * <ul>
+ *   <li>{@link #enter()} scans a short window of slots starting at the hash of the thread id. If the id is
+ *       already there the thread is re-entering; otherwise it claims the first free slot with a CAS.</li>
+ *   <li>{@link #exit(int)} clears the claimed slot with a plain volatile write.</li>
+ *   <li>If the whole window is taken, the id goes to a concurrent overflow set, which is only consulted
+ *       while it is non-empty.</li>
+ * </ul>
+ *
+ * <p>Memory is therefore bounded by the number of threads propagating at the same time, not by the number of
+ * threads that ever did, and nothing is boxed on the common path. The check is only reached for writes to
+ * enrolled classes; writes to other classes are rejected before the guard is consulted.</p>
+ *
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * int token = ReentrancyGuard.enter();
+ * if (token == ReentrancyGuard.REENTRANT) return;
+ * try {
+ *     ...
+ * } finally {
+ *     ReentrancyGuard.exit(token);
+ * }
+ * }</pre>
+ *
+ * <p>Lives on the bootstrap class path; its entry points are public because the reflective advice is inlined
+ * into {@code java.lang.reflect.Field}.</p>
+ */
+public final class ReentrancyGuard {
+
+    /** Returned by {@link #enter()} when the calling thread is already inside the agent. */
+    public static final int REENTRANT = -1;
+
+    /** Token for a thread recorded in the overflow set. */
+    private static final int OVERFLOW = -2;
+
+    /** Number of slots probed from the home slot before falling back to the overflow set. */
+    private static final int WINDOW = 8;
+
+    private static final int SLOTS = slots();
+    private static final AtomicLongArray OWNERS = new AtomicLongArray(SLOTS);
+    private static final Set<Long> OVERFLOWED = ConcurrentHashMap.newKeySet();
+
+    private ReentrancyGuard() {
+    }
+
+    /**
+     * Records the calling thread as being inside the agent.
+     *
+     * @return a token to pass to {@link #exit(int)}, or {@link #REENTRANT} if the thread is already inside
+     */
+    public static int enter() {
+        long id = Thread.currentThread().threadId();
+        int home = home(id);
+        int free = -1;
+        for (int i = 0; i < WINDOW; i++) {
+            int slot = (home + i) & (SLOTS - 1);
+            long owner = OWNERS.get(slot);
+            if (owner == id) {
+                return REENTRANT;
+            }
+            if (owner == 0 && free < 0) {
+                free = slot;
+            }
+        }
+        if (!OVERFLOWED.isEmpty() && OVERFLOWED.contains(id)) {
+            return REENTRANT;
+        }
+        // Only this thread ever writes its own id, so no other slot can receive it while we look for room.
+        if (free >= 0 && OWNERS.compareAndSet(free, 0, id)) {
+            return free;
+        }
+        for (int i = 0; i < WINDOW; i++) {
+            int slot = (home + i) & (SLOTS - 1);
+            if (OWNERS.get(slot) == 0 && OWNERS.compareAndSet(slot, 0, id)) {
+                return slot;
+            }
+        }
+        OVERFLOWED.add(id);
+        return OVERFLOW;
+    }
+
+    /**
+     * Releases what {@link #enter()} recorded. Passing {@link #REENTRANT} is allowed and does nothing, so
+     * callers that must run regardless of reentrancy can release unconditionally.
+     *
+     * @param token the value returned by the matching {@link #enter()}
+     */
+    public static void exit(int token) {
+        if (token >= 0) {
+            OWNERS.set(token, 0);
+        } else if (token == OVERFLOW) {
+            OVERFLOWED.remove(Thread.currentThread().threadId());
+        }
+    }
+
+    /**
+     * @return {@code true} if the calling thread is currently inside the agent
+     */
+    public static boolean isActive() {
+        long id = Thread.currentThread().threadId();
+        int home = home(id);
+        for (int i = 0; i < WINDOW; i++) {
+            if (OWNERS.get((home + i) & (SLOTS - 1)) == id) {
+                return true;
+            }
+        }
+        return !OVERFLOWED.isEmpty() && OVERFLOWED.contains(id);
+    }
+
+    /**
+     * @return the number of threads currently recorded, for tests and diagnostics
+     */
+    static int occupancy() {
+        int count = OVERFLOWED.size();
+        for (int i = 0; i < SLOTS; i++) {
+            if (OWNERS.get(i) != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int home(long id) {
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        return (int) id & (SLOTS - 1);
+    }
+
+    /**
+     * Sizes the table to a power of two well above the number of threads that can run at once.
+     */
+    private static int slots() {
+        int n = 1024;
+        while (n < Runtime.getRuntime().availableProcessors() * 64) {
+            n <<= 1;
+        }
+        return n;
+    }
+}
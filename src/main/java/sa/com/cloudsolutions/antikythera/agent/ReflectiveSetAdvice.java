@@ -14,10 +14,11 @@ import java.lang.reflect.Method;
  *
  * <h2>Key Design Decisions</h2>
  * <ul>
- *   <li><b>Pure JDK Reflection:</b> Uses only standard Java reflection APIs to avoid class loader
- *       issues when instrumenting bootstrap classes like {@code java.lang.reflect.Field}.</li>
- *   <li><b>Recursion Prevention:</b> Employs a {@link ThreadLocal} flag to prevent infinite recursion
- *       when the advice's own reflective operations trigger further interceptions.</li>
+ *   <li><b>Pure JDK Reflection:</b> Uses only standard Java reflection and method handle APIs to avoid
+ *       class loader issues when instrumenting bootstrap classes like {@code java.lang.reflect.Field}.</li>
+ *   <li><b>Cached Lookups:</b> Member resolution is done once per class by {@link PropagationPlan}.</li>
+ *   <li><b>Recursion Prevention:</b> Records the propagating thread in the {@link ReentrancyGuard} to prevent
+ *       infinite recursion when the advice's own reflective operations trigger further interceptions.</li>
  *   <li><b>Fail-Safe:</b> All exceptions are caught and suppressed to ensure the advice never breaks
  *       the application's normal behavior.</li>
  *   <li><b>Instance Fields Only:</b> Only tracks instance field modifications; static fields are
@@ -34,8 +35,8 @@ import java.lang.reflect.Method;
  * </ol>
  *
  * <h2>Thread Safety</h2>
- * <p>The advice is thread-safe through the use of {@link ThreadLocal} for recursion tracking.
- * Each thread maintains its own recursion state.</p>
+ * <p>The advice is thread-safe: recursion tracking is keyed by thread id in {@link ReentrancyGuard}, which
+ * holds an entry only while a thread is propagating, so it stays small with many virtual threads.</p>
  *
  * @see net.bytebuddy.asm.Advice
  * @see java.lang.reflect.Field#set(Object, Object)
@@ -44,20 +45,15 @@ import java.lang.reflect.Method;
 public class ReflectiveSetAdvice {
 
     /**
-     * ThreadLocal flag to track if we're currently inside an agent-originated call.
+     * The recursion flag used before {@link ReentrancyGuard}, kept so that existing callers still compile and
+     * behave as before: setting it to {@code true} keeps the advice out of the current thread's reflective
+     * writes, and reading it tells whether the current thread is inside the agent. The advice only consults
+     * the thread local once a caller has set it, so it materializes no per-thread entry otherwise.
      *
-     * <p>This flag prevents infinite recursion that could occur when the advice itself
-     * uses reflection to update the symbol table, which might trigger this same advice again.
-     * The flag is set to {@code true} when entering the advice logic and reset to {@code false}
-     * when exiting.</p>
-     *
-     * <p><b>Visibility:</b> Must be {@code public} to be accessible from {@code java.lang.reflect.Field},
-     * which resides in the bootstrap module and has restricted visibility rules.</p>
-     *
-     * <p><b>Thread Safety:</b> Each thread has its own independent copy of this flag, preventing
-     * cross-thread interference.</p>
+     * @deprecated call {@link ReentrancyGuard#isActive()} instead; this field will be removed in a later release
      */
-    public static final ThreadLocal<Boolean> IN_AGENT_CALL = ThreadLocal.withInitial(() -> false);
+    @Deprecated
+    public static final ThreadLocal<Boolean> IN_AGENT_CALL = new LegacyFlag();
 
     /**
      * Advice method that executes after a reflective field set operation completes.
@@ -71,25 +67,27 @@ public class ReflectiveSetAdvice {
      *   <li><b>Guard Checks:</b> Validates preconditions and prevents recursion</li>
      *   <li><b>Locate Interceptor:</b> Searches the class hierarchy for {@code instanceInterceptor}</li>
      *   <li><b>Extract Evaluator:</b> Retrieves the {@code evaluator} field from the interceptor</li>
-     *   <li><b>Find Symbol:</b> Calls {@code evaluator.getField(fieldName)} to get the Symbol</li>
+     *   <li><b>Find Symbol:</b> Calls {@code evaluator.getField(fieldId)}, or {@code evaluator.getField(fieldName)}
+     *       if the evaluator has no id lookup, to get the Symbol</li>
      *   <li><b>Update Value:</b> Calls {@code symbol.setValue(value)} to sync the change</li>
      * </ol>
      *
      * <h3>Exclusion Criteria</h3>
-     * <p>The advice exits early without processing if:</p>
+     * <p>The advice exits early without processing if (checked in this order):</p>
      * <ul>
-     *   <li>Already in an agent call (recursion prevention)</li>
      *   <li>The field set operation threw an exception</li>
      *   <li>The target object is {@code null} (static field case)</li>
+     *   <li>The target's class does not carry {@code instanceInterceptor} (fast rejection)</li>
      *   <li>The field is {@code instanceInterceptor} itself (avoid self-tracking)</li>
+     *   <li>Already in an agent call (recursion prevention)</li>
      * </ul>
      *
      * <h3>Reflection Strategy</h3>
-     * <p>The method uses a multi-layered reflection approach:</p>
+     * <p>The lookups are delegated to {@link PropagationPlan}, which resolves them once per class:</p>
      * <ul>
      *   <li><b>Field Access:</b> Searches up the class hierarchy using {@code getDeclaredField()}</li>
      *   <li><b>Method Access:</b> Tries {@code getMethod()} first, falls back to {@code getDeclaredMethod()}</li>
-     *   <li><b>Accessibility:</b> Calls {@code setAccessible(true)} to bypass access restrictions</li>
+     *   <li><b>Invocation:</b> Uses cached {@link java.lang.invoke.MethodHandle}s instead of {@link Method#invoke}</li>
      * </ul>
      *
      * <h3>Error Handling</h3>
@@ -116,10 +114,6 @@ public class ReflectiveSetAdvice {
     ) {
         // ========== Guard Checks ==========
 
-        // Prevent recursive interception from agent-originated calls.
-        // If we're already processing an agent call, exit immediately to avoid infinite loops.
-        if (IN_AGENT_CALL.get()) return;
-
         // Only process successful field sets; if an exception was thrown, skip processing.
         if (thrown != null) return;
 
@@ -127,117 +121,89 @@ public class ReflectiveSetAdvice {
         // Skip them as we can't track their changes in the per-instance symbol table.
         if (target == null) return;
 
+        // Fast rejection: most reflective writes in a JVM target classes that were never enrolled.
+        // This check is a cached ClassValue lookup and runs before the reentrancy guard is consulted.
+        if (!PropagationPlan.isEnrolled(target.getClass())) {
+            AgentMetrics.rejected();
+            return;
+        }
+
         // Avoid tracking the instanceInterceptor field itself to prevent circular references
         // and unnecessary overhead.
-        if (self == null || self.getName().equals("instanceInterceptor") ) return;
+        if (self == null || self.getName().equals(PropagationPlan.INTERCEPTOR_FIELD)) return;
+
+        // Callers of the deprecated IN_AGENT_CALL flag can still switch the advice off for their thread.
+        if (isSuppressedByCaller()) return;
+
+        // Prevent recursive interception from agent-originated calls.
+        // If we're already processing an agent call, exit immediately to avoid infinite loops.
+        // Otherwise this marks that we're entering agent code: any reflective operations we perform
+        // will find the thread in the guard and avoid re-triggering this advice.
+        int token = ReentrancyGuard.enter();
+        if (token == ReentrancyGuard.REENTRANT) return;
 
         // ========== Enter Agent Context ==========
 
-        // Mark that we're entering agent code. Any reflective operations we perform
-        // will see this flag and avoid re-triggering this advice.
-        IN_AGENT_CALL.set(true);
         try {
-            // ========== Step 1: Locate the instanceInterceptor field ==========
-
-            // Search up the class hierarchy to find the 'instanceInterceptor' field.
-            // This field is injected by ByteBuddy into instrumented classes and holds
-            // the MethodInterceptor that manages the evaluation state.
-            Class<?> t = target.getClass();
-            Field interceptorField = null;
-            while (t != null && t != Object.class) {
-                try {
-                    interceptorField = t.getDeclaredField("instanceInterceptor");
-                    break; // Found it, stop searching
-                } catch (NoSuchFieldException e) {
-                    // Not in this class, try the superclass
-                    t = t.getSuperclass();
-                }
-            }
-
-            // If we found the interceptor field, proceed to extract the evaluator
-            if (interceptorField != null) {
-                interceptorField.setAccessible(true);
-                Object methodInterceptor = interceptorField.get(target);
-
-                if (methodInterceptor != null) {
-                    // ========== Step 2: Extract the evaluator from the MethodInterceptor ==========
-
-                    // The MethodInterceptor contains an 'evaluator' field that references
-                    // the EvaluationEngine responsible for managing the symbol table.
-                    Field evaluatorField = null;
-                    Class<?> miClass = methodInterceptor.getClass();
-                    while (miClass != null && miClass != Object.class) {
-                        try {
-                            evaluatorField = miClass.getDeclaredField("evaluator");
-                            break;
-                        } catch (NoSuchFieldException e) {
-                            // Not in this class, try the superclass
-                            miClass = miClass.getSuperclass();
-                        }
-                    }
-
-                    if (evaluatorField != null) {
-                        evaluatorField.setAccessible(true);
-                        Object evaluator = evaluatorField.get(methodInterceptor);
-
-                        if (evaluator != null) {
-                            // ========== Step 3: Get the Symbol for this field ==========
-
-                            // Call evaluator.getField(fieldName) to retrieve the Symbol object
-                            // that represents this field in the evaluation engine's symbol table.
-                            Method getFieldMethod = null;
-                            try {
-                                // Try public method first
-                                getFieldMethod = evaluator.getClass().getMethod("getField", String.class);
-                            } catch (NoSuchMethodException e) {
-                                // Fall back to declared method (possibly private/protected)
-                                getFieldMethod = evaluator.getClass().getDeclaredMethod("getField", String.class);
-                                getFieldMethod.setAccessible(true);
-                            }
-
-                            Object symbol = getFieldMethod.invoke(evaluator, self.getName());
-
-                            if (symbol != null) {
-                                // ========== Step 4: Update the Symbol's value ==========
-
-                                // Call symbol.setValue(value) to synchronize the symbol table
-                                // with the reflectively-modified field value.
-                                Method setValueMethod = null;
-                                try {
-                                    // Try public method first
-                                    setValueMethod = symbol.getClass().getMethod("setValue", Object.class);
-                                } catch (NoSuchMethodException e) {
-                                    // Fall back to declared method (possibly private/protected)
-                                    setValueMethod = symbol.getClass().getDeclaredMethod("setValue", Object.class);
-                                    setValueMethod.setAccessible(true);
-                                }
-
-                                // Update the symbol with the new value
-                                setValueMethod.invoke(symbol, value);
-                            }
-                        }
-                    }
-                }
-            }
+            // The field is identified by the id of its declaring class and name, so shadowed fields stay apart.
+            int fieldId = FieldIds.of(self);
+            AgentMetrics.intercepted(fieldId);
+
+            // ========== Propagate via the cached per-class plan ==========
+
+            // Locating instanceInterceptor, its evaluator, getField(int)/getField(String) and setValue(Object)
+            // is resolved once per class into method handles; see PropagationPlan.
+            PropagationPlan.propagate(target, fieldId, value);
         } catch (Throwable ignore) {
             // ========== Fail-Safe Error Handling ==========
 
             // Catch all exceptions to ensure the advice never breaks application behavior.
-            // Possible exceptions include:
-            // - NoSuchFieldException: Field doesn't exist in the class hierarchy
-            // - NoSuchMethodException: Method doesn't exist (API mismatch)
-            // - IllegalAccessException: Access denied despite setAccessible
-            // - InvocationTargetException: Target method threw an exception
-            // - ClassCastException: Type mismatch
-            // - NullPointerException: Unexpected null reference
+            // Lookup failures are already folded into the plan as "absent" handles, so what
+            // remains here is mostly whatever getField or setValue themselves throw.
             //
             // All are silently ignored - tracking is best-effort, not critical.
         } finally {
             // ========== Exit Agent Context ==========
 
-            // Always clear the flag when exiting, even if an exception occurred.
+            // Always release the guard when exiting, even if an exception occurred.
             // This ensures the thread can process future reflective operations normally.
-            IN_AGENT_CALL.set(false);
+            ReentrancyGuard.exit(token);
+        }
+    }
+
+    /**
+     * @return {@code true} if the current thread has set {@link #IN_AGENT_CALL}; public because the advice is
+     *         inlined into {@code java.lang.reflect.Field}
+     */
+    public static boolean isSuppressedByCaller() {
+        return LegacyFlag.used && ((LegacyFlag) IN_AGENT_CALL).isSet();
+    }
+
+    /**
+     * {@link #IN_AGENT_CALL}: reads report the {@link ReentrancyGuard}, and the thread local itself is only
+     * touched once a caller has set it.
+     */
+    private static final class LegacyFlag extends ThreadLocal<Boolean> {
+        static volatile boolean used;
+
+        @Override
+        protected Boolean initialValue() {
+            return Boolean.FALSE;
+        }
+
+        @Override
+        public Boolean get() {
+            return ReentrancyGuard.isActive() || isSet();
+        }
+
+        @Override
+        public void set(Boolean value) {
+            used = true;
+            super.set(value);
+        }
+
+        boolean isSet() {
+            return used && Boolean.TRUE.equals(super.get());
         }
     }
 }
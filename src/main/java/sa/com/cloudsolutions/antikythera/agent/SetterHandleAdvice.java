@@ -0,0 +1,54 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.implementation.bytecode.assign.Assigner;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+
+/**
+ * Byte Buddy advice woven into {@code MethodHandles.Lookup#findSetter} and {@code #unreflectSetter}.
+ *
+ * <p>The returned setter is replaced by one that also reports its writes, see
+ * {@link HandleWriteSupport#observeSetter(MethodHandle, Class, String)}. Setters are usually looked up once and
+ * kept in a static field, so the work done here is off the write path; invoking the returned handle costs one
+ * extra static call per write, like a hooked {@code PUTFIELD}.</p>
+ *
+ * <p>Since JDK 18, core reflection implements {@code Field#set*} with setters obtained from the JDK's own
+ * trusted lookup. Those are left unwrapped: such writes are already reported by {@link ReflectiveSetAdvice}.</p>
+ *
+ * <p>Like {@link ReflectiveSetAdvice}, the advice is inlined into a {@code java.base} class: it is appended to
+ * the bootstrap class path and never lets an exception escape, so a failure leaves the original setter in
+ * place.</p>
+ */
+public class SetterHandleAdvice {
+
+    /**
+     * @param lookup the lookup the setter was requested from
+     * @param arguments {@code (Class refc, String name, Class type)} for {@code findSetter},
+     *                  {@code (Field f)} for {@code unreflectSetter}
+     * @param setter the setter about to be returned, replaced by the observing one
+     * @param thrown the lookup failure, if any
+     */
+    @Advice.OnMethodExit(onThrowable = Throwable.class)
+    public static void after(
+            @Advice.This MethodHandles.Lookup lookup,
+            @Advice.AllArguments Object[] arguments,
+            @Advice.Return(readOnly = false, typing = Assigner.Typing.DYNAMIC) MethodHandle setter,
+            @Advice.Thrown Throwable thrown
+    ) {
+        if (thrown != null || setter == null) return;
+        // The trusted lookup is the only one for Object with full privileges; publicLookup() has none.
+        if (lookup.lookupClass() == Object.class && lookup.hasFullPrivilegeAccess()) return;
+        try {
+            if (arguments.length == 1) {
+                setter = HandleWriteSupport.observeSetter(setter, (Field) arguments[0]);
+            } else {
+                setter = HandleWriteSupport.observeSetter(setter, (Class<?>) arguments[0], (String) arguments[1]);
+            }
+        } catch (Throwable ignore) {
+            // Keep the original setter; tracking is best-effort.
+        }
+    }
+}
@@ -2,11 +2,24 @@ package sa.com.cloudsolutions.antikythera.agent;
 
 /**
  * Support class for agent callbacks.
+ *
+ * <p>{@link FieldWriteHook} injects a call to one of these methods after every field write in classes that
+ * declare {@code instanceInterceptor}. There is one entry point per primitive type so that the instrumented
+ * code passes the written value as is. Writes to objects of classes that are not enrolled are rejected before
+ * the value is boxed; every write to an enrolled object is boxed, whether or not the evaluator turns out to have
+ * a symbol for the field.</p>
+ *
+ * <p>Instrumented code identifies the field by its {@link FieldIds id}, which the JVM resolves the first time
+ * the write runs, rather than by name. The name-based callbacks serve class files too old to load ids as
+ * dynamic constants and callers that only know the name.</p>
+ *
+ * <p>Like {@link ReflectiveSetAdvice}, this class is placed on the bootstrap class path by the agent so that
+ * instrumented classes resolve it regardless of their class loader, and it never lets an exception escape.</p>
  */
 public class Support {
 
     /**
-     * Callback invoked after a field write operation on classes with instanceInterceptor.
+     * Callback invoked after a reference field write operation on classes with instanceInterceptor.
      * This is called from bytecode-instrumented field writes in classes that have an instanceInterceptor field.
      *
      * @param instance the object whose field was written
@@ -14,8 +27,169 @@ public class Support {
      * @param value the value that was written (may be null)
      */
     public static void afterSet(Object instance, String fieldName, Object value) {
-        // Currently a placeholder. This method is invoked by bytecode injected into
-        // classes with instanceInterceptor fields after any PUTFIELD/PUTSTATIC instruction.
-        // Future functionality can be added here if needed.
+        if (accepts(instance)) propagate(instance, fieldName, value);
+    }
+
+    /** Callback invoked after a {@code boolean} field write; see {@link #afterSet(Object, String, Object)}. */
+    public static void afterSetBoolean(Object instance, String fieldName, boolean value) {
+        if (accepts(instance)) propagate(instance, fieldName, value);
+    }
+
+    /** Callback invoked after a {@code byte} field write; see {@link #afterSet(Object, String, Object)}. */
+    public static void afterSetByte(Object instance, String fieldName, byte value) {
+        if (accepts(instance)) propagate(instance, fieldName, value);
+    }
+
+    /** Callback invoked after a {@code char} field write; see {@link #afterSet(Object, String, Object)}. */
+    public static void afterSetChar(Object instance, String fieldName, char value) {
+        if (accepts(instance)) propagate(instance, fieldName, value);
+    }
+
+    /** Callback invoked after a {@code short} field write; see {@link #afterSet(Object, String, Object)}. */
+    public static void afterSetShort(Object instance, String fieldName, short value) {
+        if (accepts(instance)) propagate(instance, fieldName, value);
+    }
+
+    /** Callback invoked after an {@code int} field write; see {@link #afterSet(Object, String, Object)}. */
+    public static void afterSetInt(Object instance, String fieldName, int value) {
+        if (accepts(instance)) propagate(instance, fieldName, value);
+    }
+
+    /** Callback invoked after a {@code long} field write; see {@link #afterSet(Object, String, Object)}. */
+    public static void afterSetLong(Object instance, String fieldName, long value) {
+        if (accepts(instance)) propagate(instance, fieldName, value);
+    }
+
+    /** Callback invoked after a {@code float} field write; see {@link #afterSet(Object, String, Object)}. */
+    public static void afterSetFloat(Object instance, String fieldName, float value) {
+        if (accepts(instance)) propagate(instance, fieldName, value);
+    }
+
+    /** Callback invoked after a {@code double} field write; see {@link #afterSet(Object, String, Object)}. */
+    public static void afterSetDouble(Object instance, String fieldName, double value) {
+        if (accepts(instance)) propagate(instance, fieldName, value);
+    }
+
+    /**
+     * Callback invoked after a reference field write, with the field identified by id. This is what
+     * {@link FieldWriteHook} emits for reference fields.
+     *
+     * @param instance the object whose field was written
+     * @param fieldId the {@link FieldIds id} of the field, registered under the class named in the instruction
+     * @param value the value that was written (may be null)
+     */
+    public static void afterSet(Object instance, int fieldId, Object value) {
+        if (accepts(instance)) propagate(instance, fieldId, value);
+    }
+
+    /** Callback invoked after a {@code boolean} field write; see {@link #afterSet(Object, int, Object)}. */
+    public static void afterSetBoolean(Object instance, int fieldId, boolean value) {
+        if (accepts(instance)) propagate(instance, fieldId, value);
+    }
+
+    /** Callback invoked after a {@code byte} field write; see {@link #afterSet(Object, int, Object)}. */
+    public static void afterSetByte(Object instance, int fieldId, byte value) {
+        if (accepts(instance)) propagate(instance, fieldId, value);
+    }
+
+    /** Callback invoked after a {@code char} field write; see {@link #afterSet(Object, int, Object)}. */
+    public static void afterSetChar(Object instance, int fieldId, char value) {
+        if (accepts(instance)) propagate(instance, fieldId, value);
+    }
+
+    /** Callback invoked after a {@code short} field write; see {@link #afterSet(Object, int, Object)}. */
+    public static void afterSetShort(Object instance, int fieldId, short value) {
+        if (accepts(instance)) propagate(instance, fieldId, value);
+    }
+
+    /** Callback invoked after an {@code int} field write; see {@link #afterSet(Object, int, Object)}. */
+    public static void afterSetInt(Object instance, int fieldId, int value) {
+        if (accepts(instance)) propagate(instance, fieldId, value);
+    }
+
+    /** Callback invoked after a {@code long} field write; see {@link #afterSet(Object, int, Object)}. */
+    public static void afterSetLong(Object instance, int fieldId, long value) {
+        if (accepts(instance)) propagate(instance, fieldId, value);
+    }
+
+    /** Callback invoked after a {@code float} field write; see {@link #afterSet(Object, int, Object)}. */
+    public static void afterSetFloat(Object instance, int fieldId, float value) {
+        if (accepts(instance)) propagate(instance, fieldId, value);
+    }
+
+    /** Callback invoked after a {@code double} field write; see {@link #afterSet(Object, int, Object)}. */
+    public static void afterSetDouble(Object instance, int fieldId, double value) {
+        if (accepts(instance)) propagate(instance, fieldId, value);
+    }
+
+    /**
+     * Entry point of {@link HandleWriteSupport} for writes through method handles, var handles and
+     * {@code Unsafe}. These writes carry no bytecode hook that could be removed, so unlike the callbacks above
+     * they do not report misses to {@link HotFieldProfiler}.
+     */
+    static void afterHandleSet(Object instance, int fieldId, Object value) {
+        if (accepts(instance)) propagate(instance, fieldId, value, false);
+    }
+
+    /**
+     * Shared head of the callbacks, run before the value is boxed.
+     *
+     * @return {@code true} if the write is to an object of an enrolled class; rejections are counted
+     */
+    private static boolean accepts(Object instance) {
+        if (instance == null) return false;
+        if (!PropagationPlan.isEnrolled(instance.getClass())) {
+            AgentMetrics.rejected();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Shared tail of the callbacks: guards against recursion exactly like {@link ReflectiveSetAdvice} and
+     * pushes the value into the evaluator through the cached {@link PropagationPlan}.
+     */
+    private static void propagate(Object instance, String fieldName, Object value) {
+        if (PropagationPlan.INTERCEPTOR_FIELD.equals(fieldName)) return;
+        int token = ReentrancyGuard.enter();
+        if (token == ReentrancyGuard.REENTRANT) return;
+
+        try {
+            AgentMetrics.intercepted(instance.getClass(), fieldName);
+            PropagationPlan.propagate(instance, fieldName, value);
+        } catch (Throwable ignore) {
+            // Tracking is best-effort; never let the evaluator break the instrumented code.
+        } finally {
+            ReentrancyGuard.exit(token);
+        }
+    }
+
+    /**
+     * Shared tail of the id-based callbacks of the bytecode hook.
+     */
+    private static void propagate(Object instance, int fieldId, Object value) {
+        propagate(instance, fieldId, value, true);
+    }
+
+    /**
+     * Shared tail of the id-based callbacks; see {@link #propagate(Object, String, Object)}.
+     *
+     * @param hooked {@code true} if the write was reported by the bytecode hook, whose misses are profiled
+     */
+    private static void propagate(Object instance, int fieldId, Object value, boolean hooked) {
+        int token = ReentrancyGuard.enter();
+        if (token == ReentrancyGuard.REENTRANT) return;
+
+        try {
+            AgentMetrics.intercepted(fieldId);
+            int outcome = PropagationPlan.propagateWithOutcome(instance, fieldId, value);
+            if (hooked && outcome == PropagationPlan.MISSING && HotFieldProfiler.enabled) {
+                HotFieldProfiler.missed(fieldId);
+            }
+        } catch (Throwable ignore) {
+            // Tracking is best-effort; never let the evaluator break the instrumented code.
+        } finally {
+            ReentrancyGuard.exit(token);
+        }
     }
 }
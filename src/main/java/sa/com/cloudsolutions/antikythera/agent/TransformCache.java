@@ -0,0 +1,194 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of class files instrumented by {@link FieldWriteHook}, so that a JVM does not repeat the work of the
+ * JVMs that ran before it.
+ *
+ * <h2>Keys</h2>
+ * <p>An entry is keyed by the SHA-256 of the original class file, salted with the class files of the hook
+ * itself. Changing the application class or upgrading the agent therefore misses instead of serving stale code.
+ * The configuration is not part of the key: the class and loader scopes decide whether a class is instrumented
+ * at all, never how, and the cache is only consulted for classes in scope.</p>
+ *
+ * <h2>Storage</h2>
+ * <p>Entries are files named after their key in the directory given by the {@code cache} setting. They are
+ * written to a temporary file and moved into place atomically, so JVMs sharing the directory never read a
+ * partial entry. A file that is not a class file is treated as a miss and overwritten. Disk failures only cost
+ * the cache, never the transformation.</p>
+ *
+ * <p>The directory has no size bound and nothing is evicted: entries for old versions of a class, or of the
+ * agent, stay until the directory is cleared. Clearing it is safe at any time, even while JVMs are using it;
+ * they simply miss.</p>
+ *
+ * <p>While already loaded classes are retransformed, entries are also held in memory between
+ * {@link #retain()} and {@link #release()}, with or without a directory; see {@link FieldWriteHook#prepare}.</p>
+ */
+final class TransformCache {
+
+    private static final HexFormat HEX = HexFormat.of();
+    private static final String[] HOOK_CLASSES = {"FieldWriteHook.class", "FieldWriteHook$WriteCallbackInjector.class"};
+
+    private final Path directory;
+    private final byte[] salt;
+    private final ConcurrentHashMap<String, byte[]> retained = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile boolean retaining;
+
+    /**
+     * @param directory where entries are stored, or {@code null} to cache only in memory
+     * @param salt mixed into every key
+     */
+    TransformCache(Path directory, byte[] salt) {
+        this.directory = directory;
+        this.salt = salt;
+    }
+
+    /**
+     * Opens the cache directory named by the configuration, creating it if needed.
+     *
+     * @return a cache that only stores in memory if no directory is configured or it cannot be used
+     */
+    static TransformCache create(AgentConfig config) {
+        byte[] salt = hookDigest();
+        Path directory = null;
+        if (config.getCacheDirectory() != null && salt != null) {
+            try {
+                directory = Files.createDirectories(Paths.get(config.getCacheDirectory()));
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Failed to open transform cache: " + e.getMessage());
+            }
+        }
+        return new TransformCache(directory, salt == null ? new byte[0] : salt);
+    }
+
+    /**
+     * @return {@code true} if lookups can hit, so that computing a key is worth it
+     */
+    boolean isActive() {
+        return directory != null || retaining;
+    }
+
+    /**
+     * @param original the class file as handed to the transformer
+     * @return the key of its instrumented form
+     */
+    String key(byte[] original) {
+        MessageDigest digest = sha256();
+        digest.update(salt);
+        return HEX.formatHex(digest.digest(original));
+    }
+
+    /**
+     * @return the instrumented class file, or {@code null} on a miss
+     */
+    byte[] get(String key) {
+        byte[] bytes = retained.get(key);
+        if (bytes == null && directory != null) {
+            try {
+                bytes = Files.readAllBytes(directory.resolve(key));
+                if (!isClassFile(bytes)) {
+                    bytes = null;
+                }
+            } catch (IOException | RuntimeException e) {
+                bytes = null;
+            }
+        }
+        (bytes == null ? misses : hits).incrementAndGet();
+        return bytes;
+    }
+
+    /**
+     * Stores an instrumented class file.
+     */
+    void put(String key, byte[] transformed) {
+        if (retaining) {
+            retained.put(key, transformed);
+        }
+        if (directory == null) {
+            return;
+        }
+        Path target = directory.resolve(key);
+        try {
+            Path temp = Files.createTempFile(directory, key, ".tmp");
+            try {
+                Files.write(temp, transformed);
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Full or read-only disk: the next JVM instruments the class again.
+        }
+    }
+
+    /**
+     * Starts holding entries in memory.
+     */
+    void retain() {
+        retaining = true;
+    }
+
+    /**
+     * Stops holding entries in memory and drops those held so far.
+     */
+    void release() {
+        retaining = false;
+        retained.clear();
+    }
+
+    /** @return lookups that found an entry */
+    long getHits() {
+        return hits.get();
+    }
+
+    /** @return lookups that did not */
+    long getMisses() {
+        return misses.get();
+    }
+
+    private static boolean isClassFile(byte[] bytes) {
+        return bytes.length > 8 && (bytes[0] & 0xff) == 0xca && (bytes[1] & 0xff) == 0xfe
+                && (bytes[2] & 0xff) == 0xba && (bytes[3] & 0xff) == 0xbe;
+    }
+
+    /**
+     * Digest of the hook's own class files, standing in for the agent version.
+     *
+     * @return the digest, or {@code null} if they cannot be read, in which case nothing is stored on disk
+     */
+    private static byte[] hookDigest() {
+        MessageDigest digest = sha256();
+        for (String name : HOOK_CLASSES) {
+            try (InputStream in = FieldWriteHook.class.getResourceAsStream(name)) {
+                if (in == null) {
+                    return null;
+                }
+                digest.update(in.readAllBytes());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
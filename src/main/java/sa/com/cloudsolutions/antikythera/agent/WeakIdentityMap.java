@@ -0,0 +1,132 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent map keyed by object identity that does not keep its keys alive.
+ *
+ * <p>The agent attaches bookkeeping to application objects it does not own and must neither call their
+ * {@code equals}/{@code hashCode} (which may be overridden, slow, or observe half-built state) nor prevent
+ * them from being collected. Entries whose key has been collected are purged on the next insertion.</p>
+ *
+ * <p>Lookups allocate a short-lived probe key that escape analysis can usually eliminate. This class lives on
+ * the bootstrap class path and avoids lambdas.</p>
+ *
+ * @param <V> type of the values
+ */
+final class WeakIdentityMap<V> {
+
+    private final ConcurrentHashMap<Object, V> map = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+    /**
+     * @return the value associated with {@code key}, or {@code null}
+     */
+    V get(Object key) {
+        return map.get(new Probe(key));
+    }
+
+    /**
+     * Associates {@code value} with {@code key} unless a value is already present.
+     *
+     * @return the previous value, or {@code null} if {@code value} was stored
+     */
+    V putIfAbsent(Object key, V value) {
+        expunge();
+        return map.putIfAbsent(new WeakKey(key, queue), value);
+    }
+
+    /**
+     * @return the value that was associated with {@code key}, or {@code null}
+     */
+    V remove(Object key) {
+        return map.remove(new Probe(key));
+    }
+
+    /**
+     * @return the number of entries, including entries whose key was collected but not yet purged
+     */
+    int size() {
+        return map.size();
+    }
+
+    /**
+     * @return a snapshot of the keys that have not been collected
+     */
+    List<Object> keys() {
+        List<Object> keys = new ArrayList<>(map.size());
+        for (Object key : map.keySet()) {
+            Object referent = ((WeakKey) key).get();
+            if (referent != null) {
+                keys.add(referent);
+            }
+        }
+        return keys;
+    }
+
+    void clear() {
+        map.clear();
+        expunge();
+    }
+
+    private void expunge() {
+        Reference<?> stale;
+        while ((stale = queue.poll()) != null) {
+            map.remove(stale);
+        }
+    }
+
+    /**
+     * Stored key: weak reference hashed by the identity hash of its referent. Once cleared it only equals itself,
+     * which is what {@link #expunge()} relies on to remove it.
+     */
+    private static final class WeakKey extends WeakReference<Object> {
+        private final int hash;
+
+        WeakKey(Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) return true;
+            Object referent = get();
+            if (referent == null) return false;
+            if (o instanceof WeakKey) return referent == ((WeakKey) o).get();
+            return o instanceof Probe && referent == ((Probe) o).referent;
+        }
+    }
+
+    /**
+     * Lookup key holding its referent strongly for the duration of a single map operation.
+     */
+    private static final class Probe {
+        private final Object referent;
+
+        Probe(Object referent) {
+            this.referent = referent;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(referent);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof WeakKey) return referent == ((WeakKey) o).get();
+            return o instanceof Probe && referent == ((Probe) o).referent;
+        }
+    }
+}
@@ -0,0 +1,509 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional recording mode that appends every observed field write to a memory-mapped, segmented journal.
+ *
+ * <p>While a journal is active, {@link PropagationPlan#propagate(Object, String, Object)} appends a compact
+ * binary record for each write before propagating it, so the journal sees writes from both
+ * {@link ReflectiveSetAdvice} and the {@link Support} callbacks. The journal is read back with
+ * {@link JournalReader}, which can replay it into an evaluator offline.</p>
+ *
+ * <h2>Layout</h2>
+ * <p>The journal is a directory of fixed-size segment files {@code journal-00000.seg},
+ * {@code journal-00001.seg}, ... each mapped into memory as a whole. Records are little endian, aligned to
+ * eight bytes and start with an eight byte header: the record length, the record type and a type specific
+ * tag. Names are written once, in definition records, and referred to by id afterwards:</p>
+ * <ul>
+ *   <li>{@code START} - wall clock and {@link System#nanoTime()} at the time the journal was opened.</li>
+ *   <li>{@code CLASS} - an interned class id and the class name.</li>
+ *   <li>{@code FIELD} - an interned field id, its class id and the field name.</li>
+ *   <li>{@code OBJECT} - an object id, the class id of the object and, for strings, their content.</li>
+ *   <li>{@code WRITE} - 40 bytes: class id, field id, target object id, timestamp and the value, which is
+ *       either the raw bits of a primitive (boxed values are unboxed) or the object id of a reference.</li>
+ *   <li>{@code PADDING} - filler at the end of a segment.</li>
+ * </ul>
+ * <p>A definition is always appended before the id it defines is published to other threads, so it precedes
+ * every record that refers to it.</p>
+ *
+ * <h2>Retention</h2>
+ * <p>A segment is flushed and dropped from the journal as soon as every byte of it has been published, so only
+ * the segments still being written stay mapped; the mapping itself is released when the garbage collector
+ * reclaims the buffer. By default every segment file is kept. With a maximum number of segments, the oldest
+ * files are deleted as new ones are created, except for the first, which holds the start of the journal and
+ * the definitions made early on. Writes whose definitions were in a deleted segment are read back without a
+ * class or field name.</p>
+ *
+ * <h2>Concurrency</h2>
+ * <p>Space is reserved with a single {@link AtomicLong#getAndAdd(long)} on the journal position, so writers
+ * never block one another. A record that would straddle two segments is turned into padding on both sides
+ * by the writer that reserved it, which then reserves again. Each writer fills in its record and publishes
+ * it by storing the length with release semantics; a reader stops at the first zero length. Mapping a new
+ * segment and retiring a completed one are the only steps taken under a lock, once per segment. A reservation
+ * whose segment fails to map is padded once the segment is mapped, so that it does not end the journal.</p>
+ *
+ * <p>Object identities are tracked in a {@link WeakIdentityMap}, so the journal does not keep the objects it
+ * has seen alive, and records themselves never touch the heap.</p>
+ *
+ * <p>Lives on the bootstrap class path next to {@link PropagationPlan}.</p>
+ */
+public final class WriteJournal {
+
+    static final int START = 1;
+    static final int CLASS = 2;
+    static final int FIELD = 3;
+    static final int OBJECT = 4;
+    static final int WRITE = 5;
+    static final int PADDING = 6;
+
+    static final int NULL = 0;
+    static final int BOOLEAN = 1;
+    static final int BYTE = 2;
+    static final int CHAR = 3;
+    static final int SHORT = 4;
+    static final int INT = 5;
+    static final int LONG = 6;
+    static final int FLOAT = 7;
+    static final int DOUBLE = 8;
+    static final int REFERENCE = 9;
+
+    static final int HEADER_SIZE = 8;
+    static final int WRITE_SIZE = 40;
+
+    /** Default size of a segment file. */
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+
+    private static final long MIN_SEGMENT_SIZE = 4096;
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+    private static final VarHandle LENGTH =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /** The journal writes are appended to, or {@code null} when recording is off. */
+    static volatile WriteJournal active;
+
+    private final Path directory;
+    private final long segmentSize;
+    private final int maxSegments;
+    private final int maxStringBytes;
+    private final AtomicLong position = new AtomicLong();
+    private final Object mapLock = new Object();
+    private volatile Segment[] segments = new Segment[0];
+
+    /** The oldest segment file after the first that has not been deleted; guarded by {@link #mapLock}. */
+    private int oldestKept = 1;
+
+    /** Reservations, as {@code {position, length}}, whose segment failed to map; guarded by {@link #mapLock}. */
+    private final List<long[]> stranded = new ArrayList<>();
+
+    private final ClassIds classIds = new ClassIds(this);
+    private final AtomicInteger nextClassId = new AtomicInteger(1);
+    private final AtomicInteger nextFieldId = new AtomicInteger(1);
+    private final AtomicLong nextObjectId = new AtomicLong(1);
+    private final WeakIdentityMap<Long> objectIds = new WeakIdentityMap<>();
+
+    private WriteJournal(Path directory, long segmentSize, int maxSegments) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.maxStringBytes = (int) Math.min(64 * 1024, segmentSize / 4);
+    }
+
+    /**
+     * Starts recording into {@code directory}, keeping every segment; see {@link #start(Path, long, int)}.
+     *
+     * @param directory directory for the segment files, created if needed
+     * @param segmentSize size of each segment file in bytes, rounded to a multiple of eight
+     * @return the journal now receiving writes
+     * @throws IOException if the directory or the first segment cannot be created
+     */
+    public static WriteJournal start(Path directory, long segmentSize) throws IOException {
+        return start(directory, segmentSize, 0);
+    }
+
+    /**
+     * Starts recording into {@code directory}, replacing any journal already there and any journal that is
+     * currently active.
+     *
+     * @param directory directory for the segment files, created if needed
+     * @param segmentSize size of each segment file in bytes, rounded to a multiple of eight
+     * @param maxSegments the number of segment files to keep, at least two; {@code 0} keeps all of them
+     * @return the journal now receiving writes
+     * @throws IOException if the directory or the first segment cannot be created
+     */
+    public static synchronized WriteJournal start(Path directory, long segmentSize, int maxSegments)
+            throws IOException {
+        stop();
+        long size = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, segmentSize)) & ~7L;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> old = Files.newDirectoryStream(directory, "journal-*.seg")) {
+            for (Path file : old) {
+                Files.delete(file);
+            }
+        }
+        WriteJournal journal = new WriteJournal(directory, size, maxSegments <= 0 ? 0 : Math.max(2, maxSegments));
+        journal.writeStart();
+        active = journal;
+        return journal;
+    }
+
+    /**
+     * Stops recording and flushes the active journal, if any. Writes racing with this call may or may not be
+     * recorded; stop once the writers of interest have finished.
+     */
+    public static synchronized void stop() {
+        WriteJournal journal = active;
+        active = null;
+        if (journal != null) {
+            journal.force();
+        }
+    }
+
+    /**
+     * @return {@code true} while writes are being journaled
+     */
+    public static boolean isRecording() {
+        return active != null;
+    }
+
+    /**
+     * @return the directory holding the segment files
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Public because {@link JournalReader} stays on the application class path while this class is loaded from
+     * the bootstrap class path, which puts them in different runtime packages.
+     *
+     * @param index the index of a segment
+     * @return the name of its file in the journal directory
+     */
+    public static String segmentName(int index) {
+        return String.format("journal-%05d.seg", index);
+    }
+
+    // ========== Appending ==========
+
+    /**
+     * Appends a {@code WRITE} record for a field write on {@code target}.
+     */
+    void append(Object target, String fieldName, Object value) throws IOException {
+        ClassEntry owner = classIds.get(target.getClass());
+        int fieldId = owner.fieldId(fieldName);
+        long objectId = objectId(target);
+
+        int tag;
+        long bits;
+        if (value == null) { tag = NULL; bits = 0; }
+        else if (value instanceof Integer) { tag = INT; bits = (Integer) value; }
+        else if (value instanceof Long) { tag = LONG; bits = (Long) value; }
+        else if (value instanceof Boolean) { tag = BOOLEAN; bits = (Boolean) value ? 1 : 0; }
+        else if (value instanceof Double) { tag = DOUBLE; bits = Double.doubleToRawLongBits((Double) value); }
+        else if (value instanceof Float) { tag = FLOAT; bits = Float.floatToRawIntBits((Float) value); }
+        else if (value instanceof Character) { tag = CHAR; bits = (Character) value; }
+        else if (value instanceof Byte) { tag = BYTE; bits = (Byte) value; }
+        else if (value instanceof Short) { tag = SHORT; bits = (Short) value; }
+        else { tag = REFERENCE; bits = objectId(value); }
+
+        long pos = reserve(WRITE_SIZE);
+        Segment segment = segment(pos, WRITE_SIZE);
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = (int) (pos % segmentSize);
+        buffer.putInt(offset + 8, owner.classId);
+        buffer.putInt(offset + 12, fieldId);
+        buffer.putLong(offset + 16, objectId);
+        buffer.putLong(offset + 24, System.nanoTime());
+        buffer.putLong(offset + 32, bits);
+        publish(segment, offset, WRITE_SIZE, WRITE, tag);
+    }
+
+    private long objectId(Object object) throws IOException {
+        Long id = objectIds.get(object);
+        if (id != null) {
+            return id;
+        }
+        long fresh = nextObjectId.getAndIncrement();
+        int classId = classIds.get(object.getClass()).classId;
+        byte[] content = object instanceof String ? utf8((String) object) : null;
+
+        int length = 24 + (content == null ? 0 : content.length);
+        long pos = reserve(align(length));
+        Segment segment = segment(pos, align(length));
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = (int) (pos % segmentSize);
+        buffer.putLong(offset + 8, fresh);
+        buffer.putInt(offset + 16, classId);
+        buffer.putInt(offset + 20, content == null ? -1 : content.length);
+        if (content != null) {
+            buffer.put(offset + 24, content);
+        }
+        publish(segment, offset, align(length), OBJECT, 0);
+
+        Long raced = objectIds.putIfAbsent(object, fresh);
+        return raced == null ? fresh : raced;
+    }
+
+    private void writeStart() throws IOException {
+        long pos = reserve(24);
+        Segment segment = segment(pos, 24);
+        segment.buffer.putLong(8, System.currentTimeMillis());
+        segment.buffer.putLong(16, System.nanoTime());
+        publish(segment, 0, 24, START, 0);
+    }
+
+    /**
+     * Appends a {@code CLASS} or {@code FIELD} definition: an id, an optional owner id and a name.
+     */
+    private void define(int type, int id, int owner, String name) throws IOException {
+        byte[] bytes = utf8(name);
+        int length = align(20 + bytes.length);
+        long pos = reserve(length);
+        Segment segment = segment(pos, length);
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = (int) (pos % segmentSize);
+        buffer.putInt(offset + 8, id);
+        buffer.putInt(offset + 12, owner);
+        buffer.putInt(offset + 16, bytes.length);
+        buffer.put(offset + 20, bytes);
+        publish(segment, offset, length, type, 0);
+    }
+
+    /**
+     * Reserves {@code length} bytes that do not cross a segment boundary.
+     */
+    private long reserve(int length) throws IOException {
+        while (true) {
+            long pos = position.getAndAdd(length);
+            long offset = pos % segmentSize;
+            if (offset + length <= segmentSize) {
+                return pos;
+            }
+            // Straddles two segments: pad both parts so that readers can skip them, then try again.
+            long head = segmentSize - offset;
+            try {
+                pad(pos, (int) head);
+            } finally {
+                pad(pos + head, (int) (length - head));
+            }
+        }
+    }
+
+    private void pad(long pos, int length) throws IOException {
+        publish(segment(pos, length), (int) (pos % segmentSize), length, PADDING, 0);
+    }
+
+    /**
+     * Returns the segment of a reservation. Should it fail to map, the reservation is padded as soon as the
+     * segment is mapped after all; a hole would stop readers there and keep the segment from retiring.
+     */
+    private Segment segment(long pos, int length) throws IOException {
+        try {
+            return segment(pos);
+        } catch (IOException | RuntimeException e) {
+            synchronized (mapLock) {
+                Segment[] mapped = segments;
+                int index = (int) (pos / segmentSize);
+                if (index < mapped.length && mapped[index] != null) {
+                    publish(mapped[index], (int) (pos % segmentSize), length, PADDING, 0);
+                } else {
+                    stranded.add(new long[]{pos, length});
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Publishes a record and retires its segment once all of it has been published.
+     */
+    private void publish(Segment segment, int offset, int length, int type, int tag) {
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.putInt(offset + 4, type | tag << 16);
+        LENGTH.setRelease(buffer, offset, length);
+        if (segment.published.addAndGet(length) == segmentSize) {
+            retire(segment);
+        }
+    }
+
+    private Segment segment(long pos) throws IOException {
+        int index = (int) (pos / segmentSize);
+        Segment[] mapped = segments;
+        if (index < mapped.length && mapped[index] != null) {
+            return mapped[index];
+        }
+        synchronized (mapLock) {
+            mapped = segments;
+            if (index < mapped.length && mapped[index] != null) {
+                return mapped[index];
+            }
+            Segment[] grown = Arrays.copyOf(mapped, Math.max(mapped.length, index + 1));
+            try (FileChannel channel = FileChannel.open(directory.resolve(segmentName(index)),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                grown[index] = new Segment(index, buffer);
+            }
+            segments = grown;
+            for (Iterator<long[]> it = stranded.iterator(); it.hasNext(); ) {
+                long[] reservation = it.next();
+                if (reservation[0] / segmentSize == index) {
+                    it.remove();
+                    publish(grown[index], (int) (reservation[0] % segmentSize), (int) reservation[1], PADDING, 0);
+                }
+            }
+            // Segment 0 and the newest maxSegments - 1 are kept.
+            while (maxSegments > 0 && oldestKept < index && index - oldestKept + 2 > maxSegments) {
+                delete(oldestKept++);
+            }
+            return grown[index];
+        }
+    }
+
+    /**
+     * Flushes a segment no writer will touch again and drops it, so that its mapping can be released.
+     */
+    private void retire(Segment segment) {
+        segment.buffer.force();
+        synchronized (mapLock) {
+            Segment[] retired = segments.clone();
+            retired[segment.index] = null;
+            segments = retired;
+            if (segment.index > 0 && segment.index < oldestKept) {
+                // Reserved by a writer that was overtaken while its file was being deleted.
+                delete(segment.index);
+            }
+        }
+    }
+
+    private void delete(int index) {
+        try {
+            Files.deleteIfExists(directory.resolve(segmentName(index)));
+        } catch (IOException ignore) {
+            // Some platforms refuse to delete a mapped file; it is simply kept.
+        }
+    }
+
+    /**
+     * @return the number of segments still mapped by the journal
+     */
+    int mappedSegments() {
+        int count = 0;
+        for (Segment segment : segments) {
+            if (segment != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void force() {
+        for (Segment segment : segments) {
+            if (segment != null) {
+                segment.buffer.force();
+            }
+        }
+    }
+
+    /**
+     * Encodes a string, cut at the last whole character that fits in {@link #maxStringBytes}.
+     */
+    private byte[] utf8(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= maxStringBytes) {
+            return bytes;
+        }
+        int end = maxStringBytes;
+        while (end > 0 && (bytes[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        return Arrays.copyOf(bytes, end);
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+
+    /**
+     * A mapped segment file and the number of its bytes published so far.
+     */
+    private static final class Segment {
+        final int index;
+        final MappedByteBuffer buffer;
+        final AtomicLong published = new AtomicLong();
+
+        Segment(int index, MappedByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+
+    // ========== Interning ==========
+
+    /**
+     * Interned id of a class and of the fields written on it.
+     */
+    private static final class ClassEntry {
+        private final WriteJournal journal;
+        final int classId;
+        private final ConcurrentHashMap<String, Integer> fields = new ConcurrentHashMap<>();
+
+        ClassEntry(WriteJournal journal, int classId) {
+            this.journal = journal;
+            this.classId = classId;
+        }
+
+        int fieldId(String name) throws IOException {
+            Integer id = fields.get(name);
+            if (id != null) {
+                return id;
+            }
+            int fresh = journal.nextFieldId.getAndIncrement();
+            journal.define(FIELD, fresh, classId, name);
+            Integer raced = fields.putIfAbsent(name, fresh);
+            return raced == null ? fresh : raced;
+        }
+    }
+
+    /**
+     * Assigns class ids on first sight of a class and writes the {@code CLASS} definition. Should two threads
+     * race, one definition simply goes unused.
+     */
+    private static final class ClassIds extends ClassValue<ClassEntry> {
+        private final WriteJournal journal;
+
+        ClassIds(WriteJournal journal) {
+            this.journal = journal;
+        }
+
+        @Override
+        protected ClassEntry computeValue(Class<?> type) {
+            int id = journal.nextClassId.getAndIncrement();
+            try {
+                journal.define(CLASS, id, 0, type.getName());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return new ClassEntry(journal, id);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AgentConfigTest {
+
+    @AfterEach
+    void clearProperties() {
+        System.clearProperty("antikythera.agent.args");
+        System.clearProperty("antikythera.agent.config");
+    }
+
+    @Test
+    void defaultsCoverEverythingButTheJdkAndAgentDependencies() {
+        AgentConfig config = AgentConfig.defaults();
+
+        assertTrue(config.acceptsClass("com/acme/Order"));
+        assertTrue(config.acceptsClass("sa/com/cloudsolutions/antikythera/agent/FieldWriteHookTest$Hooked"));
+        assertFalse(config.acceptsClass("java/util/ArrayList"));
+        assertFalse(config.acceptsClass("com/sun/proxy/Foo"));
+        assertFalse(config.acceptsClass("net/bytebuddy/ByteBuddy"));
+        assertTrue(config.isReflectiveHookEnabled());
+        assertTrue(config.isBytecodeHookEnabled());
+        assertFalse(config.isAsync());
+        assertNull(config.getCacheDirectory());
+        assertEquals(Paths.get(System.getProperty("java.io.tmpdir"),
+                "antikythera-agent-" + System.getProperty("user.name")).toString(), config.getBootstrapJarDirectory());
+        assertEquals("/var/cache/agent", AgentConfig.parse("cache=/var/cache/agent").getBootstrapJarDirectory());
+    }
+
+    @Test
+    void longestPrefixDecides() {
+        AgentConfig config = AgentConfig.parse(
+                "include=com.acme.;org.shop.,exclude=com.acme.generated.;org.shop.Legacy");
+        assertTrue(config.acceptsClass("com/acme/Order"));
+        assertFalse(config.acceptsClass("com/acme/generated/OrderDto"));
+        assertFalse(config.acceptsClass("org/shop/LegacyCart"));
+        assertTrue(config.acceptsClass("org/shop/Cart"));
+        assertFalse(config.acceptsClass("com/acmeother/Order"), "prefixes match characters, not packages");
+        assertFalse(config.acceptsClass("io/other/Thing"), "unmatched names are out of scope once includes exist");
+
+        AgentConfig reinclude = AgentConfig.parse("include=com.sun.acme.");
+        assertTrue(reinclude.acceptsClass("com/sun/acme/Bean"));
+        assertFalse(reinclude.acceptsClass("com/sun/proxy/Foo"));
+    }
+
+    @Test
+    void includeOfADefaultExclusionBringsItBack() {
+        AgentConfig config = AgentConfig.parse("include=java.;com.acme.");
+        assertTrue(config.acceptsClass("java/util/ArrayList"));
+        assertTrue(config.acceptsClass("com/acme/Order"));
+        assertFalse(config.acceptsClass("javax/swing/JButton"));
+
+        AgentConfig excluded = AgentConfig.parse("include=java.,exclude=java.");
+        assertFalse(excluded.acceptsClass("java/util/ArrayList"), "an explicit exclude still wins");
+    }
+
+    @Test
+    void excludeWinsOverIncludeOfTheSamePrefix() {
+        ClassScope scope = ClassScope.compile(List.of("com.acme."), List.of("com.acme."), false);
+        assertFalse(scope.accepts("com.acme.Order"));
+    }
+
+    @Test
+    void filtersClassLoaders() {
+        AgentConfig config = AgentConfig.parse("excludeLoaders=" + Isolated.class.getName());
+        assertTrue(config.acceptsLoader(getClass().getClassLoader()));
+        assertFalse(config.acceptsLoader(new Isolated()));
+        assertFalse(config.acceptsLoader(null));
+        assertFalse(config.acceptsLoader(ClassLoader.getPlatformClassLoader()));
+        assertTrue(AgentConfig.defaults().acceptsLoader(new Isolated()));
+    }
+
+    @Test
+    void agentArgumentsOverrideSystemPropertyAndFile(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("agent.properties");
+        Files.writeString(file, "include=com.file.,com.other.\nbytecode=false\nasync=true\nasync.bufferSize=64\n");
+        System.setProperty("antikythera.agent.config", file.toString());
+        System.setProperty("antikythera.agent.args", "async.bufferSize=128,reflective=false");
+
+        AgentConfig config = AgentConfig.parse("reflective=true,async.intervalMillis=5,bogus=1,novalue");
+
+        assertTrue(config.acceptsClass("com/file/A"));
+        assertTrue(config.acceptsClass("com/other/B"));
+        assertFalse(config.acceptsClass("com/acme/C"));
+        assertFalse(config.isBytecodeHookEnabled());
+        assertTrue(config.isReflectiveHookEnabled());
+        assertTrue(config.isAsync());
+        assertEquals(128, config.getAsyncBufferSize());
+        assertEquals(5_000_000L, config.getAsyncIntervalNanos());
+    }
+
+    @Test
+    void hookSkipsClassesOutOfScope() throws IOException {
+        byte[] bytes;
+        try (var in = getClass().getResourceAsStream("FieldWriteHookTest$Hooked.class")) {
+            bytes = in.readAllBytes();
+        }
+        String name = "sa/com/cloudsolutions/antikythera/agent/FieldWriteHookTest$Hooked";
+        ClassLoader loader = getClass().getClassLoader();
+
+        assertNotNull(new FieldWriteHook().transform(loader, name, null, null, bytes));
+        assertNull(new FieldWriteHook(AgentConfig.parse("exclude=sa.com.cloudsolutions."))
+                .transform(loader, name, null, null, bytes));
+        assertNull(new FieldWriteHook(AgentConfig.parse("include=com.acme."))
+                .transform(loader, name, null, null, bytes));
+    }
+
+    static class Isolated extends ClassLoader {
+        Isolated() {
+            super(null);
+        }
+    }
+}
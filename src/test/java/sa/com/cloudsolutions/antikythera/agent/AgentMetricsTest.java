@@ -0,0 +1,163 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AgentMetricsTest {
+
+    static class Evaluator {
+        public Object getField(String name) {
+            switch (name) {
+                case "missing": return null;
+                case "broken": return new BrokenSymbol();
+                default: return new Symbol();
+            }
+        }
+    }
+
+    static class Symbol {
+        public void setValue(Object value) {
+        }
+    }
+
+    static class BrokenSymbol {
+        public void setValue(Object value) {
+            throw new IllegalStateException("boom");
+        }
+    }
+
+    static class Interceptor {
+        final Object evaluator = new Evaluator();
+    }
+
+    static class Target {
+        Object instanceInterceptor = new Interceptor();
+    }
+
+    static class Other {
+        Object evaluator;
+    }
+
+    static class Base {
+        Object instanceInterceptor = new Interceptor();
+        int x;
+    }
+
+    static class Derived extends Base {
+        int x;
+    }
+
+    private final AgentMetrics metrics = AgentMetrics.getInstance();
+
+    @BeforeEach
+    void reset() {
+        metrics.reset();
+        AgentMetrics.setCountRejected(true);
+        AgentMetrics.setCountIntercepted(true);
+    }
+
+    @AfterEach
+    void stopCounting() {
+        AgentMetrics.setCountRejected(false);
+        AgentMetrics.setCountIntercepted(false);
+    }
+
+    @Test
+    void countsRejectionsAndOutcomes() {
+        Support.afterSetInt(new Other(), "x", 1);
+        Support.afterSet(new Other(), "evaluator", "e");
+
+        Target target = new Target();
+        Support.afterSetInt(target, "count", 1);
+        Support.afterSetLong(target, "count", 2L);
+        Support.afterSet(target, "missing", "m");
+        Support.afterSet(target, "broken", "b");
+        Support.afterSet(target, "broken", "b");
+
+        assertEquals(2, metrics.getRejectedWrites());
+        assertEquals(5, metrics.getInterceptedWrites());
+        assertEquals(2, metrics.getPropagatedWrites());
+        assertEquals(1, metrics.getUnresolvedWrites());
+        assertEquals(2, metrics.getFailedPropagations());
+        assertEquals(Map.of(IllegalStateException.class.getName(), 2L), metrics.getFailuresByType());
+        assertEquals(2, Arrays.stream(metrics.getLatencyHistogram()).sum());
+        assertTrue(metrics.getLatencyP50Nanos() > 0);
+        assertTrue(metrics.getLatencyP99Nanos() >= metrics.getLatencyP50Nanos());
+    }
+
+    @Test
+    void reportsTheMostWrittenFieldsFirst() {
+        Target target = new Target();
+        for (int i = 0; i < 30; i++) Support.afterSetInt(target, "hot", i);
+        for (int i = 0; i < 20; i++) Support.afterSetInt(target, "warm", i);
+        for (int i = 0; i < 10; i++) Support.afterSetInt(target, "cold", i);
+
+        metrics.setTopN(2);
+        String owner = Target.class.getName();
+        assertEquals(List.of(owner + "#hot", owner + "#warm"), List.copyOf(metrics.getTopFields().keySet()));
+        assertEquals(30L, metrics.getTopFields().get(owner + "#hot"));
+        assertEquals(Map.of(owner, 60L), metrics.getTopClasses());
+    }
+
+    @Test
+    void keepsShadowedFieldsApart() {
+        Derived target = new Derived();
+        Support.afterSetInt(target, FieldIds.of(Base.class, "x"), 1);
+        Support.afterSetInt(target, FieldIds.of(Derived.class, "x"), 2);
+        Support.afterSetInt(target, FieldIds.of(Derived.class, "x"), 3);
+
+        assertEquals(1L, metrics.getTopFields().get(Base.class.getName() + "#x"));
+        assertEquals(2L, metrics.getTopFields().get(Derived.class.getName() + "#x"));
+    }
+
+    @Test
+    void countsInterceptedWritesOnlyWhenAskedTo() {
+        AgentMetrics.setCountIntercepted(false);
+        Support.afterSetInt(new Target(), "count", 1);
+        assertEquals(0, metrics.getInterceptedWrites());
+        assertEquals(1, metrics.getPropagatedWrites());
+
+        AgentMetrics.setCountIntercepted(true);
+        Support.afterSetInt(new Target(), "count", 1);
+        assertEquals(1, metrics.getInterceptedWrites());
+    }
+
+    @Test
+    void countsRejectionsOnlyWhenAskedTo() {
+        AgentMetrics.setCountRejected(false);
+        Support.afterSetInt(new Other(), "x", 1);
+        assertEquals(0, metrics.getRejectedWrites());
+
+        AgentMetrics.setCountRejected(true);
+        Support.afterSetInt(new Other(), "x", 1);
+        assertEquals(1, metrics.getRejectedWrites());
+    }
+
+    @Test
+    void isReadableOverJmx() throws Exception {
+        AgentMetrics.register();
+        AgentMetrics.register();
+        Support.afterSetInt(new Other(), "x", 1);
+        Support.afterSetInt(new Target(), "count", 1);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(AgentMetrics.OBJECT_NAME);
+        assertEquals(1L, server.getAttribute(name, "RejectedWrites"));
+        assertEquals(1L, server.getAttribute(name, "PropagatedWrites"));
+        assertEquals(1, ((TabularData) server.getAttribute(name, "TopFields")).size());
+
+        server.invoke(name, "reset", null, null);
+        assertEquals(0L, server.getAttribute(name, "InterceptedWrites"));
+    }
+}
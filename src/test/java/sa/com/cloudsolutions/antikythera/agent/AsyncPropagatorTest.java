@@ -0,0 +1,271 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncPropagatorTest {
+
+    /** Evaluator that counts how often each field's symbol was updated and keeps the latest value. */
+    static class CountingEvaluator {
+        final Map<String, Object> values = new ConcurrentHashMap<>();
+        final Map<String, AtomicInteger> updates = new ConcurrentHashMap<>();
+        volatile Thread appliedBy;
+        public Object getField(String name) { return new CountingSymbol(this, name); }
+    }
+
+    static class CountingSymbol {
+        private final CountingEvaluator evaluator;
+        private final String name;
+        CountingSymbol(CountingEvaluator evaluator, String name) { this.evaluator = evaluator; this.name = name; }
+        public void setValue(Object value) {
+            evaluator.values.put(name, value);
+            evaluator.updates.computeIfAbsent(name, k -> new AtomicInteger()).incrementAndGet();
+            evaluator.appliedBy = Thread.currentThread();
+        }
+    }
+
+    static class Interceptor {
+        final Object evaluator;
+        Interceptor(Object evaluator) { this.evaluator = evaluator; }
+    }
+
+    static class Target {
+        Object instanceInterceptor;
+        Target(Object evaluator) { instanceInterceptor = new Interceptor(evaluator); }
+    }
+
+    @BeforeEach
+    void enable() {
+        // A long interval keeps the consumer out of the way so that batches are only drained by flush().
+        AsyncPropagator.enable(1 << 16, TimeUnit.HOURS.toNanos(1));
+    }
+
+    @AfterEach
+    void disable() {
+        AsyncPropagator.disable();
+    }
+
+    @Test
+    void defersPropagationUntilFlush() {
+        CountingEvaluator evaluator = new CountingEvaluator();
+        Target target = new Target(evaluator);
+
+        Support.afterSetInt(target, "count", 1);
+        assertTrue(evaluator.values.isEmpty());
+
+        AsyncPropagator.flush();
+        assertEquals(1, evaluator.values.get("count"));
+    }
+
+    @Test
+    void coalescesRepeatedWritesToTheLastValue() {
+        CountingEvaluator evaluator = new CountingEvaluator();
+        Target target = new Target(evaluator);
+
+        for (int i = 0; i < 10_000; i++) {
+            Support.afterSetInt(target, "count", i);
+            Support.afterSetLong(target, "total", i * 2L);
+        }
+        AsyncPropagator.flush();
+
+        assertEquals(9_999, evaluator.values.get("count"));
+        assertEquals(19_998L, evaluator.values.get("total"));
+        assertEquals(1, evaluator.updates.get("count").get());
+        assertEquals(1, evaluator.updates.get("total").get());
+    }
+
+    @Test
+    void keepsDistinctInstancesApart() {
+        CountingEvaluator first = new CountingEvaluator();
+        CountingEvaluator second = new CountingEvaluator();
+        Target a = new Target(first);
+        Target b = new Target(second);
+
+        Support.afterSet(a, "name", "a");
+        Support.afterSet(b, "name", "b");
+        AsyncPropagator.flush();
+
+        assertEquals("a", first.values.get("name"));
+        assertEquals("b", second.values.get("name"));
+    }
+
+    @Test
+    void handsFullBuffersToTheConsumer() throws InterruptedException {
+        AsyncPropagator.enable(4, TimeUnit.HOURS.toNanos(1));
+        CountingEvaluator evaluator = new CountingEvaluator();
+        Target target = new Target(evaluator);
+
+        for (int i = 0; i < 4; i++) {
+            Support.afterSetInt(target, "count", i);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (evaluator.values.get("count") == null && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(3, evaluator.values.get("count"), "a full buffer is applied without waiting for a flush");
+        assertNotSame(Thread.currentThread(), evaluator.appliedBy, "the writer does not run the evaluator");
+    }
+
+    /** Evaluator whose symbol lookups block until released, like one that has fallen far behind. */
+    static class BlockingEvaluator extends CountingEvaluator {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public Object getField(String name) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.getField(name);
+        }
+    }
+
+    @Test
+    void writersDoNotWaitForASlowEvaluator() throws InterruptedException {
+        AsyncPropagator.enable(1, TimeUnit.HOURS.toNanos(1));
+        BlockingEvaluator evaluator = new BlockingEvaluator();
+        Target target = new Target(evaluator);
+
+        Support.afterSetInt(target, "count", 0);
+        assertTrue(evaluator.entered.await(10, TimeUnit.SECONDS), "the consumer picks up the full batch");
+
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i <= AsyncPropagator.MAX_QUEUED_BATCHES; i++) {
+                Support.afterSetInt(target, "count", i);
+            }
+        });
+        writer.start();
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+        boolean blocked = writer.isAlive();
+        evaluator.release.countDown();
+        writer.join();
+        assertFalse(blocked, "writers only append while the queue has room");
+
+        AsyncPropagator.flush();
+        assertEquals(AsyncPropagator.MAX_QUEUED_BATCHES, evaluator.values.get("count"));
+    }
+
+    @Test
+    void boundsTheBatchesQueuedForASlowEvaluator() throws InterruptedException {
+        AsyncPropagator.enable(1, TimeUnit.HOURS.toNanos(1));
+        BlockingEvaluator evaluator = new BlockingEvaluator();
+        Target target = new Target(evaluator);
+
+        Support.afterSetInt(target, "count", 0);
+        assertTrue(evaluator.entered.await(10, TimeUnit.SECONDS), "the consumer picks up the full batch");
+
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i <= 1000; i++) {
+                Support.afterSetInt(target, "count", i);
+            }
+        });
+        writer.start();
+        writer.join(500);
+        boolean blocked = writer.isAlive();
+        int queued = AsyncPropagator.queuedBatches();
+        evaluator.release.countDown();
+        writer.join();
+
+        assertTrue(blocked, "a writer waits once its stripe's queue is full");
+        assertTrue(queued <= AsyncPropagator.MAX_QUEUED_BATCHES + 1, "queued " + queued);
+
+        AsyncPropagator.flush();
+        assertEquals(1000, evaluator.values.get("count"));
+        assertEquals(0, AsyncPropagator.queuedBatches());
+    }
+
+    @Test
+    void flushIsABarrierForOtherThreads() throws InterruptedException {
+        CountingEvaluator evaluator = new CountingEvaluator();
+        List<Thread> writers = new ArrayList<>();
+        List<Target> targets = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Target target = new Target(evaluator);
+            targets.add(target);
+            String field = "f" + t;
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i <= 1000; i++) {
+                    Support.afterSetInt(target, field, i);
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        AsyncPropagator.flush();
+
+        for (int t = 0; t < targets.size(); t++) {
+            assertEquals(1000, evaluator.values.get("f" + t));
+        }
+    }
+
+    @Test
+    void writesRacingDisableAreNotLeftInTheBuffers() throws InterruptedException {
+        AsyncPropagator.enable(1 << 16, TimeUnit.HOURS.toNanos(1));
+        CountingEvaluator evaluator = new CountingEvaluator();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Target target = new Target(evaluator);
+            String field = "f" + t;
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i <= 100_000; i++) {
+                    Support.afterSetInt(target, field, i);
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+
+        AsyncPropagator.disable();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        for (int t = 0; t < writers.size(); t++) {
+            assertEquals(100_000, evaluator.values.get("f" + t));
+        }
+    }
+
+    @Test
+    void appliesBatchesOfAFieldInOrder() throws InterruptedException {
+        AsyncPropagator.enable(3, TimeUnit.HOURS.toNanos(1));
+        CountingEvaluator evaluator = new CountingEvaluator();
+        Target target = new Target(evaluator);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int base = t * 1_000_000;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    Support.afterSetInt(target, "count", base + i);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        Support.afterSetInt(target, "count", -1);
+
+        AsyncPropagator.flush();
+
+        assertEquals(-1, evaluator.values.get("count"), "the last write queued reaches the symbol last");
+    }
+}
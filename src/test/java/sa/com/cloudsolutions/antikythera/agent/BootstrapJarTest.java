@@ -0,0 +1,96 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import net.bytebuddy.dynamic.ClassFileLocator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class BootstrapJarTest {
+
+    private static final String[] CLASSES = {FieldIds.class.getName(), WeakIdentityMap.class.getName()};
+    private static final ClassFileLocator LOCATOR =
+            ClassFileLocator.ForClassLoader.of(BootstrapJarTest.class.getClassLoader());
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void reusesTheJarOfAnEarlierRun() throws IOException {
+        Path first;
+        try (JarFile jar = BootstrapJar.of(LOCATOR, CLASSES, dir)) {
+            first = Paths.get(jar.getName());
+        }
+        try (JarFile jar = BootstrapJar.of(LOCATOR, CLASSES, dir)) {
+            assertEquals(first, Paths.get(jar.getName()));
+        }
+        assertEquals(first.getParent(), dir);
+        assertTrue(BootstrapJar.isPrivate(first));
+    }
+
+    @Test
+    void doesNotTrustAPlantedJar() throws IOException {
+        Path shared;
+        try (JarFile jar = BootstrapJar.of(LOCATOR, CLASSES, dir)) {
+            shared = Paths.get(jar.getName());
+        }
+        // Same name, different contents: what another user of a shared directory could leave behind.
+        try (OutputStream out = Files.newOutputStream(shared); JarOutputStream jos = new JarOutputStream(out)) {
+            jos.putNextEntry(new JarEntry(CLASSES[0].replace('.', '/') + ".class"));
+            jos.write(new byte[]{(byte) 0xca, (byte) 0xfe});
+            jos.closeEntry();
+        }
+
+        try (JarFile jar = BootstrapJar.of(LOCATOR, CLASSES, dir)) {
+            assertNotEquals(shared, Paths.get(jar.getName()));
+            assertNotNull(jar.getJarEntry(CLASSES[1].replace('.', '/') + ".class"));
+        }
+    }
+
+    @Test
+    void createsTheDirectoryForTheCurrentUserOnly() throws IOException {
+        Path nested = dir.resolve("nested");
+        BootstrapJar.of(LOCATOR, CLASSES, nested).close();
+
+        assertTrue(Files.isDirectory(nested));
+        assertTrue(BootstrapJar.isPrivate(nested));
+    }
+
+    @Test
+    void doesNotUseADirectoryOthersCanWrite() throws IOException {
+        assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Path shared = Files.createDirectory(dir.resolve("shared"));
+        Files.setPosixFilePermissions(shared, PosixFilePermissions.fromString("rwxrwxrwx"));
+
+        try (JarFile jar = BootstrapJar.of(LOCATOR, CLASSES, shared)) {
+            assertNotEquals(shared, Paths.get(jar.getName()).getParent());
+            assertNotNull(jar.getJarEntry(CLASSES[1].replace('.', '/') + ".class"));
+        }
+        try (var entries = Files.list(shared)) {
+            assertEquals(0, entries.count());
+        }
+    }
+
+    @Test
+    void doesNotFollowALinkToTheDirectory() throws IOException {
+        Path target = dir.resolve("target");
+        BootstrapJar.of(LOCATOR, CLASSES, target).close();
+        Path link = Files.createSymbolicLink(dir.resolve("link"), target);
+
+        assertFalse(BootstrapJar.isPrivateDirectory(link));
+        try (JarFile jar = BootstrapJar.of(LOCATOR, CLASSES, link)) {
+            assertNotEquals(link, Paths.get(jar.getName()).getParent());
+        }
+    }
+}
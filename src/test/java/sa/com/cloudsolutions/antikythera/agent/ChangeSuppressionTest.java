@@ -0,0 +1,152 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChangeSuppressionTest {
+
+    static class Evaluator {
+        final Map<String, Symbol> symbols = new HashMap<>();
+        public Object getField(String name) { return symbols.computeIfAbsent(name, n -> new Symbol()); }
+    }
+
+    static class Symbol {
+        Object value;
+        int sets;
+        public Object getValue() { return value; }
+        public void setValue(Object value) { this.value = value; sets++; }
+    }
+
+    static class WriteOnlySymbol {
+        int sets;
+        public void setValue(Object value) { sets++; }
+    }
+
+    static class Interceptor {
+        final Object evaluator;
+        Interceptor(Object evaluator) { this.evaluator = evaluator; }
+    }
+
+    static class Target {
+        Object instanceInterceptor;
+        Target(Object evaluator) { instanceInterceptor = new Interceptor(evaluator); }
+    }
+
+    /** Equal to every other Name with the same text, but never identical. */
+    static final class Name {
+        final String text;
+        Name(String text) { this.text = text; }
+        @Override public boolean equals(Object o) { return o instanceof Name && ((Name) o).text.equals(text); }
+        @Override public int hashCode() { return text.hashCode(); }
+    }
+
+    private final AgentMetrics metrics = AgentMetrics.getInstance();
+
+    @BeforeEach
+    void reset() {
+        metrics.reset();
+    }
+
+    @AfterEach
+    void disable() {
+        ChangeSuppression.configure(false, false);
+        ChangeSuppression.setListener(null);
+    }
+
+    @Test
+    void suppressesRepeatedPrimitiveWrites() {
+        ChangeSuppression.configure(true, false);
+        Evaluator evaluator = new Evaluator();
+        Target target = new Target(evaluator);
+
+        for (int i = 0; i < 5; i++) {
+            Support.afterSetInt(target, "count", 42);
+            Support.afterSetDouble(target, "ratio", Double.NaN);
+        }
+        Support.afterSetInt(target, "count", 43);
+        Support.afterSetDouble(target, "ratio", -0.0);
+        Support.afterSetDouble(target, "ratio", 0.0);
+
+        assertEquals(2, evaluator.symbols.get("count").sets);
+        assertEquals(43, evaluator.symbols.get("count").value);
+        assertEquals(3, evaluator.symbols.get("ratio").sets, "0.0 and -0.0 are different values");
+        assertEquals(8, metrics.getSuppressedWrites());
+        assertEquals(5, metrics.getPropagatedWrites());
+    }
+
+    @Test
+    void comparesReferencesByIdentityUnlessEqualsIsConfigured() {
+        Evaluator evaluator = new Evaluator();
+        Target target = new Target(evaluator);
+
+        ChangeSuppression.configure(true, false);
+        Support.afterSet(target, "name", new Name("a"));
+        Support.afterSet(target, "name", new Name("a"));
+        Object same = evaluator.symbols.get("name").value;
+        Support.afterSet(target, "name", same);
+        assertEquals(2, evaluator.symbols.get("name").sets);
+
+        ChangeSuppression.configure(true, true);
+        Support.afterSet(target, "name", new Name("a"));
+        Support.afterSet(target, "name", new Name("b"));
+        Support.afterSet(target, "name", null);
+        Support.afterSet(target, "name", null);
+        assertEquals(4, evaluator.symbols.get("name").sets);
+        assertEquals(3, metrics.getSuppressedWrites());
+    }
+
+    @Test
+    void reportsOnlyRealChangesWithTheirPreviousValue() {
+        ChangeSuppression.configure(true, false);
+        List<String> changes = new ArrayList<>();
+        ChangeSuppression.setListener((target, field, oldValue, newValue) ->
+                changes.add(field + ":" + oldValue + "->" + newValue));
+        Target target = new Target(new Evaluator());
+
+        Support.afterSetLong(target, "total", 1L);
+        Support.afterSetLong(target, "total", 1L);
+        Support.afterSetLong(target, "total", 2L);
+        Support.afterSetBoolean(target, "flag", false);
+        Support.afterSetBoolean(target, "flag", false);
+
+        assertEquals(List.of("total:null->1", "total:1->2", "flag:null->false"), changes);
+    }
+
+    @Test
+    void alwaysPropagatesToSymbolsWithoutGetValue() {
+        ChangeSuppression.configure(true, false);
+        List<String> changes = new ArrayList<>();
+        ChangeSuppression.setListener((target, field, oldValue, newValue) -> changes.add(field));
+        WriteOnlySymbol symbol = new WriteOnlySymbol();
+        Target target = new Target(new Object() {
+            public Object getField(String name) { return symbol; }
+        });
+
+        Support.afterSetInt(target, "count", 1);
+        Support.afterSetInt(target, "count", 1);
+
+        assertEquals(2, symbol.sets);
+        assertEquals(0, metrics.getSuppressedWrites());
+        assertTrue(changes.isEmpty(), "no previous value to report a change from");
+    }
+
+    @Test
+    void propagatesEverythingWhenDisabled() {
+        Evaluator evaluator = new Evaluator();
+        Target target = new Target(evaluator);
+
+        Support.afterSetInt(target, "count", 7);
+        Support.afterSetInt(target, "count", 7);
+
+        assertEquals(2, evaluator.symbols.get("count").sets);
+        assertEquals(0, metrics.getSuppressedWrites());
+    }
+}
@@ -0,0 +1,123 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DirtyTrackerTest {
+
+    static class Evaluator {
+        final List<String> sets = new ArrayList<>();
+        public Object getField(String name) { return new Symbol(this, name); }
+    }
+
+    static class Symbol {
+        private final Evaluator evaluator;
+        private final String name;
+        Symbol(Evaluator evaluator, String name) { this.evaluator = evaluator; this.name = name; }
+        public void setValue(Object value) { evaluator.sets.add(name + "=" + value); }
+    }
+
+    static class Interceptor {
+        final Object evaluator;
+        Interceptor(Object evaluator) { this.evaluator = evaluator; }
+    }
+
+    static class Base {
+        Object instanceInterceptor;
+        int count;
+        String label;
+        Base(Evaluator evaluator) { instanceInterceptor = new Interceptor(evaluator); }
+    }
+
+    static class Target extends Base {
+        long total;
+        Target(Evaluator evaluator) { super(evaluator); }
+    }
+
+    private final AgentMetrics metrics = AgentMetrics.getInstance();
+
+    @BeforeEach
+    void enable() {
+        metrics.reset();
+        DirtyTracker.enable();
+    }
+
+    @AfterEach
+    void disable() {
+        DirtyTracker.disable();
+    }
+
+    @Test
+    void propagatesOnlyTheLatestValueOnSync() {
+        Evaluator evaluator = new Evaluator();
+        Target target = new Target(evaluator);
+
+        for (int i = 1; i <= 100; i++) {
+            target.count = i;
+            Support.afterSetInt(target, "count", i);
+        }
+        target.label = "done";
+        Support.afterSet(target, "label", "done");
+
+        assertTrue(evaluator.sets.isEmpty(), "writes are only marked");
+        assertTrue(DirtyTracker.isDirty(target, "count"));
+        assertFalse(DirtyTracker.isDirty(target, "total"));
+        assertEquals(101, metrics.getDeferredWrites());
+
+        assertEquals(2, DirtyTracker.sync(target));
+        assertEquals(2, evaluator.sets.size());
+        assertTrue(evaluator.sets.containsAll(List.of("count=100", "label=done")));
+        assertFalse(DirtyTracker.isDirty(target, "count"));
+        assertEquals(0, DirtyTracker.sync(target), "a second sync finds nothing dirty");
+    }
+
+    @Test
+    void syncsSingleFieldsAndResolvesIds() {
+        Evaluator evaluator = new Evaluator();
+        Target target = new Target(evaluator);
+
+        target.total = 5L;
+        Support.afterSetLong(target, FieldIds.of(Target.class, "total"), 5L);
+        target.count = 3;
+        Support.afterSetInt(target, FieldIds.of(Target.class, "count"), 3);
+
+        assertEquals(0, DirtyTracker.sync(target, "label"));
+        assertEquals(1, DirtyTracker.sync(target, "total"));
+        assertEquals(List.of("total=5"), evaluator.sets);
+        assertTrue(DirtyTracker.isDirty(target, "count"), "inherited field marked through the accessing class id");
+        assertEquals(1, DirtyTracker.syncAll());
+        assertEquals(List.of("total=5", "count=3"), evaluator.sets);
+    }
+
+    @Test
+    void propagatesUnknownFieldsEagerly() {
+        Evaluator evaluator = new Evaluator();
+        Target target = new Target(evaluator);
+
+        Support.afterSet(target, "ghost", "boo");
+
+        assertEquals(List.of("ghost=boo"), evaluator.sets);
+        assertEquals(0, metrics.getDeferredWrites());
+    }
+
+    @Test
+    void disablingFlushesDirtyFields() {
+        Evaluator evaluator = new Evaluator();
+        Target target = new Target(evaluator);
+        target.count = 9;
+        Support.afterSetInt(target, "count", 9);
+
+        DirtyTracker.disable();
+        assertEquals(List.of("count=9"), evaluator.sets);
+
+        target.count = 10;
+        Support.afterSetInt(target, "count", 10);
+        assertEquals(List.of("count=9", "count=10"), evaluator.sets, "eager again once disabled");
+    }
+}
@@ -0,0 +1,167 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FieldIdsTest {
+
+    /** Evaluator resolving symbols by id, the way an evaluator would index its symbol array. */
+    public static class IdEvaluator {
+        final Map<Integer, Object> values = new HashMap<>();
+        public Object getField(int id) { return new IdSlot(id, values); }
+        public Object getField(String name) { throw new AssertionError("looked up by name: " + name); }
+    }
+
+    public static class IdSlot {
+        private final int id;
+        private final Map<Integer, Object> values;
+        IdSlot(int id, Map<Integer, Object> values) { this.id = id; this.values = values; }
+        public void setValue(Object value) { values.put(id, value); }
+    }
+
+    /** Evaluator with only the name-based contract. */
+    public static class NameEvaluator {
+        final Map<String, Object> values = new LinkedHashMap<>();
+        public Object getField(String name) { return new NameSlot(name, values); }
+    }
+
+    public static class NameSlot {
+        private final String name;
+        private final Map<String, Object> values;
+        NameSlot(String name, Map<String, Object> values) { this.name = name; this.values = values; }
+        public void setValue(Object value) { values.put(name, value); }
+    }
+
+    public static class Interceptor {
+        public final Object evaluator;
+        public Interceptor(Object evaluator) { this.evaluator = evaluator; }
+    }
+
+    public static class Base {
+        private Object instanceInterceptor;
+        public int x;
+        public long y;
+        public void setBaseX(int v) { x = v; }
+    }
+
+    public static class Sub extends Base {
+        private Object instanceInterceptor;
+        public int x;
+        public void setInterceptor(Object interceptor) { instanceInterceptor = interceptor; }
+        public void setX(int v) { x = v; }
+        public void setSuperX(int v) { super.x = v; }
+        public void setY(long v) { y = v; }
+    }
+
+    /** Child-first loader that defines {@link Base} and {@link Sub} from transformed bytes. */
+    static class HookingLoader extends ClassLoader {
+        private static final Set<String> HOOKED = Set.of(Base.class.getName(), Sub.class.getName());
+
+        HookingLoader() {
+            super(FieldIdsTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!HOOKED.contains(name)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded != null) return loaded;
+                try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                    byte[] transformed = new FieldWriteHook().transform(this, name.replace('.', '/'), null, null,
+                            in.readAllBytes());
+                    return defineClass(name, transformed, 0, transformed.length);
+                } catch (IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+            }
+        }
+    }
+
+    private Class<?> sub;
+
+    @BeforeEach
+    void loadInstrumented() throws ClassNotFoundException {
+        sub = new HookingLoader().loadClass(Sub.class.getName());
+    }
+
+    private Object newSub(Object evaluator) throws ReflectiveOperationException {
+        Object instance = sub.getConstructor().newInstance();
+        sub.getMethod("setInterceptor", Object.class).invoke(instance, new Interceptor(evaluator));
+        return instance;
+    }
+
+    @Test
+    void assignsStableDenseIds() {
+        int a = FieldIds.of(IdSlot.class, "id");
+        int b = FieldIds.of(NameSlot.class, "name");
+        assertNotEquals(a, b);
+        assertEquals(a, FieldIds.of(IdSlot.class, "id"));
+        assertEquals("name", FieldIds.nameOf(b));
+        assertEquals(NameSlot.class.getName(), FieldIds.ownerOf(b));
+        assertTrue(FieldIds.count() > Math.max(a, b));
+    }
+
+    @Test
+    void keepsClassesOfTheSameNameInDifferentLoadersApart() {
+        Class<?> otherBase = sub.getSuperclass();
+        assertEquals(Base.class.getName(), otherBase.getName());
+        assertNotSame(Base.class, otherBase);
+
+        assertNotEquals(FieldIds.of(Base.class, "x"), FieldIds.of(otherBase, "x"));
+        assertEquals(FieldIds.of(otherBase, "y"), FieldIds.of(sub, "y"), "inherited fields resolve to the declaring class");
+        assertEquals(FieldIds.of(Base.class, "y"), FieldIds.find(Sub.class, "y"));
+        assertEquals(FieldIds.UNKNOWN, FieldIds.find(Sub.class, "missing"));
+    }
+
+    @Test
+    void keepsShadowedFieldsApartAndResolvesInheritedOnes() throws ReflectiveOperationException {
+        IdEvaluator evaluator = new IdEvaluator();
+        Object instance = newSub(evaluator);
+
+        sub.getMethod("setX", int.class).invoke(instance, 1);
+        sub.getMethod("setSuperX", int.class).invoke(instance, 2);
+        sub.getMethod("setBaseX", int.class).invoke(instance, 3);
+        sub.getMethod("setY", long.class).invoke(instance, 4L);
+
+        int subX = FieldIds.of(sub, "x");
+        int baseX = FieldIds.of(sub.getSuperclass(), "x");
+        int baseY = FieldIds.of(sub.getSuperclass(), "y");
+        assertEquals(Map.of(subX, 1, baseX, 3, baseY, 4L), evaluator.values,
+                "writes to Base.x through Sub, super and Base share one id; Sub.y resolves to Base.y");
+    }
+
+    @Test
+    void fallsBackToNamesForEvaluatorsWithoutIdLookup() throws ReflectiveOperationException {
+        NameEvaluator evaluator = new NameEvaluator();
+        Object instance = newSub(evaluator);
+
+        sub.getMethod("setX", int.class).invoke(instance, 1);
+        sub.getMethod("setY", long.class).invoke(instance, 2L);
+
+        assertEquals(Map.of("x", 1, "y", 2L), evaluator.values);
+    }
+
+    @Test
+    void reflectiveWritesUseTheDeclaringClass() throws ReflectiveOperationException {
+        IdEvaluator evaluator = new IdEvaluator();
+        Object instance = newSub(evaluator);
+
+        ReflectiveSetAdvice.after(sub.getSuperclass().getField("x"), instance, 7, null);
+        ReflectiveSetAdvice.after(sub.getField("x"), instance, 8, null);
+
+        assertEquals(7, evaluator.values.get(FieldIds.of(sub.getSuperclass(), "x")));
+        assertEquals(8, evaluator.values.get(FieldIds.of(sub, "x")));
+    }
+}
@@ -0,0 +1,101 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FieldWriteEventsTest {
+
+    static class Evaluator {
+        public Object getField(String name) {
+            return "unknown".equals(name) ? null : new Symbol();
+        }
+    }
+
+    static class Symbol {
+        public void setValue(Object value) {
+        }
+    }
+
+    static class Interceptor {
+        final Object evaluator = new Evaluator();
+    }
+
+    static class Target {
+        Object instanceInterceptor = new Interceptor();
+    }
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void restoreDefaults() {
+        FieldWriteEvents.configure(1, 1000);
+    }
+
+    @Test
+    void createsNoEventWithoutRecording() {
+        assertNull(FieldWriteEvents.begin());
+    }
+
+    @Test
+    void recordsPropagatedWrites() throws IOException {
+        List<RecordedEvent> events = record(() -> {
+            Target target = new Target();
+            Support.afterSetInt(target, "count", 42);
+            Support.afterSet(target, "unknown", null);
+        });
+
+        assertEquals(2, events.size());
+        RecordedEvent found = events.get(0);
+        assertEquals(Target.class.getName(), found.getClass("targetClass").getName());
+        assertEquals("count", found.getString("fieldName"));
+        assertEquals(Integer.class.getName(), found.getClass("valueType").getName());
+        assertTrue(found.getBoolean("symbolFound"));
+        assertFalse(found.getBoolean("failed"));
+
+        RecordedEvent missing = events.get(1);
+        assertEquals("unknown", missing.getString("fieldName"));
+        assertNull(missing.getClass("valueType"));
+        assertFalse(missing.getBoolean("symbolFound"));
+    }
+
+    @Test
+    void throttlesAndSamples() throws IOException {
+        FieldWriteEvents.configure(1, 5);
+        List<RecordedEvent> throttled = record(() -> {
+            Target target = new Target();
+            for (int i = 0; i < 1000; i++) Support.afterSetInt(target, "count", i);
+        });
+        // A window boundary may fall inside the loop, granting a second budget.
+        assertTrue(throttled.size() >= 5 && throttled.size() <= 10, "got " + throttled.size());
+
+        FieldWriteEvents.configure(100, 0);
+        List<RecordedEvent> sampled = record(() -> {
+            Target target = new Target();
+            for (int i = 0; i < 10_000; i++) Support.afterSetInt(target, "count", i);
+        });
+        assertTrue(sampled.size() > 20 && sampled.size() < 500, "got " + sampled.size());
+    }
+
+    private List<RecordedEvent> record(Runnable writes) throws IOException {
+        Path file = dir.resolve("writes-" + System.nanoTime() + ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(FieldWriteEvent.NAME);
+            recording.start();
+            writes.run();
+            recording.stop();
+            recording.dump(file);
+        }
+        return RecordingFile.readAllEvents(file);
+    }
+}
@@ -0,0 +1,219 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FieldWriteHookTest {
+
+    /** Evaluator that hands out one slot per field name and remembers the last value written to each. */
+    static class RecordingEvaluator {
+        final Map<String, Object> values = new LinkedHashMap<>();
+        public Slot getField(String name) { return new Slot(name, values); }
+    }
+
+    static class Slot {
+        private final String name;
+        private final Map<String, Object> values;
+        Slot(String name, Map<String, Object> values) { this.name = name; this.values = values; }
+        public void setValue(Object value) { values.put(name, value); }
+    }
+
+    static class Interceptor {
+        final Object evaluator;
+        Interceptor(Object evaluator) { this.evaluator = evaluator; }
+    }
+
+    /** Loaded a second time through {@link HookingLoader} with the field write hook applied. */
+    public static class Hooked {
+        public Object instanceInterceptor;
+        public boolean z;
+        public byte b;
+        public char c;
+        public short s;
+        public int i;
+        public long j;
+        public float f;
+        public double d;
+        public String ref;
+        public int[] array;
+        public static long counter;
+        public Hooked other;
+
+        public Hooked() {
+            i = -1;
+        }
+
+        public void writeAll(boolean z, byte b, char c, short s, int i, long j, float f, double d, String ref, int[] array) {
+            this.z = z;
+            this.b = b;
+            this.c = c;
+            this.s = s;
+            this.i = i;
+            this.j = j;
+            this.f = f;
+            this.d = d;
+            this.ref = ref;
+            this.array = array;
+        }
+
+        public long writeStatic(long value) {
+            counter = value;
+            return counter;
+        }
+
+        public void writeOther(int value) {
+            other.i = value;
+            other.j = value * 2L;
+        }
+
+        public void writeInBranches(boolean first, int rounds) {
+            if (first) {
+                j = 1L;
+            } else {
+                d = 0.5d;
+            }
+            for (int k = 0; k < rounds; k++) {
+                j += k;
+                d *= 2;
+            }
+            counter = j;
+        }
+
+        public void setInterceptor(Object interceptor) {
+            instanceInterceptor = interceptor;
+        }
+    }
+
+    /** Child-first loader that defines {@link Hooked} from transformed bytes. */
+    static class HookingLoader extends ClassLoader {
+        HookingLoader() {
+            super(FieldWriteHookTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.equals(Hooked.class.getName())) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded != null) return loaded;
+                String resource = name.replace('.', '/') + ".class";
+                try (InputStream in = getParent().getResourceAsStream(resource)) {
+                    byte[] original = in.readAllBytes();
+                    byte[] transformed = new FieldWriteHook().transform(this, name.replace('.', '/'), null, null, original);
+                    assertNotNull(transformed, "Hooked declares instanceInterceptor and must be transformed");
+                    return defineClass(name, transformed, 0, transformed.length);
+                } catch (IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+            }
+        }
+    }
+
+    private Class<?> hooked;
+    private RecordingEvaluator evaluator;
+
+    @BeforeEach
+    void loadInstrumented() throws ClassNotFoundException {
+        hooked = new HookingLoader().loadClass(Hooked.class.getName());
+        assertNotSame(Hooked.class, hooked);
+        evaluator = new RecordingEvaluator();
+    }
+
+    private Object newEnrolled() throws ReflectiveOperationException {
+        Object instance = hooked.getConstructor().newInstance();
+        hooked.getMethod("setInterceptor", Object.class).invoke(instance, new Interceptor(evaluator));
+        return instance;
+    }
+
+    @Test
+    void reportsEveryPrimitiveAndReferenceType() throws ReflectiveOperationException {
+        Object instance = newEnrolled();
+        int[] array = {1, 2};
+        Method writeAll = hooked.getMethod("writeAll", boolean.class, byte.class, char.class, short.class,
+                int.class, long.class, float.class, double.class, String.class, int[].class);
+
+        writeAll.invoke(instance, true, (byte) 2, 'c', (short) 4, 5, 6L, 7.5f, 8.25d, "ref", array);
+
+        Map<String, Object> expected = new LinkedHashMap<>();
+        expected.put("z", true);
+        expected.put("b", (byte) 2);
+        expected.put("c", 'c');
+        expected.put("s", (short) 4);
+        expected.put("i", 5);
+        expected.put("j", 6L);
+        expected.put("f", 7.5f);
+        expected.put("d", 8.25d);
+        expected.put("ref", "ref");
+        expected.put("array", array);
+        assertEquals(expected, evaluator.values);
+        assertEquals(5, hooked.getField("i").getInt(instance), "the original write must still happen");
+    }
+
+    @Test
+    void reportsStaticWritesAgainstThis() throws ReflectiveOperationException {
+        Object instance = newEnrolled();
+
+        Object returned = hooked.getMethod("writeStatic", long.class).invoke(instance, 99L);
+
+        assertEquals(99L, returned);
+        assertEquals(99L, evaluator.values.get("counter"));
+    }
+
+    @Test
+    void reportsTheActualOwnerOfTheField() throws ReflectiveOperationException {
+        Object instance = newEnrolled();
+        RecordingEvaluator otherEvaluator = new RecordingEvaluator();
+        Object other = hooked.getConstructor().newInstance();
+        hooked.getMethod("setInterceptor", Object.class).invoke(other, new Interceptor(otherEvaluator));
+        Field otherField = hooked.getField("other");
+        otherField.set(instance, other);
+
+        hooked.getMethod("writeOther", int.class).invoke(instance, 21);
+
+        assertEquals(21, otherEvaluator.values.get("i"));
+        assertEquals(42L, otherEvaluator.values.get("j"));
+        assertFalse(evaluator.values.containsKey("i"));
+    }
+
+    @Test
+    void hooksWideWritesInsideBranchesAndLoops() throws ReflectiveOperationException {
+        // The class only loads if the frames at the merge points still verify with the scratch locals added.
+        Object instance = newEnrolled();
+        Method write = hooked.getMethod("writeInBranches", boolean.class, int.class);
+
+        write.invoke(instance, true, 0);
+        assertEquals(1L, evaluator.values.get("j"));
+        assertFalse(evaluator.values.containsKey("d"));
+
+        write.invoke(instance, false, 3);
+        assertEquals(4L, evaluator.values.get("j"));
+        assertEquals(4.0d, evaluator.values.get("d"));
+        assertEquals(4L, evaluator.values.get("counter"));
+        assertEquals(4.0d, hooked.getField("d").getDouble(instance));
+    }
+
+    @Test
+    void doesNotReportTheInterceptorItself() throws ReflectiveOperationException {
+        newEnrolled();
+        assertFalse(evaluator.values.containsKey(PropagationPlan.INTERCEPTOR_FIELD));
+    }
+
+    @Test
+    void leavesUnenrolledClassesUntouched() throws IOException {
+        try (InputStream in = getClass().getResourceAsStream("FieldWriteHookTest$Slot.class")) {
+            assertNull(new FieldWriteHook().transform(getClass().getClassLoader(),
+                    "sa/com/cloudsolutions/antikythera/agent/FieldWriteHookTest$Slot", null, null, in.readAllBytes()));
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HandleWriteHookTest {
+
+    public static class Evaluator {
+        final Map<String, Object> values = new LinkedHashMap<>();
+        public Object getField(String name) { return new Slot(name, values); }
+    }
+
+    public static class Slot {
+        private final String name;
+        private final Map<String, Object> values;
+        Slot(String name, Map<String, Object> values) { this.name = name; this.values = values; }
+        public void setValue(Object value) { values.put(name, value); }
+    }
+
+    public static class Interceptor {
+        public final Object evaluator;
+        public Interceptor(Object evaluator) { this.evaluator = evaluator; }
+    }
+
+    /** Enrolled, but never instrumented itself: only the writer is. */
+    public static class Bean {
+        public Object instanceInterceptor;
+        public int count;
+        public long total;
+        public String name;
+    }
+
+    public static class Plain {
+        public int count;
+    }
+
+    /** Writes fields the way serializers do, through var handles and Unsafe. */
+    public static class Writer {
+        private static final VarHandle COUNT;
+        private static final VarHandle TOTAL;
+        private static final VarHandle NAME;
+        private static final VarHandle PLAIN_COUNT;
+        private static final sun.misc.Unsafe UNSAFE;
+        private static final long COUNT_OFFSET;
+        private static final long TOTAL_OFFSET;
+        private static final long NAME_OFFSET;
+
+        static {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                COUNT = lookup.findVarHandle(Bean.class, "count", int.class);
+                TOTAL = lookup.findVarHandle(Bean.class, "total", long.class);
+                NAME = lookup.findVarHandle(Bean.class, "name", String.class);
+                PLAIN_COUNT = lookup.findVarHandle(Plain.class, "count", int.class);
+                Field theUnsafe = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                UNSAFE = (sun.misc.Unsafe) theUnsafe.get(null);
+                COUNT_OFFSET = UNSAFE.objectFieldOffset(Bean.class.getField("count"));
+                TOTAL_OFFSET = UNSAFE.objectFieldOffset(Bean.class.getField("total"));
+                NAME_OFFSET = UNSAFE.objectFieldOffset(Bean.class.getField("name"));
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        public static void withVarHandles(Bean bean, int count, long total, String name) {
+            COUNT.set(bean, count);
+            TOTAL.setRelease(bean, total);
+            NAME.setVolatile(bean, name);
+        }
+
+        public static void withUnsafe(Bean bean, int count, long total, String name) {
+            UNSAFE.putInt(bean, COUNT_OFFSET, count);
+            UNSAFE.putLongVolatile(bean, TOTAL_OFFSET, total);
+            UNSAFE.putObject(bean, NAME_OFFSET, name);
+        }
+
+        public static void conditionally(Bean bean, boolean first, long total) {
+            if (first) {
+                COUNT.set(bean, 1);
+            } else {
+                UNSAFE.putLong(bean, TOTAL_OFFSET, total);
+            }
+            for (int i = 0; i < 2; i++) {
+                if (total > i) {
+                    UNSAFE.putLong(bean, TOTAL_OFFSET, total + i);
+                }
+            }
+            NAME.set(bean, first ? "first" : "second");
+        }
+
+        public static void plain(Plain plain, int count) {
+            PLAIN_COUNT.set(plain, count);
+        }
+    }
+
+    /** Child-first loader that defines {@link Writer} from transformed bytes. */
+    static class HookingLoader extends ClassLoader {
+        HookingLoader() {
+            super(HandleWriteHookTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.equals(Writer.class.getName())) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded != null) return loaded;
+                try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                    byte[] transformed = new HandleWriteHook(AgentConfig.defaults())
+                            .transform(this, name.replace('.', '/'), null, null, in.readAllBytes());
+                    assertNotNull(transformed, "Writer calls VarHandle and Unsafe and must be transformed");
+                    return defineClass(name, transformed, 0, transformed.length);
+                } catch (IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+            }
+        }
+    }
+
+    private final AgentMetrics metrics = AgentMetrics.getInstance();
+    private Class<?> writer;
+    private Evaluator evaluator;
+    private Bean bean;
+
+    @BeforeEach
+    void setUp() throws ClassNotFoundException {
+        metrics.reset();
+        AgentMetrics.setCountRejected(true);
+        writer = new HookingLoader().loadClass(Writer.class.getName());
+        evaluator = new Evaluator();
+        bean = new Bean();
+        bean.instanceInterceptor = new Interceptor(evaluator);
+    }
+
+    @AfterEach
+    void stopCountingRejections() {
+        AgentMetrics.setCountRejected(false);
+    }
+
+    @Test
+    void observesVarHandleWrites() throws ReflectiveOperationException {
+        Method write = writer.getMethod("withVarHandles", Bean.class, int.class, long.class, String.class);
+        write.invoke(null, bean, 3, 4L, "five");
+
+        assertEquals(Map.of("count", 3, "total", 4L, "name", "five"), evaluator.values);
+        assertEquals(3, bean.count, "the original write must still happen");
+        assertEquals("five", bean.name);
+    }
+
+    @Test
+    void observesUnsafePuts() throws ReflectiveOperationException {
+        Method write = writer.getMethod("withUnsafe", Bean.class, int.class, long.class, String.class);
+        write.invoke(null, bean, 6, 7L, "eight");
+
+        assertEquals(Map.of("count", 6, "total", 7L, "name", "eight"), evaluator.values);
+        assertEquals(7L, bean.total);
+    }
+
+    @Test
+    void observesWritesInsideBranchesAndLoops() throws ReflectiveOperationException {
+        // Writer only loads if the frames at the merge points still verify with the scratch locals added.
+        Method write = writer.getMethod("conditionally", Bean.class, boolean.class, long.class);
+
+        write.invoke(null, bean, true, 0L);
+        assertEquals(Map.of("count", 1, "name", "first"), evaluator.values);
+
+        write.invoke(null, bean, false, 5L);
+        assertEquals(Map.of("count", 1, "total", 6L, "name", "second"), evaluator.values);
+        assertEquals(6L, bean.total);
+    }
+
+    @Test
+    void observesMethodHandleSetters() throws Throwable {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle count = HandleWriteSupport.observeSetter(
+                lookup.findSetter(Bean.class, "count", int.class), Bean.class, "count");
+        Field nameField = Bean.class.getField("name");
+        MethodHandle name = HandleWriteSupport.observeSetter(lookup.unreflectSetter(nameField), nameField);
+
+        count.invokeExact(bean, 9);
+        name.invokeExact(bean, "ten");
+
+        assertEquals(Map.of("count", 9, "name", "ten"), evaluator.values);
+        assertEquals(9, bean.count);
+    }
+
+    @Test
+    void rejectsWritesToUnenrolledTargets() throws ReflectiveOperationException {
+        Plain plain = new Plain();
+        writer.getMethod("plain", Plain.class, int.class).invoke(null, plain, 11);
+
+        assertEquals(11, plain.count);
+        assertEquals(1, metrics.getRejectedWrites());
+        assertEquals(0, metrics.getInterceptedWrites());
+    }
+
+    @Test
+    void skipsClassesWithoutHandleCalls() throws IOException {
+        try (InputStream in = getClass().getResourceAsStream("HandleWriteHookTest$Bean.class")) {
+            byte[] bytes = in.readAllBytes();
+            assertFalse(HandleWriteHook.referencesHandles(new ClassReader(bytes)));
+            assertNull(new HandleWriteHook(AgentConfig.defaults()).transform(getClass().getClassLoader(),
+                    "sa/com/cloudsolutions/antikythera/agent/HandleWriteHookTest$Bean", null, null, bytes));
+        }
+    }
+
+    @Test
+    void findsLoadedClassesWithHandleCalls() {
+        assertTrue(HandleWriteHook.referencesHandles(Writer.class));
+        assertFalse(HandleWriteHook.referencesHandles(Bean.class));
+        assertFalse(HandleWriteHook.referencesHandles(String.class), "no class file from the bootstrap loader");
+    }
+}
@@ -0,0 +1,219 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HotFieldProfilerTest {
+
+    /** Evaluator modelling only the fields it was given. */
+    static class Evaluator {
+        final Set<String> modelled;
+        final Map<String, Object> values = new LinkedHashMap<>();
+        Evaluator(Set<String> modelled) { this.modelled = modelled; }
+        public Object getField(String name) { return modelled.contains(name) ? new Symbol(this, name) : null; }
+    }
+
+    static class Symbol {
+        private final Evaluator evaluator;
+        private final String name;
+        Symbol(Evaluator evaluator, String name) { this.evaluator = evaluator; this.name = name; }
+        public void setValue(Object value) { evaluator.values.put(name, value); }
+    }
+
+    static class Interceptor {
+        final Object evaluator;
+        Interceptor(Object evaluator) { this.evaluator = evaluator; }
+    }
+
+    static class Target {
+        Object instanceInterceptor;
+        int hits;
+        int seen;
+        Target(Evaluator evaluator) { instanceInterceptor = evaluator == null ? null : new Interceptor(evaluator); }
+    }
+
+    /** Runs the hook of {@code hits}, as a superclass setter or helper would. */
+    static class Writer {
+    }
+
+    static class Helper {
+    }
+
+    private final List<Class<?>> retransformed = new ArrayList<>();
+    private final int hits = FieldIds.of(Target.class, "hits");
+    private final int seen = FieldIds.of(Target.class, "seen");
+
+    @BeforeEach
+    void enable() {
+        HotFieldProfiler.setRetransformer(retransformed::add);
+        HotFieldProfiler.configure(5);
+        hook(Writer.class, Target.class, "hits");
+        hook(Writer.class, Target.class, "seen");
+    }
+
+    @AfterEach
+    void disable() {
+        HotFieldProfiler.configure(0);
+        HotFieldProfiler.setRetransformer(null);
+        HotFieldProfiler.reset();
+    }
+
+    /** Resolves the field id of a hook in {@code writer}, as its dynamic constant does. */
+    private static int hook(Class<?> writer, Class<?> owner, String fieldName) {
+        try {
+            return FieldIds.fieldId(MethodHandles.privateLookupIn(writer, MethodHandles.lookup()), fieldName,
+                    int.class, owner.getName());
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void miss(Target target, int times) {
+        for (int i = 0; i < times; i++) {
+            Support.afterSetInt(target, hits, i);
+        }
+    }
+
+    @Test
+    void disablesFieldsThatNeverFindASymbol() {
+        Target target = new Target(new Evaluator(Set.of("seen")));
+
+        for (int i = 0; i < 4; i++) {
+            Support.afterSetInt(target, hits, i);
+            Support.afterSetInt(target, seen, i);
+        }
+        assertFalse(HotFieldProfiler.isDisabled(hits));
+        Support.afterSetInt(target, hits, 4);
+
+        assertTrue(HotFieldProfiler.isDisabled(hits));
+        assertTrue(HotFieldProfiler.isDisabled(Writer.class, Target.class.getName(), "hits"));
+        assertFalse(HotFieldProfiler.isDisabled(Target.class, Target.class.getName(), "hits"),
+                "the hook never ran in the class of the object written to");
+        assertFalse(HotFieldProfiler.isDisabled(seen));
+        assertEquals(List.of(Writer.class), retransformed, "the class executing the write is retransformed");
+        assertEquals(1, AgentMetrics.getInstance().getDeinstrumentedFields());
+    }
+
+    @Test
+    void countsOnlyConsecutiveMisses() {
+        Target target = new Target(new Evaluator(Set.of()));
+
+        miss(target, 4);
+        Support.afterSetInt(new Target(new Evaluator(Set.of("hits"))), hits, 0);
+        for (int i = 0; i < 4; i++) {
+            Support.afterSetInt(target, hits, i);
+            Support.afterSetInt(new Target(null), hits, i);
+        }
+
+        assertFalse(HotFieldProfiler.isDisabled(hits), "a hit resets the count, objects without evaluator say nothing");
+        assertTrue(retransformed.isEmpty());
+    }
+
+    @Test
+    void ignoresMissesOfWritesWithoutAHook() {
+        Target target = new Target(new Evaluator(Set.of()));
+
+        for (int i = 0; i < 20; i++) {
+            Support.afterHandleSet(target, hits, i);
+        }
+
+        assertFalse(HotFieldProfiler.isDisabled(hits), "reflective, handle and Unsafe writes have nothing to remove");
+        assertTrue(retransformed.isEmpty());
+    }
+
+    @Test
+    void retransformsOnlyOnceWhileDisabled() {
+        Target target = new Target(new Evaluator(Set.of()));
+
+        miss(target, 5);
+        miss(target, 100);
+        for (int i = 0; i < 100; i++) {
+            Support.afterHandleSet(target, hits, i);
+        }
+
+        assertTrue(HotFieldProfiler.isDisabled(hits));
+        assertEquals(List.of(Writer.class), retransformed);
+    }
+
+    @Test
+    void retransformsNewWritersOfADisabledField() {
+        miss(new Target(new Evaluator(Set.of())), 5);
+
+        hook(Helper.class, Target.class, "hits");
+        hook(Helper.class, Target.class, "hits");
+        hook(Helper.class, Target.class, "seen");
+
+        assertEquals(List.of(Writer.class, Helper.class), retransformed);
+        assertTrue(HotFieldProfiler.isDisabled(Helper.class, Target.class.getName(), "hits"));
+        assertFalse(HotFieldProfiler.isDisabled(Helper.class, Target.class.getName(), "seen"));
+    }
+
+    @Test
+    void restoresTheHookOnceASymbolAppears() {
+        Target target = new Target(new Evaluator(Set.of()));
+        miss(target, 5);
+        assertTrue(HotFieldProfiler.isDisabled(hits));
+
+        Support.afterHandleSet(new Target(new Evaluator(Set.of("hits"))), hits, 1);
+
+        assertFalse(HotFieldProfiler.isDisabled(hits), "a hit through any channel counts");
+        assertEquals(List.of(Writer.class, Writer.class), retransformed);
+
+        miss(target, 5);
+        HotFieldProfiler.observe(Target.class, "hits");
+        assertFalse(HotFieldProfiler.isDisabled(hits));
+        assertEquals(4, retransformed.size());
+    }
+
+    @Test
+    void hookSkipsDisabledFieldsOfTheClassBeingRetransformed() throws Exception {
+        Class<?> hooked = FieldWriteHookTest.Hooked.class;
+        Target target = new Target(new Evaluator(Set.of()));
+        int id = hook(hooked, hooked, "i");
+        for (int i = 0; i < 5; i++) {
+            Support.afterSetInt(target, id, i);
+        }
+        assertTrue(HotFieldProfiler.isDisabled(hooked, hooked.getName(), "i"));
+
+        assertFalse(run(hooked, hooked).containsKey("i"));
+        assertEquals(3, run(hooked, null).get("i"), "a class being loaded keeps every hook until it runs");
+    }
+
+    /** Instruments {@code type} as if it were being retransformed and runs its writes in a fresh loader. */
+    private Map<String, Object> run(Class<?> type, Class<?> classBeingRedefined) throws Exception {
+        String name = type.getName();
+        byte[] transformed;
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(name.replace('.', '/') + ".class")) {
+            transformed = new FieldWriteHook().transform(getClass().getClassLoader(), name.replace('.', '/'),
+                    classBeingRedefined, null, in.readAllBytes());
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        Class<?> copy = new ClassLoader(getClass().getClassLoader()) {
+            Class<?> define() {
+                return defineClass(name, transformed, 0, transformed.length);
+            }
+        }.define();
+        FieldWriteHookTest.RecordingEvaluator evaluator = new FieldWriteHookTest.RecordingEvaluator();
+        Object instance = copy.getConstructor().newInstance();
+        copy.getMethod("setInterceptor", Object.class).invoke(instance, new FieldWriteHookTest.Interceptor(evaluator));
+        copy.getMethod("writeAll", boolean.class, byte.class, char.class, short.class, int.class, long.class,
+                float.class, double.class, String.class, int[].class)
+                .invoke(instance, true, (byte) 1, 'c', (short) 2, 3, 4L, 5f, 6d, "ref", null);
+        assertEquals(3, copy.getField("i").getInt(instance));
+        assertEquals(4L, evaluator.values.get("j"));
+        return evaluator.values;
+    }
+}
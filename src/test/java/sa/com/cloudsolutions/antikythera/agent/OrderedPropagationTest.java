@@ -0,0 +1,145 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Stress tests: several threads write fields of shared and of disjoint enrolled objects and report each write
+ * the way the hook does, after the write has returned.
+ */
+public class OrderedPropagationTest {
+
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    static class Evaluator {
+        final Map<String, Symbol> symbols = new ConcurrentHashMap<>();
+        public Object getField(String name) { return symbols.computeIfAbsent(name, n -> new Symbol()); }
+        Object valueOf(String name) { return symbols.get(name).value; }
+    }
+
+    static class Symbol {
+        volatile Object value;
+        public void setValue(Object value) { this.value = value; }
+    }
+
+    static class Interceptor {
+        final Object evaluator;
+        Interceptor(Object evaluator) { this.evaluator = evaluator; }
+    }
+
+    static class Target {
+        Object instanceInterceptor;
+        int count;
+        String label;
+        Target(Evaluator evaluator) { instanceInterceptor = new Interceptor(evaluator); }
+    }
+
+    private final int count = FieldIds.of(Target.class, "count");
+    private final int label = FieldIds.of(Target.class, "label");
+    private ExecutorService pool;
+
+    @BeforeEach
+    void enable() {
+        OrderedPropagation.enable();
+        pool = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterEach
+    void disable() {
+        OrderedPropagation.disable();
+        pool.shutdownNow();
+    }
+
+    @Test
+    void deliversTheCurrentValueInsteadOfAStaleOne() {
+        Evaluator evaluator = new Evaluator();
+        Target target = new Target(evaluator);
+
+        target.count = 2;
+        Support.afterSetInt(target, count, 2);
+        Support.afterSetInt(target, count, 1);
+        assertEquals(2, evaluator.valueOf("count"), "the late report of an overwritten value delivers the field");
+
+        Support.afterSet(target, "ghost", "boo");
+        assertEquals("boo", evaluator.valueOf("ghost"), "fields outside the layout get the value the hook saw");
+
+        OrderedPropagation.disable();
+        Support.afterSetInt(target, count, 1);
+        assertEquals(1, evaluator.valueOf("count"));
+    }
+
+    @Test
+    void sharedObjectEndsWithTheLastWrite() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            Evaluator evaluator = new Evaluator();
+            Target target = new Target(evaluator);
+
+            run(THREADS, t -> {
+                for (int i = 0; i < 2_000; i++) {
+                    int value = t * 2_000 + i;
+                    target.count = value;
+                    Support.afterSetInt(target, count, value);
+                    String text = String.valueOf(value);
+                    target.label = text;
+                    Support.afterSet(target, label, text);
+                }
+            });
+
+            assertEquals(target.count, evaluator.valueOf("count"), "round " + round);
+            assertSame(target.label, evaluator.valueOf("label"), "round " + round);
+        }
+    }
+
+    @Test
+    void disjointObjectsEndWithTheirOwnLastWrite() throws Exception {
+        Evaluator[] evaluators = new Evaluator[THREADS];
+        Target[] targets = new Target[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            evaluators[t] = new Evaluator();
+            targets[t] = new Target(evaluators[t]);
+        }
+
+        run(THREADS, t -> {
+            for (int i = 0; i <= 20_000; i++) {
+                targets[t].count = i;
+                Support.afterSetInt(targets[t], count, i);
+            }
+        });
+
+        for (int t = 0; t < THREADS; t++) {
+            assertEquals(20_000, evaluators[t].valueOf("count"));
+        }
+    }
+
+    /**
+     * Runs {@code task} once on each of {@code threads} threads, all released at the same time.
+     */
+    private void run(int threads, IntConsumer task) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        Future<?>[] futures = new Future<?>[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures[t] = pool.submit(() -> {
+                start.await();
+                task.accept(thread);
+                return null;
+            });
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+    }
+}
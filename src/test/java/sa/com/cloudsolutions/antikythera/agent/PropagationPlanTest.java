@@ -0,0 +1,205 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PropagationPlanTest {
+
+    static class RecordingSymbol {
+        final List<Object> values = new ArrayList<>();
+        private void setValue(Object value) { values.add(value); }
+    }
+
+    static class PublicEvaluator {
+        final List<String> requested = new ArrayList<>();
+        final RecordingSymbol symbol = new RecordingSymbol();
+        public RecordingSymbol getField(String name) { requested.add(name); return symbol; }
+    }
+
+    static class InheritedEvaluator extends PublicEvaluator {
+    }
+
+    static class HiddenEvaluator {
+        final RecordingSymbol symbol = new RecordingSymbol();
+        private RecordingSymbol getField(String name) { return symbol; }
+    }
+
+    static class NullEvaluator {
+        public Object getField(String name) { return null; }
+    }
+
+    static class Interceptor {
+        Object evaluator;
+        Interceptor(Object evaluator) { this.evaluator = evaluator; }
+    }
+
+    static class SubInterceptor extends Interceptor {
+        SubInterceptor(Object evaluator) { super(evaluator); }
+    }
+
+    static class Enrolled {
+        private Interceptor instanceInterceptor;
+        int value;
+    }
+
+    static class DeepEnrolled extends Enrolled {
+        long other;
+    }
+
+    static class NotEnrolled {
+        int value;
+    }
+
+    /**
+     * The propagation steps exactly as ReflectiveSetAdvice performed them before plans were cached.
+     * Used as an oracle so that the cached path can be checked for identical behavior.
+     */
+    static void legacyPropagate(Field self, Object target, Object value) {
+        try {
+            Class<?> t = target.getClass();
+            Field interceptorField = null;
+            while (t != null && t != Object.class) {
+                try {
+                    interceptorField = t.getDeclaredField("instanceInterceptor");
+                    break;
+                } catch (NoSuchFieldException e) {
+                    t = t.getSuperclass();
+                }
+            }
+            if (interceptorField == null) return;
+            interceptorField.setAccessible(true);
+            Object mi = interceptorField.get(target);
+            if (mi == null) return;
+            Field evaluatorField = null;
+            Class<?> miClass = mi.getClass();
+            while (miClass != null && miClass != Object.class) {
+                try {
+                    evaluatorField = miClass.getDeclaredField("evaluator");
+                    break;
+                } catch (NoSuchFieldException e) {
+                    miClass = miClass.getSuperclass();
+                }
+            }
+            if (evaluatorField == null) return;
+            evaluatorField.setAccessible(true);
+            Object evaluator = evaluatorField.get(mi);
+            if (evaluator == null) return;
+            Method getField;
+            try {
+                getField = evaluator.getClass().getMethod("getField", String.class);
+            } catch (NoSuchMethodException e) {
+                getField = evaluator.getClass().getDeclaredMethod("getField", String.class);
+                getField.setAccessible(true);
+            }
+            Object symbol = getField.invoke(evaluator, self.getName());
+            if (symbol == null) return;
+            Method setValue;
+            try {
+                setValue = symbol.getClass().getMethod("setValue", Object.class);
+            } catch (NoSuchMethodException e) {
+                setValue = symbol.getClass().getDeclaredMethod("setValue", Object.class);
+                setValue.setAccessible(true);
+            }
+            setValue.invoke(symbol, value);
+        } catch (Throwable ignore) {
+            // same fail-safe as the advice
+        }
+    }
+
+    private static List<Object> viaAdvice(Object target, Object evaluatorProbe, String field, Object value) throws Exception {
+        Field f = findField(target.getClass(), field);
+        ReflectiveSetAdvice.after(f, target, value, null);
+        return recorded(evaluatorProbe);
+    }
+
+    private static List<Object> viaLegacy(Object target, Object evaluatorProbe, String field, Object value) throws Exception {
+        legacyPropagate(findField(target.getClass(), field), target, value);
+        return recorded(evaluatorProbe);
+    }
+
+    private static Field findField(Class<?> type, String name) throws NoSuchFieldException {
+        for (Class<?> t = type; t != null; t = t.getSuperclass()) {
+            try {
+                return t.getDeclaredField(name);
+            } catch (NoSuchFieldException e) {
+                // keep looking
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+
+    private static List<Object> recorded(Object evaluator) {
+        if (evaluator instanceof PublicEvaluator p) return p.symbol.values;
+        if (evaluator instanceof HiddenEvaluator h) return h.symbol.values;
+        return new ArrayList<>();
+    }
+
+    private static Enrolled enrolled(Enrolled target, Interceptor interceptor) {
+        target.instanceInterceptor = interceptor;
+        return target;
+    }
+
+    @Test
+    void matchesLegacyBehaviorAcrossHierarchies() throws Exception {
+        Object[][] scenarios = {
+                {new Enrolled(), new Interceptor(null), new PublicEvaluator()},
+                {new DeepEnrolled(), new SubInterceptor(null), new PublicEvaluator()},
+                {new Enrolled(), new Interceptor(null), new InheritedEvaluator()},
+                {new DeepEnrolled(), new Interceptor(null), new HiddenEvaluator()},
+                {new Enrolled(), new Interceptor(null), new NullEvaluator()},
+                {new Enrolled(), new Interceptor(null), null},
+                {new Enrolled(), null, null},
+        };
+        for (Object[] scenario : scenarios) {
+            Interceptor interceptor = (Interceptor) scenario[1];
+            Object evaluator = scenario[2];
+            if (interceptor != null) interceptor.evaluator = evaluator;
+            Enrolled target = enrolled((Enrolled) scenario[0], interceptor);
+
+            List<Object> legacy = new ArrayList<>(viaLegacy(target, evaluator, "value", 7));
+            recorded(evaluator).clear();
+            List<Object> cached = new ArrayList<>(viaAdvice(target, evaluator, "value", 7));
+
+            assertEquals(legacy, cached, "Scenario " + target.getClass().getSimpleName()
+                    + "/" + (evaluator == null ? "null" : evaluator.getClass().getSimpleName()));
+        }
+    }
+
+    @Test
+    void propagatesFieldNameAndValue() throws Exception {
+        PublicEvaluator evaluator = new PublicEvaluator();
+        DeepEnrolled target = new DeepEnrolled();
+        enrolled(target, new SubInterceptor(evaluator));
+
+        viaAdvice(target, evaluator, "other", 42L);
+        viaAdvice(target, evaluator, "value", 3);
+
+        assertEquals(List.of("other", "value"), evaluator.requested);
+        assertEquals(List.of(42L, 3), evaluator.symbol.values);
+    }
+
+    @Test
+    void ignoresClassesWithoutInterceptor() throws Throwable {
+        assertNull(PropagationPlan.forTarget(NotEnrolled.class).handle);
+        PropagationPlan.propagate(new NotEnrolled(), "value", 1);
+    }
+
+    @Test
+    void plansAreCachedUntilInvalidated() {
+        PropagationPlan first = PropagationPlan.forTarget(Enrolled.class);
+        assertNotNull(first.handle);
+        assertSame(first, PropagationPlan.forTarget(Enrolled.class));
+
+        PropagationPlan.invalidate(Enrolled.class);
+
+        PropagationPlan second = PropagationPlan.forTarget(Enrolled.class);
+        assertNotSame(first, second);
+        assertNotNull(second.handle);
+    }
+}
@@ -0,0 +1,165 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Field;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReentrancyGuardTest {
+
+    private static final int THREADS = 100_000;
+
+    /** Retained heap allowed per thread that ever wrote: less than a boxed thread id in a concurrent set. */
+    private static final long BYTES_PER_THREAD = 32;
+
+    /**
+     * Symbol that writes back into its target reflectively, the way an evaluator might, which would recurse
+     * forever without the guard. It yields in the middle so that many virtual threads are inside at once.
+     */
+    static class EchoSymbol {
+        static final LongAdder UPDATES = new LongAdder();
+        static final AtomicInteger DEPTH_VIOLATIONS = new AtomicInteger();
+
+        private final Target target;
+
+        EchoSymbol(Target target) {
+            this.target = target;
+        }
+
+        public void setValue(Object value) throws ReflectiveOperationException {
+            if (!ReentrancyGuard.isActive()) {
+                DEPTH_VIOLATIONS.incrementAndGet();
+            }
+            UPDATES.increment();
+            Thread.yield();
+            target.mirrored = (Integer) value;
+            Field field = Target.class.getDeclaredField("value");
+            field.setInt(target, (Integer) value);
+            ReflectiveSetAdvice.after(field, target, value, null);
+        }
+    }
+
+    static class Evaluator {
+        private final Target target;
+
+        Evaluator(Target target) {
+            this.target = target;
+        }
+
+        public Object getField(String name) {
+            return new EchoSymbol(target);
+        }
+    }
+
+    static class Interceptor {
+        Object evaluator;
+    }
+
+    static class Target {
+        Object instanceInterceptor;
+        int value;
+        int mirrored = -1;
+
+        Target() {
+            Interceptor interceptor = new Interceptor();
+            interceptor.evaluator = new Evaluator(this);
+            instanceInterceptor = interceptor;
+        }
+    }
+
+    @Test
+    void nestedEntryIsReentrant() {
+        assertFalse(ReentrancyGuard.isActive());
+        int outer = ReentrancyGuard.enter();
+        assertNotEquals(ReentrancyGuard.REENTRANT, outer);
+        assertTrue(ReentrancyGuard.isActive());
+        assertEquals(ReentrancyGuard.REENTRANT, ReentrancyGuard.enter());
+        ReentrancyGuard.exit(ReentrancyGuard.REENTRANT);
+        assertTrue(ReentrancyGuard.isActive());
+        ReentrancyGuard.exit(outer);
+        assertFalse(ReentrancyGuard.isActive());
+    }
+
+    @Test
+    void reflectiveWritesOnManyVirtualThreads() throws Exception {
+        Field field = Target.class.getDeclaredField("value");
+        Target[] targets = new Target[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            targets[i] = new Target();
+        }
+        // Warm up the plan caches so that they do not count as growth.
+        ReflectiveSetAdvice.after(field, new Target(), 0, null);
+        EchoSymbol.UPDATES.reset();
+        long before = usedHeapAfterGc();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < THREADS; i++) {
+                Target target = targets[i];
+                int value = i;
+                executor.submit(() -> {
+                    field.setInt(target, value);
+                    ReflectiveSetAdvice.after(field, target, value, null);
+                    return null;
+                });
+            }
+        }
+
+        // Each write reached its symbol exactly once, the echo writes were not intercepted again.
+        assertEquals(THREADS, EchoSymbol.UPDATES.sum());
+        assertEquals(0, EchoSymbol.DEPTH_VIOLATIONS.get());
+        for (int i = 0; i < THREADS; i++) {
+            assertEquals(i, targets[i].mirrored, "lost update for thread " + i);
+        }
+
+        // Every thread released its entry on exit, so the guard holds nothing for threads that are gone.
+        assertEquals(0, ReentrancyGuard.occupancy());
+        assertFalse(ReentrancyGuard.isActive());
+        long growth = usedHeapAfterGc() - before;
+        assertTrue(growth < THREADS * BYTES_PER_THREAD, "retained " + growth + " bytes");
+        assertEquals(THREADS, targets.length);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    void deprecatedFlagStillSuppressesTheAdvice() throws Exception {
+        Field field = Target.class.getDeclaredField("value");
+        Target target = new Target();
+        EchoSymbol.UPDATES.reset();
+
+        ReflectiveSetAdvice.IN_AGENT_CALL.set(true);
+        try {
+            assertTrue(ReflectiveSetAdvice.IN_AGENT_CALL.get());
+            ReflectiveSetAdvice.after(field, target, 1, null);
+        } finally {
+            ReflectiveSetAdvice.IN_AGENT_CALL.set(false);
+        }
+        assertEquals(0, EchoSymbol.UPDATES.sum());
+        assertFalse(ReflectiveSetAdvice.IN_AGENT_CALL.get());
+
+        ReflectiveSetAdvice.after(field, target, 2, null);
+        assertEquals(1, EchoSymbol.UPDATES.sum());
+        assertEquals(2, target.mirrored);
+    }
+
+    /**
+     * Smallest used heap seen over a few collections, which leaves out garbage the collector had not yet
+     * reached on any one of them.
+     */
+    private static long usedHeapAfterGc() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20);
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,137 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TransformCacheTest {
+
+    private static final ClassLoader LOADER = TransformCacheTest.class.getClassLoader();
+    private static final String HOOKED = FieldWriteHookTest.Hooked.class.getName().replace('.', '/');
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void servesWarmStartsFromDisk() throws Exception {
+        byte[] original = classFile(HOOKED);
+        FieldWriteHook cold = new FieldWriteHook(AgentConfig.parse("cache=" + dir));
+        byte[] instrumented = cold.transform(LOADER, HOOKED, null, null, original);
+        assertEquals(0, cold.getCache().getHits());
+        assertEquals(1, count(dir));
+
+        FieldWriteHook warm = new FieldWriteHook(AgentConfig.parse("cache=" + dir));
+        byte[] cached = warm.transform(LOADER, HOOKED, null, null, original);
+
+        assertEquals(1, warm.getCache().getHits());
+        assertArrayEquals(instrumented, cached);
+        Class<?> type = define(cached);
+        FieldWriteHookTest.RecordingEvaluator evaluator = new FieldWriteHookTest.RecordingEvaluator();
+        Object instance = type.getConstructor().newInstance();
+        type.getMethod("setInterceptor", Object.class).invoke(instance, new FieldWriteHookTest.Interceptor(evaluator));
+        type.getMethod("writeStatic", long.class).invoke(instance, 3L);
+        assertEquals(3L, evaluator.values.get("counter"), "ids are resolved in the JVM that loads the class");
+    }
+
+    @Test
+    void ignoresAndReplacesDamagedEntries() throws IOException {
+        byte[] original = classFile(HOOKED);
+        FieldWriteHook hook = new FieldWriteHook(AgentConfig.parse("cache=" + dir));
+        String key = hook.getCache().key(original);
+        Files.write(dir.resolve(key), new byte[]{1, 2, 3});
+
+        byte[] instrumented = hook.transform(LOADER, HOOKED, null, null, original);
+
+        assertNotNull(instrumented);
+        assertEquals(0, hook.getCache().getHits());
+        assertArrayEquals(instrumented, Files.readAllBytes(dir.resolve(key)));
+    }
+
+    @Test
+    void holdsPreparedClassesOnlyUntilReleased() throws IOException {
+        byte[] original = classFile(HOOKED);
+        FieldWriteHook hook = new FieldWriteHook();
+        assertFalse(hook.getCache().isActive(), "without a directory nothing is hashed");
+
+        hook.prepare(List.of(FieldWriteHookTest.Hooked.class, FieldWriteHookTest.Slot.class));
+        assertNotNull(hook.transform(LOADER, HOOKED, null, null, original));
+        assertEquals(1, hook.getCache().getHits());
+
+        hook.release();
+        assertFalse(hook.getCache().isActive());
+        assertNotNull(hook.transform(LOADER, HOOKED, null, null, original));
+        assertEquals(1, hook.getCache().getHits());
+    }
+
+    @Test
+    void doesNotCacheClassFilesThatCannotHoldDynamicConstants() {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "com/acme/Legacy", null, "java/lang/Object", null);
+        writer.visitField(Opcodes.ACC_PUBLIC, PropagationPlan.INTERCEPTOR_FIELD, "Ljava/lang/Object;", null, null);
+        writer.visitField(Opcodes.ACC_PUBLIC, "count", "I", null, null);
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC, "bump", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, "com/acme/Legacy", "count", "I");
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        writer.visitEnd();
+        FieldWriteHook hook = new FieldWriteHook(AgentConfig.parse("cache=" + dir));
+
+        byte[] instrumented = hook.transform(LOADER, "com/acme/Legacy", null, null, writer.toByteArray());
+
+        assertNotNull(instrumented);
+        assertEquals(0, count(dir));
+        boolean[] condy = new boolean[1];
+        new ClassReader(instrumented).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                             String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitLdcInsn(Object value) {
+                        condy[0] |= value instanceof ConstantDynamic;
+                    }
+                };
+            }
+        }, 0);
+        assertFalse(condy[0], "the id is pushed as a plain constant");
+    }
+
+    private static byte[] classFile(String internalName) throws IOException {
+        try (InputStream in = LOADER.getResourceAsStream(internalName + ".class")) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static long count(Path dir) {
+        try (var files = Files.list(dir)) {
+            return files.count();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static Class<?> define(byte[] bytes) {
+        return new ClassLoader(LOADER) {
+            Class<?> define() {
+                return defineClass(null, bytes, 0, bytes.length);
+            }
+        }.define();
+    }
+}
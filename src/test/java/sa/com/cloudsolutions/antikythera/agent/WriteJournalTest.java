@@ -0,0 +1,274 @@
+package sa.com.cloudsolutions.antikythera.agent;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteJournalTest {
+
+    /** Evaluator keeping the latest value per field, used both live and for replay. */
+    static class Evaluator {
+        final Map<String, Object> values = new ConcurrentHashMap<>();
+        public Object getField(String name) { return new Symbol(this, name); }
+    }
+
+    static class Symbol {
+        private final Evaluator evaluator;
+        private final String name;
+        Symbol(Evaluator evaluator, String name) { this.evaluator = evaluator; this.name = name; }
+        public void setValue(Object value) { if (value != null) evaluator.values.put(name, value); }
+    }
+
+    static class Interceptor {
+        final Object evaluator;
+        Interceptor(Object evaluator) { this.evaluator = evaluator; }
+    }
+
+    static class Target {
+        Object instanceInterceptor;
+        Target(Evaluator evaluator) { instanceInterceptor = new Interceptor(evaluator); }
+    }
+
+    static class Payload {
+    }
+
+    /**
+     * Defines the reader side of the journal itself and leaves {@link WriteJournal} to its parent. With the agent
+     * installed, WriteJournal comes from the bootstrap jar and the reader does not, so they are in different
+     * runtime packages just like here.
+     */
+    static class ReaderLoader extends ClassLoader {
+        ReaderLoader() {
+            super(WriteJournalTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith(JournalReader.class.getName()) && !name.startsWith(JournalEntry.class.getName())) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded != null) return loaded;
+                try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                    byte[] bytes = in.readAllBytes();
+                    return defineClass(name, bytes, 0, bytes.length);
+                } catch (IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+            }
+        }
+    }
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void stop() {
+        WriteJournal.stop();
+    }
+
+    @Test
+    void recordsEveryValueKind() throws IOException {
+        WriteJournal.start(dir, WriteJournal.DEFAULT_SEGMENT_SIZE);
+        Target target = new Target(new Evaluator());
+        Payload payload = new Payload();
+
+        Support.afterSetBoolean(target, "flag", true);
+        Support.afterSetByte(target, "b", (byte) -3);
+        Support.afterSetChar(target, "c", 'x');
+        Support.afterSetShort(target, "s", (short) 300);
+        Support.afterSetInt(target, "i", -7);
+        Support.afterSetLong(target, "l", Long.MIN_VALUE);
+        Support.afterSetFloat(target, "f", 1.5f);
+        Support.afterSetDouble(target, "d", Math.PI);
+        Support.afterSet(target, "text", "héllo");
+        Support.afterSet(target, "ref", payload);
+        Support.afterSet(target, "ref2", payload);
+        Support.afterSet(target, "none", null);
+        WriteJournal.stop();
+
+        List<JournalEntry> entries = readAll();
+        assertEquals(12, entries.size());
+        List<Object> values = new ArrayList<>();
+        for (JournalEntry entry : entries) {
+            assertEquals(Target.class.getName(), entry.getClassName());
+            assertEquals(entries.get(0).getObjectId(), entry.getObjectId());
+            values.add(entry.getValue());
+        }
+        assertEquals(List.of(true, (byte) -3, 'x', (short) 300, -7, Long.MIN_VALUE, 1.5f, Math.PI, "héllo"),
+                values.subList(0, 9));
+        JournalEntry.Reference ref = (JournalEntry.Reference) values.get(9);
+        assertEquals(Payload.class.getName(), ref.getClassName());
+        assertEquals(ref, values.get(10), "the same object keeps its id");
+        assertNull(values.get(11));
+        assertEquals("i", entries.get(4).getFieldName());
+
+        long now = System.currentTimeMillis() * 1_000_000L;
+        assertTrue(Math.abs(now - entries.get(0).getEpochNanos()) < 60_000_000_000L);
+    }
+
+    @Test
+    void concurrentWritersSpanSegmentsWithoutLosingRecords() throws Exception {
+        WriteJournal.start(dir, 4096);
+        int threads = 8;
+        int writes = 2000;
+        List<Target> targets = new ArrayList<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Target target = new Target(new Evaluator());
+            targets.add(target);
+            String field = "f" + t;
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < writes; i++) {
+                    Support.afterSetInt(target, field, i);
+                    if (i % 100 == 0) {
+                        Support.afterSet(target, "label", field + "-" + i);
+                    }
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        WriteJournal.stop();
+
+        try (var files = Files.list(dir)) {
+            assertTrue(files.count() > 10, "a 4 KiB segment size forces many segments");
+        }
+
+        Map<String, Integer> next = new HashMap<>();
+        int labels = 0;
+        for (JournalEntry entry : readAll()) {
+            if (entry.getFieldName().equals("label")) {
+                labels++;
+                continue;
+            }
+            int expected = next.getOrDefault(entry.getFieldName(), 0);
+            assertEquals(expected, entry.getValue(), "writes of one thread stay in order");
+            next.put(entry.getFieldName(), expected + 1);
+        }
+        assertEquals(threads * writes / 100, labels);
+        for (int t = 0; t < threads; t++) {
+            assertEquals(writes, next.get("f" + t));
+        }
+    }
+
+    @Test
+    void replaysIntoFreshEvaluators() throws IOException {
+        WriteJournal.start(dir, WriteJournal.DEFAULT_SEGMENT_SIZE);
+        Target first = new Target(new Evaluator());
+        Target second = new Target(new Evaluator());
+        for (int i = 0; i < 100; i++) {
+            Support.afterSetInt(first, "count", i);
+            Support.afterSetLong(second, "total", i * 10L);
+        }
+        Support.afterSet(first, "name", "first");
+        WriteJournal.stop();
+
+        Map<Long, Evaluator> evaluators = new HashMap<>();
+        long delivered;
+        try (JournalReader reader = JournalReader.open(dir)) {
+            delivered = reader.replay(entry -> evaluators.computeIfAbsent(entry.getObjectId(), id -> new Evaluator()));
+        }
+
+        assertEquals(201, delivered);
+        assertEquals(2, evaluators.size());
+        List<Map<String, Object>> replayed = new ArrayList<>();
+        for (Evaluator evaluator : evaluators.values()) {
+            replayed.add(evaluator.values);
+        }
+        assertTrue(replayed.contains(Map.of("count", 99, "name", "first")));
+        assertTrue(replayed.contains(Map.of("total", 990L)));
+    }
+
+    @Test
+    void retiresCompletedSegmentsAndKeepsAtMostTheConfiguredNumber() throws IOException {
+        WriteJournal journal = WriteJournal.start(dir, 4096, 3);
+        Target target = new Target(new Evaluator());
+        for (int i = 0; i < 2000; i++) {
+            Support.afterSetInt(target, "count", i);
+        }
+
+        assertEquals(1, journal.mappedSegments(), "only the segment being written stays mapped");
+        WriteJournal.stop();
+        List<String> files = new ArrayList<>();
+        try (var list = Files.list(dir)) {
+            list.forEach(file -> files.add(file.getFileName().toString()));
+        }
+        assertEquals(3, files.size());
+        assertTrue(files.contains(WriteJournal.segmentName(0)), "the start of the journal is kept");
+
+        List<JournalEntry> entries = readAll();
+        assertFalse(entries.isEmpty());
+        assertEquals(1999, entries.get(entries.size() - 1).getValue());
+        assertEquals("count", entries.get(entries.size() - 1).getFieldName(), "defined in the first segment");
+    }
+
+    @Test
+    void cutsLongStringsAtACharacterBoundary() throws IOException {
+        WriteJournal.start(dir, 4096);
+        String text = "a" + "é".repeat(600);
+        Support.afterSet(new Target(new Evaluator()), "text", text);
+        WriteJournal.stop();
+
+        assertEquals(text.substring(0, 512), readAll().get(0).getValue(), "1024 bytes end inside the 512th é");
+    }
+
+    @Test
+    void recordsNothingWhenStopped() throws IOException {
+        WriteJournal.start(dir, WriteJournal.DEFAULT_SEGMENT_SIZE);
+        WriteJournal.stop();
+        Support.afterSetInt(new Target(new Evaluator()), "count", 1);
+
+        assertFalse(WriteJournal.isRecording());
+        assertTrue(readAll().isEmpty());
+    }
+
+    @Test
+    void readsOutsideTheRuntimePackageOfTheWriter() throws Exception {
+        WriteJournal.start(dir, 4096);
+        Target target = new Target(new Evaluator());
+        for (int i = 0; i < 200; i++) {
+            Support.afterSetInt(target, "count", i);
+        }
+        WriteJournal.stop();
+
+        Class<?> readerClass = new ReaderLoader().loadClass(JournalReader.class.getName());
+        assertNotSame(JournalReader.class, readerClass);
+        Method next = readerClass.getMethod("next");
+        int count = 0;
+        try (Closeable reader = (Closeable) readerClass.getMethod("open", Path.class).invoke(null, dir)) {
+            for (Object entry; (entry = next.invoke(reader)) != null; count++) {
+                assertEquals(count, entry.getClass().getMethod("getValue").invoke(entry));
+            }
+        }
+        assertEquals(200, count, "every segment is found by name");
+    }
+
+    private List<JournalEntry> readAll() throws IOException {
+        List<JournalEntry> entries = new ArrayList<>();
+        try (JournalReader reader = JournalReader.open(dir)) {
+            for (JournalEntry entry; (entry = reader.next()) != null; ) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+}